@@ -2,7 +2,8 @@ package com.mcherm.cloudpaper;
 
 /**
  * This is a data class which contains all the configurable parameters for the animation.
- * Instances are immutable.
+ * Instances are immutable; they are made with an AnimationSettings.Builder, which takes each
+ * setting by name, so there is no long list of arguments to get in the wrong order.
  */
 public class AnimationSettings {
 
@@ -15,6 +16,17 @@ public class AnimationSettings {
     public static final float DEFAULT_CLOUD_DENSITY_THRESHOLD = 0.50f;
     public static final float DEFAULT_DRIFT_X = 0.003f;
     public static final float DEFAULT_DRIFT_Y = 0.0005f;
+    public static final boolean DEFAULT_SMOOTH_CLOUDS = false;
+    public static final boolean DEFAULT_PIPELINED_FRAMES = false;
+    public static final int DEFAULT_SCROLL_REFRESH_FRAMES = 0;
+    public static final float DEFAULT_TILE_Z_STEP = 0.0f;
+    public static final int DEFAULT_KEYFRAME_MILLIS = 0;
+    public static final int DEFAULT_LOOP_MILLIS = 0;
+    public static final boolean DEFAULT_PROGRESSIVE_FRAMES = false;
+    public static final int DEFAULT_BATTERY_SAVER_TIER = 1;
+    public static final int DEFAULT_UNPLUGGED_TIER = 0;
+    public static final int DEFAULT_THERMAL_TIER = 1;
+    public static final boolean DEFAULT_SKIP_UNCHANGED_FRAMES = false;
 
     /** Blocks of pixelSize x pixelSize will be drawn the same. Range 1 and up */
     public final int pixelSize;
@@ -40,28 +52,266 @@ public class AnimationSettings {
     /** Vertical drift rate (positive = drift south/down). Default is slow drift southward. */
     public final float driftY;
 
+    /** Blend neighboring blocks when scaling clouds up to the screen, instead of drawing hard-edged blocks. */
+    public final boolean smoothClouds;
+
+    /**
+     * Generate upcoming frames ahead of time on the render thread, while another thread shows
+     * each one at its scheduled time. Steadier frame intervals, at the cost of two more frames of memory.
+     */
+    public final boolean pipelinedFrames;
+
+    /**
+     * When above 0, frames in between full refreshes only sample the noise for the edges the
+     * drift has uncovered, and shift the rest of the previous frame along; a full refresh every
+     * this many frames shows the evolution. Much less work when drift is most of the motion.
+     */
+    public final int scrollRefreshFrames;
+
+    /**
+     * When above 0, the clouds are kept as tiles fixed in the noise, and a frame is put
+     * together from tiles already rendered for the same time step; time advances in steps of
+     * this much evolution. Reuses work wherever the clouds have only drifted. Takes precedence
+     * over keyframeMillis and scrollRefreshFrames.
+     */
+    public final float tileZStep;
+
+    /**
+     * When above 0, the noise is only fully evaluated for keyframes this many milliseconds of
+     * evolution apart, and the frames in between blend the two keyframes around them, moved
+     * along with the drift. The next keyframe is worked on a little in each frame. Allows a
+     * high frame rate for about the cost of one frame per keyframe. Takes precedence over
+     * scrollRefreshFrames; has no effect if evolutionRate is 0.
+     */
+    public final int keyframeMillis;
+
+    /**
+     * When above 0, the animation repeats every this many milliseconds: each frame crossfades
+     * the clouds at its time with those one loop earlier, so the end meets the start. Each
+     * frame of the loop is generated once and saved, compressed, after which playing it back
+     * costs no noise at all. Takes precedence over tileZStep, keyframeMillis and
+     * scrollRefreshFrames.
+     */
+    public final int loopMillis;
+
+    /**
+     * Whether to sharpen the first frames after a resize or a change of pixelSize or noise
+     * frequency from coarse to fine: the first samples every 8th block each way, and each
+     * frame after samples the blocks in between, until every block is sampled (four frames).
+     */
+    public final boolean progressiveFrames;
+
+    /**
+     * Power tier while battery saver is on: 0 for full frames, 1 for half the frame rate and
+     * coarser blocks, 2 for a new frame only every few seconds (see PowerMonitor).
+     */
+    public final int batterySaverTier;
+
+    /** Power tier while the device is not plugged in, as for batterySaverTier */
+    public final int unpluggedTier;
+
     /**
-     * Creates an AnimationSettings with custom values.
+     * Power tier while the device reports a moderate thermal status (API 29 and up), as for
+     * batterySaverTier. A severe status or worse always gets tier 2.
      */
-    public AnimationSettings(int pixelSize, int framesPerSecond, String skyColor,
-                           float evolutionRate, float noiseFrequency,
-                           float cloudDensityThreshold, float driftX, float driftY) {
-        this.pixelSize = pixelSize;
-        this.framesPerSecond = framesPerSecond;
-        this.skyColor = skyColor;
-        this.evolutionRate = evolutionRate;
-        this.noiseFrequency = noiseFrequency;
-        this.cloudDensityThreshold = cloudDensityThreshold;
-        this.driftX = driftX;
-        this.driftY = driftY;
+    public final int thermalTier;
+
+    /**
+     * Whether to wait for the clouds to change visibly before drawing again: frames that would
+     * look the same as the one on the screen aren't drawn, the frames come further apart while
+     * the clouds change slowly, and they stop altogether while driftX, driftY and evolutionRate
+     * are all 0.
+     */
+    public final boolean skipUnchangedFrames;
+
+    /**
+     * Creates an AnimationSettings with the values set on the given builder.
+     */
+    private AnimationSettings(Builder builder) {
+        this.pixelSize = builder.pixelSize;
+        this.framesPerSecond = builder.framesPerSecond;
+        this.skyColor = builder.skyColor;
+        this.evolutionRate = builder.evolutionRate;
+        this.noiseFrequency = builder.noiseFrequency;
+        this.cloudDensityThreshold = builder.cloudDensityThreshold;
+        this.driftX = builder.driftX;
+        this.driftY = builder.driftY;
+        this.smoothClouds = builder.smoothClouds;
+        this.pipelinedFrames = builder.pipelinedFrames;
+        this.scrollRefreshFrames = builder.scrollRefreshFrames;
+        this.tileZStep = builder.tileZStep;
+        this.keyframeMillis = builder.keyframeMillis;
+        this.loopMillis = builder.loopMillis;
+        this.progressiveFrames = builder.progressiveFrames;
+        this.batterySaverTier = builder.batterySaverTier;
+        this.unpluggedTier = builder.unpluggedTier;
+        this.thermalTier = builder.thermalTier;
+        this.skipUnchangedFrames = builder.skipUnchangedFrames;
     }
 
     /**
      * Creates an AnimationSettings with default values.
      */
     public AnimationSettings() {
-        this(DEFAULT_PIXEL_SIZE, DEFAULT_FRAMES_PER_SECOND, DEFAULT_SKY_COLOR,
-             DEFAULT_EVOLUTION_RATE, DEFAULT_NOISE_FREQUENCY,
-             DEFAULT_CLOUD_DENSITY_THRESHOLD, DEFAULT_DRIFT_X, DEFAULT_DRIFT_Y);
+        this(new Builder());
+    }
+
+    /**
+     * A copy of these settings with blocks of the given size.
+     */
+    public AnimationSettings withPixelSize(int pixelSize) {
+        return new Builder(this).setPixelSize(pixelSize).build();
+    }
+
+    /**
+     * Builds an AnimationSettings a setting at a time, starting from the defaults or from
+     * existing settings.
+     */
+    public static class Builder {
+        private int pixelSize = DEFAULT_PIXEL_SIZE;
+        private int framesPerSecond = DEFAULT_FRAMES_PER_SECOND;
+        private String skyColor = DEFAULT_SKY_COLOR;
+        private float evolutionRate = DEFAULT_EVOLUTION_RATE;
+        private float noiseFrequency = DEFAULT_NOISE_FREQUENCY;
+        private float cloudDensityThreshold = DEFAULT_CLOUD_DENSITY_THRESHOLD;
+        private float driftX = DEFAULT_DRIFT_X;
+        private float driftY = DEFAULT_DRIFT_Y;
+        private boolean smoothClouds = DEFAULT_SMOOTH_CLOUDS;
+        private boolean pipelinedFrames = DEFAULT_PIPELINED_FRAMES;
+        private int scrollRefreshFrames = DEFAULT_SCROLL_REFRESH_FRAMES;
+        private float tileZStep = DEFAULT_TILE_Z_STEP;
+        private int keyframeMillis = DEFAULT_KEYFRAME_MILLIS;
+        private int loopMillis = DEFAULT_LOOP_MILLIS;
+        private boolean progressiveFrames = DEFAULT_PROGRESSIVE_FRAMES;
+        private int batterySaverTier = DEFAULT_BATTERY_SAVER_TIER;
+        private int unpluggedTier = DEFAULT_UNPLUGGED_TIER;
+        private int thermalTier = DEFAULT_THERMAL_TIER;
+        private boolean skipUnchangedFrames = DEFAULT_SKIP_UNCHANGED_FRAMES;
+
+        /** Starts from the default settings. */
+        public Builder() {
+        }
+
+        /** Starts from the given settings. */
+        public Builder(AnimationSettings settings) {
+            pixelSize = settings.pixelSize;
+            framesPerSecond = settings.framesPerSecond;
+            skyColor = settings.skyColor;
+            evolutionRate = settings.evolutionRate;
+            noiseFrequency = settings.noiseFrequency;
+            cloudDensityThreshold = settings.cloudDensityThreshold;
+            driftX = settings.driftX;
+            driftY = settings.driftY;
+            smoothClouds = settings.smoothClouds;
+            pipelinedFrames = settings.pipelinedFrames;
+            scrollRefreshFrames = settings.scrollRefreshFrames;
+            tileZStep = settings.tileZStep;
+            keyframeMillis = settings.keyframeMillis;
+            loopMillis = settings.loopMillis;
+            progressiveFrames = settings.progressiveFrames;
+            batterySaverTier = settings.batterySaverTier;
+            unpluggedTier = settings.unpluggedTier;
+            thermalTier = settings.thermalTier;
+            skipUnchangedFrames = settings.skipUnchangedFrames;
+        }
+
+        public Builder setPixelSize(int pixelSize) {
+            this.pixelSize = pixelSize;
+            return this;
+        }
+
+        public Builder setFramesPerSecond(int framesPerSecond) {
+            this.framesPerSecond = framesPerSecond;
+            return this;
+        }
+
+        public Builder setSkyColor(String skyColor) {
+            this.skyColor = skyColor;
+            return this;
+        }
+
+        public Builder setEvolutionRate(float evolutionRate) {
+            this.evolutionRate = evolutionRate;
+            return this;
+        }
+
+        public Builder setNoiseFrequency(float noiseFrequency) {
+            this.noiseFrequency = noiseFrequency;
+            return this;
+        }
+
+        public Builder setCloudDensityThreshold(float cloudDensityThreshold) {
+            this.cloudDensityThreshold = cloudDensityThreshold;
+            return this;
+        }
+
+        public Builder setDriftX(float driftX) {
+            this.driftX = driftX;
+            return this;
+        }
+
+        public Builder setDriftY(float driftY) {
+            this.driftY = driftY;
+            return this;
+        }
+
+        public Builder setSmoothClouds(boolean smoothClouds) {
+            this.smoothClouds = smoothClouds;
+            return this;
+        }
+
+        public Builder setPipelinedFrames(boolean pipelinedFrames) {
+            this.pipelinedFrames = pipelinedFrames;
+            return this;
+        }
+
+        public Builder setScrollRefreshFrames(int scrollRefreshFrames) {
+            this.scrollRefreshFrames = scrollRefreshFrames;
+            return this;
+        }
+
+        public Builder setTileZStep(float tileZStep) {
+            this.tileZStep = tileZStep;
+            return this;
+        }
+
+        public Builder setKeyframeMillis(int keyframeMillis) {
+            this.keyframeMillis = keyframeMillis;
+            return this;
+        }
+
+        public Builder setLoopMillis(int loopMillis) {
+            this.loopMillis = loopMillis;
+            return this;
+        }
+
+        public Builder setProgressiveFrames(boolean progressiveFrames) {
+            this.progressiveFrames = progressiveFrames;
+            return this;
+        }
+
+        public Builder setBatterySaverTier(int batterySaverTier) {
+            this.batterySaverTier = batterySaverTier;
+            return this;
+        }
+
+        public Builder setUnpluggedTier(int unpluggedTier) {
+            this.unpluggedTier = unpluggedTier;
+            return this;
+        }
+
+        public Builder setThermalTier(int thermalTier) {
+            this.thermalTier = thermalTier;
+            return this;
+        }
+
+        public Builder setSkipUnchangedFrames(boolean skipUnchangedFrames) {
+            this.skipUnchangedFrames = skipUnchangedFrames;
+            return this;
+        }
+
+        public AnimationSettings build() {
+            return new AnimationSettings(this);
+        }
     }
 }
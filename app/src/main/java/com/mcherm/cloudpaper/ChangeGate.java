@@ -0,0 +1,143 @@
+package com.mcherm.cloudpaper;
+
+import com.mcherm.cloudpaper.renderer.CloudFrame;
+
+/**
+ * Decides which frames are worth drawing, and how far apart they can be, by whether they look
+ * any different from the frame on the screen (see AnimationSettings.skipUnchangedFrames).
+ *
+ * <p>A frame is drawn if any block's alpha is more than INVISIBLE_LEVELS from the frame on the
+ * screen, or if it is drawn at least VISIBLE_PIXELS away from it. How much the alphas change
+ * for each pixel the clouds move through the noise (drifting, or evolving in time) depends
+ * on the noise and the density, so the gate learns it from the frames, remembering the most
+ * it has seen lately. From that and the driftX, driftY and evolutionRate of the settings it
+ * predicts how many frame times it will be before a frame could look different, up to
+ * MAX_SPACING_FRAMES. When the rates are all 0, no frame after the one on the screen will.
+ * Not thread safe: use it from the render thread.
+ */
+class ChangeGate {
+
+    /** The most a block's alpha can change, in levels out of 255, without it showing */
+    private static final int INVISIBLE_LEVELS = 2;
+
+    /** How far a frame has to be drawn from the one on the screen for the move to show */
+    private static final float VISIBLE_PIXELS = 0.5f;
+
+    /** The most frame times to wait for the clouds to change, in case they change faster than predicted */
+    private static final int MAX_SPACING_FRAMES = 8;
+
+    /** How much of the sensitivity is kept from one frame to the next */
+    private static final float SENSITIVITY_DECAY = 0.95f;
+
+    // The alphas of the frame on the screen, and where it is in the animation
+    private byte[] shownAlphas;
+    private boolean hasShown;
+    private float shownX;
+    private float shownY;
+    private float shownZ;
+    private float shownOffsetX;
+    private float shownOffsetY;
+
+    // Where the last frame checked was in the animation, and whether it was drawn somewhere else
+    private float lastX;
+    private float lastY;
+    private float lastZ;
+    private float lastOffsetX;
+    private float lastOffsetY;
+    private boolean framesMove;
+
+    // The most alpha levels changed per pixel of movement through the noise lately; 0 if not known yet
+    private float sensitivity;
+
+    /**
+     * Forgets the frame on the screen (so that the next frame is drawn) and what has been
+     * learned about the frames, for when they change for other reasons than the animation.
+     */
+    void reset() {
+        hasShown = false;
+        framesMove = false;
+        sensitivity = 0;
+    }
+
+    /**
+     * Whether the given frame, just generated at the given animation offsets, looks different
+     * from the frame on the screen. If it does, it is taken to be drawn.
+     */
+    boolean check(CloudFrame frame, float xOffset, float yOffset, float zOffset) {
+        lastX = xOffset;
+        lastY = yOffset;
+        lastZ = zOffset;
+        lastOffsetX = frame.getOffsetX();
+        lastOffsetY = frame.getOffsetY();
+        final int difference = hasShown ? frame.maxDifference(shownAlphas) : -1;
+        if (difference < 0) {
+            show(frame);
+            return true;
+        }
+
+        final float movement = distance(xOffset - shownX, yOffset - shownY, zOffset - shownZ);
+        if (movement > 0) {
+            // Alphas are rounded down, so the change underneath can be up to a level more than shows
+            sensitivity = Math.max((difference + 1) / movement, sensitivity * SENSITIVITY_DECAY);
+        }
+        final float moved = Math.max(Math.abs(lastOffsetX - shownOffsetX), Math.abs(lastOffsetY - shownOffsetY));
+        if (moved > 0) {
+            framesMove = true;
+        }
+        if (difference <= INVISIBLE_LEVELS && moved < VISIBLE_PIXELS) {
+            return false;
+        }
+        show(frame);
+        return true;
+    }
+
+    /**
+     * How many frame times (of frameSpacingMillis each) from the last frame checked until the
+     * next frame could look different, with the given settings: at least 1, or 0 if none will.
+     */
+    int spacingFrames(AnimationSettings animationSettings, long frameSpacingMillis) {
+        final float speed = distance(animationSettings.driftX, animationSettings.driftY,
+                animationSettings.evolutionRate);
+        if (speed == 0) {
+            return hasShown ? 0 : 1;
+        }
+        // A loop's frames also fade between two times, which the rates say nothing about
+        if (!hasShown || sensitivity == 0 || animationSettings.loopMillis > 0) {
+            return 1;
+        }
+
+        // The movement through the noise still to come before an alpha could change visibly: once
+        // the change underneath passes INVISIBLE_LEVELS, rounding can make it one level more
+        final float remaining = INVISIBLE_LEVELS / sensitivity
+                - distance(lastX - shownX, lastY - shownY, lastZ - shownZ);
+        int frames = framesFor(remaining, speed * frameSpacingMillis);
+        if (framesMove) {
+            // And on the screen, before the frame is drawn visibly further along
+            final float screenRemaining = VISIBLE_PIXELS
+                    - Math.max(Math.abs(lastOffsetX - shownOffsetX), Math.abs(lastOffsetY - shownOffsetY));
+            final float screenSpeed = distance(animationSettings.driftX, animationSettings.driftY, 0);
+            if (screenSpeed > 0) {
+                frames = Math.min(frames, framesFor(screenRemaining, screenSpeed * frameSpacingMillis));
+            }
+        }
+        return frames;
+    }
+
+    private void show(CloudFrame frame) {
+        shownAlphas = frame.copyAlphas(shownAlphas);
+        hasShown = true;
+        shownX = lastX;
+        shownY = lastY;
+        shownZ = lastZ;
+        shownOffsetX = lastOffsetX;
+        shownOffsetY = lastOffsetY;
+    }
+
+    private static int framesFor(float remaining, float perFrame) {
+        return (int) Math.max(1, Math.min(MAX_SPACING_FRAMES, Math.ceil(remaining / perFrame)));
+    }
+
+    private static float distance(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+}
@@ -1,17 +1,28 @@
 package com.mcherm.cloudpaper;
 
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.RectF;
+import android.hardware.display.DisplayManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.service.wallpaper.WallpaperService;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
 import android.view.SurfaceHolder;
 
+import com.mcherm.cloudpaper.renderer.CloudFrame;
 import com.mcherm.cloudpaper.renderer.CloudRenderer;
+import com.mcherm.cloudpaper.renderer.FrameSnapshot;
+import com.mcherm.cloudpaper.renderer.LoopCache;
+
+import java.io.File;
+import java.util.ArrayDeque;
 
 /**
  * CloudPaper Live Wallpaper Service
@@ -20,6 +31,28 @@ import com.mcherm.cloudpaper.renderer.CloudRenderer;
  */
 public class CloudPaperService extends WallpaperService {
 
+    /** Frames in flight when pipelined: one being shown, one waiting to be shown, one being generated */
+    private static final int PIPELINE_FRAMES = 3;
+
+    /**
+     * Log a summary of the frame timings every LOG_TIMINGS_INTERVAL_MILLIS while visible. The
+     * timings are kept either way (see FrameTimings), without allocating; only the logging is
+     * optional, and it happens between frames rather than in them.
+     */
+    private static final boolean LOG_FRAME_TIMING = false;
+    private static final long LOG_TIMINGS_INTERVAL_MILLIS = 10_000;
+
+    /** After a slow frame, the time allowed to generate a frame comes down by 1/LEAD_DECAY_FRAMES a frame */
+    private static final int LEAD_DECAY_FRAMES = 32;
+
+    /** Files (in the app's files directory) keeping the frames of a looping animation, for the wallpaper and its preview */
+    private static final String LOOP_CACHE_FILE = "loop.cache";
+    private static final String PREVIEW_LOOP_CACHE_FILE = "loop-preview.cache";
+
+    /** Files (in the app's files directory) keeping the last frame, for the wallpaper and its preview */
+    private static final String SNAPSHOT_FILE = "snapshot.frame";
+    private static final String PREVIEW_SNAPSHOT_FILE = "snapshot-preview.frame";
+
     @Override
     public Engine onCreateEngine() {
         return new CloudPaperEngine();
@@ -27,25 +60,129 @@ public class CloudPaperService extends WallpaperService {
 
     /**
      * Engine inner class that handles the wallpaper rendering and lifecycle
+     *
+     * <p>Lifecycle callbacks arrive on the main thread, but frames are generated and drawn
+     * on a dedicated render thread so that a slow frame never delays them. The renderer, the
+     * settings, the surface size and the animation timing belong to the render thread; the
+     * main thread only changes them by posting to renderHandler. The one exception is the
+     * surface itself, which the main thread may take away (see surfaceLock).
+     *
+     * <p>With pipelinedFrames, the render thread only generates frames. Because the animation
+     * is a function of time alone, it knows what each upcoming frame should show and when, so
+     * it generates them ahead of time (up to PIPELINE_FRAMES in flight) and a present thread
+     * shows each one at its scheduled time.
+     *
+     * <p>The settings are the most detail the clouds are drawn with: a QualityGovernor, told how
+     * long each frame took, has the renderer add fewer octaves or use bigger blocks while frames
+     * take longer than the time there is for them. A PowerMonitor picks a power tier from the
+     * battery and thermal state, which can halve the frame rate and keep the blocks coarse, or
+     * leave the clouds nearly still with a new frame every few seconds. FrameTimings keeps how
+     * long each stage of drawing has taken lately, and how many frames were dropped or late.
      */
-    private class CloudPaperEngine extends Engine implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private class CloudPaperEngine extends Engine
+            implements SettingsManager.SettingsListener, PowerMonitor.PowerListener {
 
         private SettingsManager settingsManager;
-        private Paint skyPaint;
+
+        // Render thread and the handler that runs work on it
+        private HandlerThread renderThread;
+        private Handler renderHandler;
+
+        // Present thread, which shows pipelined frames
+        private HandlerThread presentThread;
+        private Handler presentHandler;
+
+        // Owned by the render thread
         private CloudRenderer cloudRenderer;
         private AnimationSettings animationSettings;
-
         private int surfaceWidth;
         private int surfaceHeight;
-        private boolean visible;
 
-        // Animation parameters
-        private Handler handler;
-        private Runnable drawRunnable;
-        private long animationStartTime;
-        private long prevFrameMillis;
+        // Set by the main thread, read by the render thread
+        private volatile boolean visible;
+
+        // Held by whichever thread is drawing while it has the canvas locked, and by the main
+        // thread while changing surfaceReady, so the surface is never destroyed mid-draw.
+        private final Object surfaceLock = new Object();
+        private boolean surfaceReady;
+
+        // Guarded by surfaceLock, and set up from displaySettings when drawing
+        private Paint skyPaint;
+        private Paint cloudPaint;
+        private final RectF cloudDestRect = new RectF();
+        private AnimationSettings paintSettings;
+
+        // The latest settings, for the colors and smoothing of whatever frame is drawn next
+        private volatile AnimationSettings displaySettings;
+
+        // Animation parameters. The drift and evolution offsets were the base offsets at
+        // animationBaseTime, and advance from there at the current rates.
+        private long animationBaseTime;
+        private float baseXOffset;
+        private float baseYOffset;
+        private float baseZOffset;
         private long frameSpacingMillis;
 
+        // Frames are generated and shown on the render thread's vsyncs, at the times the frame
+        // pacer says; the frame generated waits to be shown in pendingFrame, having taken
+        // generateNanos to generate. Generating starts leadMillis before the frame is due;
+        // prevFrameNanos is when the last frame was due.
+        private Choreographer choreographer;
+        private Choreographer.FrameCallback drawCallback;
+        private Choreographer.FrameCallback presentCallback;
+        private final FramePacer framePacer = new FramePacer();
+        private float refreshRate;
+        private CloudFrame pendingFrame;
+        private long generateNanos;
+        private long leadMillis;
+        private long prevFrameNanos;
+
+        // The saved frames of the loop, when looping; null otherwise, or if they can't be saved
+        private LoopCache loopCache;
+
+        // The last frame generated, the settings and animation offsets it was generated for,
+        // to be saved when it's put away
+        private CloudFrame lastFrame;
+        private AnimationSettings lastSettings;
+        private float lastXOffset;
+        private float lastYOffset;
+        private float lastZOffset;
+        private boolean snapshotDue;
+
+        // Whether the saved snapshot had its chance to be shown, which it only has before the first frame
+        private boolean snapshotChecked;
+
+        // Pipelined frames, owned by the render thread
+        private Runnable generateRunnable;
+        private PipelinedFrame[] pipelineFrames;
+        private final ArrayDeque<PipelinedFrame> freeFrames = new ArrayDeque<>(PIPELINE_FRAMES);
+        private boolean waitingForFrame;
+        private long generateMillis;
+
+        // Lowers the detail when frames take too long, and raises it again when they have time to spare
+        private final QualityGovernor qualityGovernor = new QualityGovernor();
+
+        // Which frames look different enough to draw, and whether the frames have stopped until they will
+        private final ChangeGate changeGate = new ChangeGate();
+        private boolean animationIdle;
+
+        // Watches the battery and thermal state; the power tier is what it last called for
+        private PowerMonitor powerMonitor;
+        private int powerTier;
+
+        // Frames generated before the pipeline last stopped are not shown
+        private volatile int pipelineEpoch;
+
+        // Whether the renderer has been released, after which nothing is drawn; owned by the render thread
+        private boolean released;
+
+        // How long each stage of drawing has taken lately, and the main thread's summary of it to log
+        private final FrameTimings frameTimings = new FrameTimings();
+        private final FrameTimings.Summary timingsSummary = new FrameTimings.Summary();
+        private Handler mainHandler;
+        private Runnable logTimingsRunnable;
+        private Runnable logRenderStateRunnable;
+
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
@@ -53,183 +190,914 @@ public class CloudPaperService extends WallpaperService {
             // Initialize settings manager and load settings
             settingsManager = new SettingsManager(CloudPaperService.this);
             animationSettings = settingsManager.loadSettings();
+            displaySettings = animationSettings;
 
-            // Register preference change listener
+            // Register settings change listener
             settingsManager.registerListener(this);
 
-            // Initialize sky paint with solid color
+            // Initialize sky paint (its color is set from the settings when drawing)
             skyPaint = new Paint();
-            skyPaint.setColor(Color.parseColor(animationSettings.skyColor));
             skyPaint.setStyle(Paint.Style.FILL);
 
+            // Initialize cloud paint, which colors the cloud mask white and scales it up to the screen
+            cloudPaint = new Paint();
+            cloudPaint.setColor(Color.WHITE);
+
+            // Watch the power state, and start in the tier it calls for
+            powerMonitor = new PowerMonitor(CloudPaperService.this, this);
+            powerMonitor.start();
+            powerTier = powerMonitor.getTier(animationSettings);
+            qualityGovernor.setMinLevel(minQualityLevel());
+
             // Initialize cloud renderer
             cloudRenderer = new CloudRenderer(animationSettings);
+            applyQuality();
 
-            // Initialize animation
-            handler = new Handler(Looper.getMainLooper());
-            frameSpacingMillis = 1000 / animationSettings.framesPerSecond;
-            animationStartTime = System.currentTimeMillis();
+            // Initialize animation, on the vsyncs of the display (0, which the pacer takes as
+            // 60 Hz, if it can't be found)
+            final Display display = ((DisplayManager) getSystemService(DISPLAY_SERVICE)).getDisplay(Display.DEFAULT_DISPLAY);
+            refreshRate = display != null ? display.getRefreshRate() : 0;
+            frameSpacingMillis = frameSpacingFor(animationSettings);
+            animationBaseTime = SystemClock.uptimeMillis();
 
-            createDrawRunnable();
+            createDrawCallbacks();
+            createGenerateRunnable();
+            mainHandler = new Handler(Looper.getMainLooper());
+            createLogTimingsRunnables();
 
             visible = false;
+
+            // Start the threads last; starting them publishes everything above to them
+            renderThread = new HandlerThread("CloudPaperRender");
+            renderThread.start();
+            renderHandler = new Handler(renderThread.getLooper());
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Each thread with a looper has its own Choreographer
+                    choreographer = Choreographer.getInstance();
+                }
+            });
+            presentThread = new HandlerThread("CloudPaperPresent");
+            presentThread.start();
+            presentHandler = new Handler(presentThread.getLooper());
         }
 
         @Override
         public void onSurfaceCreated(SurfaceHolder holder) {
             super.onSurfaceCreated(holder);
-            // Surface is ready - we can start drawing
+            // Surface is ready - drawing starts once onSurfaceChanged gives us its size
         }
 
         @Override
         public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             super.onSurfaceChanged(holder, format, width, height);
 
-            // Store the surface dimensions
-            surfaceWidth = width;
-            surfaceHeight = height;
+            synchronized (surfaceLock) {
+                surfaceReady = true;
+            }
 
-            // Update cloud renderer size
-            cloudRenderer.setSurfaceSize(width, height);
+            // Resize and redraw on the render thread
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopAnimation();
+
+                    // Store the surface dimensions
+                    surfaceWidth = width;
+                    surfaceHeight = height;
+
+                    // Show the clouds from last time while the renderer gets going
+                    if (!snapshotChecked) {
+                        snapshotChecked = true;
+                        showSnapshot();
+                    }
 
-            // Generate clouds and redraw
-            draw();
+                    // Update cloud renderer size
+                    cloudRenderer.setSurfaceSize(width, height);
+                    updateLoopCache();
+
+                    // Generate clouds and redraw
+                    changeGate.reset();
+                    draw(SystemClock.uptimeMillis());
+
+                    if (visible) {
+                        startAnimation();
+                    }
+                }
+            });
         }
 
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
-            super.onSurfaceDestroyed(holder);
             visible = false;
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopAnimation();
+                }
+            });
+
+            // Waits for a draw in progress (but not for cloud generation) to finish
+            synchronized (surfaceLock) {
+                surfaceReady = false;
+            }
+
+            super.onSurfaceDestroyed(holder);
         }
 
         @Override
         public void onVisibilityChanged(boolean visible) {
             this.visible = visible;
 
-            if (visible) {
-                // Wallpaper is visible - start animation
-                handler.post(drawRunnable);
-            } else {
-                // Wallpaper is not visible - stop animation to save battery
-                handler.removeCallbacks(drawRunnable);
+            if (LOG_FRAME_TIMING) {
+                mainHandler.removeCallbacks(logTimingsRunnable);
+                if (visible) {
+                    mainHandler.postDelayed(logTimingsRunnable, LOG_TIMINGS_INTERVAL_MILLIS);
+                }
             }
+
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (CloudPaperEngine.this.visible) {
+                        // Wallpaper is visible - start animation
+                        startAnimation();
+                    } else {
+                        // Wallpaper is not visible - stop animation to save battery
+                        stopAnimation();
+                        saveSnapshot();
+                    }
+                }
+            });
         }
 
         @Override
         public void onDestroy() {
             super.onDestroy();
             visible = false;
-            handler.removeCallbacks(drawRunnable);
 
-            // Unregister preference change listener
+            // Unregister settings change listener
             settingsManager.unregisterListener(this);
+            powerMonitor.stop();
+            mainHandler.removeCallbacks(logTimingsRunnable);
+
+            // Stop the threads, discarding any work they have not started except releasing the
+            // renderer. That includes any stopAnimation() already posted, so it stops the animation
+            // itself first: the vsync callbacks it asked for are not messages of the handler.
+            presentHandler.removeCallbacksAndMessages(null);
+            presentThread.quitSafely();
+            renderHandler.removeCallbacksAndMessages(null);
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopAnimation();
+                    released = true;
+                    saveSnapshot();
+                    cloudRenderer.release();
+                    if (loopCache != null) {
+                        loopCache.close();
+                        loopCache = null;
+                    }
+                }
+            });
+            renderThread.quitSafely();
         }
 
         @Override
-        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        public void onSettingsChanged(final AnimationSettings newSettings) {
             Log.d("CloudPaper", "Settings changed, reloading...");
 
-            // Stop current animation
-            handler.removeCallbacks(drawRunnable);
+            // Hand the (immutable) snapshot to the render thread
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applySettings(newSettings);
+                }
+            });
+        }
 
-            // Reload settings
-            animationSettings = settingsManager.loadSettings();
+        @Override
+        public void onPowerStateChanged() {
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyPowerTier();
+                }
+            });
+        }
 
-            // Update sky color
-            skyPaint.setColor(Color.parseColor(animationSettings.skyColor));
+        /**
+         * Switches the animation to the power tier the power state calls for, if it isn't in it
+         * already. Runs on the render thread.
+         */
+        private void applyPowerTier() {
+            if (!updatePowerTier()) {
+                return;
+            }
+            applyQuality();
+            frameSpacingMillis = frameSpacingFor(animationSettings);
+            if (visible) {
+                startAnimation();
+            }
+        }
 
-            // Recreate cloud renderer with new settings
-            cloudRenderer = new CloudRenderer(animationSettings);
-            if (surfaceWidth > 0 && surfaceHeight > 0) {
-                cloudRenderer.setSurfaceSize(surfaceWidth, surfaceHeight);
+        /**
+         * Picks the power tier for the current settings and power state, holding the quality
+         * governor to it. Returns whether the tier changed. Runs on the render thread.
+         */
+        private boolean updatePowerTier() {
+            final int tier = powerMonitor.getTier(animationSettings);
+            if (tier == powerTier) {
+                return false;
             }
+            powerTier = tier;
+            Log.i("CloudPaper", powerMonitor.describe(tier));
+            qualityGovernor.setMinLevel(minQualityLevel());
+            return true;
+        }
+
+        /**
+         * The level of detail the quality governor must stay at or below in the power tier.
+         */
+        private int minQualityLevel() {
+            return powerTier == PowerMonitor.TIER_REDUCED ? QualityGovernor.COARSE_BLOCKS_LEVEL : 0;
+        }
+
+        /**
+         * The time between frames for the given settings in the power tier.
+         */
+        private long frameSpacingFor(AnimationSettings settings) {
+            return PowerMonitor.frameSpacingMillis(settings, powerTier);
+        }
+
+        /**
+         * The time the quality governor allows a frame in the power tier: the time between
+         * frames, except in TIER_STATIC, whose frames are so far apart that any frame would fit
+         * and the governor would only ever raise the detail; there it is the time between
+         * frames at the settings' own frame rate.
+         */
+        private long frameBudgetMillis() {
+            return powerTier == PowerMonitor.TIER_STATIC ? 1000 / animationSettings.framesPerSecond : frameSpacingMillis;
+        }
 
-            // Update frame spacing and reset animation timer
-            frameSpacingMillis = 1000 / animationSettings.framesPerSecond;
-            animationStartTime = System.currentTimeMillis();
+        /**
+         * Switches to new settings, touching only what the changed settings affect, so the
+         * animation carries on without a jump. Runs on the render thread.
+         */
+        private void applySettings(AnimationSettings newSettings) {
+            final AnimationSettings oldSettings = animationSettings;
+            final int oldPowerTier = powerTier;
+            animationSettings = newSettings;
 
-            // Recreate draw runnable with new frame spacing
-            createDrawRunnable();
+            // Colors and smoothing only need the paints changed, which the next draw does
+            displaySettings = newSettings;
+
+            updatePowerTier();
+            final SettingsChange change = new SettingsChange(oldSettings, oldPowerTier, newSettings, powerTier);
+
+            // Keep the clouds where they are now, and move them on from there at the new rates
+            if (change.ratesChanged) {
+                final long now = SystemClock.uptimeMillis();
+                final float elapsedMillis = (float)(now - animationBaseTime);
+                baseXOffset += elapsedMillis * oldSettings.driftX;
+                baseYOffset += elapsedMillis * oldSettings.driftY;
+                baseZOffset += elapsedMillis * oldSettings.evolutionRate;
+                animationBaseTime = now;
+            }
+
+            // Density, noise frequency and scrolling are read by the renderer
+            // for each frame; it only reallocates its buffers if the number of blocks changed.
+            // What frames cost now has little to do with what they cost before.
+            qualityGovernor.reset();
+            changeGate.reset();
+            applyQuality();
+            updateLoopCache();
+            frameSpacingMillis = frameSpacingFor(newSettings);
 
-            // Restart animation if visible
             if (visible) {
-                handler.post(drawRunnable);
+                // A change of density alone is shown right away, by remapping the last frame's noise
+                if (change.densityOnlyChanged && !newSettings.pipelinedFrames) {
+                    final CloudFrame remapped = cloudRenderer.remapClouds();
+                    if (remapped != null) {
+                        present(remapped);
+                    }
+                }
+
+                final boolean pipelinedFramesDontFit = pipelineFrames != null
+                        && !cloudRenderer.canGenerate(pipelineFrames[0].frame);
+                switch (change.restart(pipelinedFramesDontFit, cloudRenderer.isRefining(), animationIdle)) {
+                    case SettingsChange.RESTART:
+                        startAnimation();
+                        break;
+                    case SettingsChange.DRAW_NOW:
+                        startPacer(System.nanoTime() + leadMillis * 1_000_000L);
+                        scheduleDraw();
+                        break;
+                    case SettingsChange.RESCHEDULE:
+                        startPacer(prevFrameNanos + frameSpacingMillis * 1_000_000L);
+                        scheduleDraw();
+                        break;
+                }
             }
 
             Log.d("CloudPaper", "Settings reload complete");
         }
 
         /**
-         * Creates the draw runnable with current frame spacing
+         * Hands the renderer the settings with as much detail as the quality governor allows,
+         * or all of it when looping (playing back a loop costs next to nothing, and its frames
+         * are saved). Runs on the render thread.
+         */
+        private void applyQuality() {
+            final boolean fullQuality = animationSettings.loopMillis > 0;
+            cloudRenderer.setOctaves(fullQuality ? CloudRenderer.FULL_OCTAVES : qualityGovernor.getOctaves());
+            cloudRenderer.setAnimationSettings(fullQuality ? animationSettings : qualityGovernor.limit(animationSettings));
+        }
+
+        /**
+         * Tells the quality governor how long a frame took, changing the detail of the frames
+         * after it if the governor says so. Returns whether that changed the size of the
+         * renderer's frames, so that pipelined frames no longer fit. Runs on the render thread.
+         */
+        private boolean governFrame(long frameMillis) {
+            if (animationSettings.loopMillis > 0 || !qualityGovernor.recordFrame(frameMillis, frameBudgetMillis())) {
+                return false;
+            }
+            applyQuality();
+            changeGate.reset();
+            Log.d("CloudPaper", "Quality now " + qualityGovernor.getOctaves() + " octaves, blocks "
+                    + qualityGovernor.getBlockScale() + "x pixelSize");
+            return pipelineFrames != null && !cloudRenderer.canGenerate(pipelineFrames[0].frame);
+        }
+
+        /**
+         * Opens the loop cache for the current settings and surface size, unless it is open for
+         * them already, or closes it when not looping. Runs on the render thread.
+         */
+        private void updateLoopCache() {
+            final CloudFrame frame = cloudRenderer.getFrame();
+            if (loopCache != null && (animationSettings.loopMillis == 0 || frame == null
+                    || !loopCache.matches(frame, animationSettings))) {
+                loopCache.close();
+                loopCache = null;
+            }
+            if (loopCache == null && animationSettings.loopMillis > 0 && frame != null) {
+                final String fileName = isPreview() ? PREVIEW_LOOP_CACHE_FILE : LOOP_CACHE_FILE;
+                loopCache = LoopCache.open(new File(getFilesDir(), fileName), frame, animationSettings);
+            }
+        }
+
+        /**
+         * Shows the snapshot saved last time, if it was made for this surface size and these
+         * settings, and carries the animation on from its time. Runs on the render thread.
+         */
+        private void showSnapshot() {
+            final FrameSnapshot snapshot = FrameSnapshot.load(snapshotFile());
+            if (snapshot == null || !snapshot.matches(animationSettings, surfaceWidth, surfaceHeight)) {
+                return;
+            }
+            final CloudFrame frame = snapshot.toFrame(animationSettings);
+            if (frame == null) {
+                return;
+            }
+            present(frame);
+            baseXOffset = snapshot.getXOffset();
+            baseYOffset = snapshot.getYOffset();
+            baseZOffset = snapshot.getZOffset();
+            animationBaseTime = SystemClock.uptimeMillis();
+            Log.d("CloudPaper", "Showed the snapshot saved "
+                    + (System.currentTimeMillis() - snapshot.getSavedMillis()) + "ms ago");
+        }
+
+        /**
+         * Saves the last frame generated as the snapshot to show next time, if it changed since
+         * it was last saved. Runs on the render thread.
+         */
+        private void saveSnapshot() {
+            if (!snapshotDue || lastFrame == null) {
+                return;
+            }
+            snapshotDue = false;
+            FrameSnapshot.save(snapshotFile(), lastFrame, lastSettings, surfaceWidth, surfaceHeight,
+                    lastXOffset, lastYOffset, lastZOffset);
+        }
+
+        /** The file the snapshot is kept in. */
+        private File snapshotFile() {
+            return new File(getFilesDir(), isPreview() ? PREVIEW_SNAPSHOT_FILE : SNAPSHOT_FILE);
+        }
+
+        /**
+         * Starts (or restarts) animating with the current settings. Runs on the render thread.
+         */
+        private void startAnimation() {
+            stopAnimation();
+            changeGate.reset();
+            if (!animationSettings.pipelinedFrames) {
+                // The first frame is due as soon as it can be ready, judging by how long frames have taken
+                startPacer(System.nanoTime() + leadMillis * 1_000_000L);
+                scheduleDraw();
+            } else if (surfaceWidth > 0 && surfaceHeight > 0) {
+                // Likewise for pipelined frames
+                startPacer(System.nanoTime() + generateMillis * 1_000_000L);
+                if (pipelineFrames == null || !cloudRenderer.canGenerate(pipelineFrames[0].frame)) {
+                    createPipelineFrames();
+                }
+                renderHandler.post(generateRunnable);
+            }
+        }
+
+        /**
+         * Starts the frame pacer's grid of frame times at the given time, at the current frame
+         * spacing and the display's refresh rate. Runs on the render thread.
+         */
+        private void startPacer(long firstFrameNanos) {
+            framePacer.start(firstFrameNanos, frameSpacingMillis, refreshRate);
+        }
+
+        /**
+         * Asks for the vsync to start generating the next frame on, replacing any request
+         * already made (and dropping a frame waiting to be shown). Runs on the render thread.
+         */
+        private void scheduleDraw() {
+            choreographer.removeFrameCallback(drawCallback);
+            choreographer.removeFrameCallback(presentCallback);
+            pendingFrame = null;
+            choreographer.postFrameCallbackDelayed(drawCallback,
+                    framePacer.startDelayMillis(System.nanoTime(), leadMillis * 1_000_000L));
+        }
+
+        /**
+         * Stops animating. Runs on the render thread.
          */
-        private void createDrawRunnable() {
-            drawRunnable = new Runnable() {
+        private void stopAnimation() {
+            choreographer.removeFrameCallback(drawCallback);
+            choreographer.removeFrameCallback(presentCallback);
+            pendingFrame = null;
+            renderHandler.removeCallbacks(generateRunnable);
+            waitingForFrame = false;
+            animationIdle = false;
+            pipelineEpoch++;
+        }
+
+        /**
+         * Creates the draw callback and the present callback, which run on the render thread
+         * while the wallpaper is visible. The draw callback runs on the vsync that leaves time
+         * to generate the next frame before it is due, and the present callback shows it on the
+         * vsync it is due on; then the draw callback is asked for again, for the frame a frame
+         * spacing later (or a whole number of them while the clouds aren't changing visibly).
+         * One that still runs once the wallpaper is hidden, or the renderer released, does nothing.
+         */
+        private void createDrawCallbacks() {
+            drawCallback = new Choreographer.FrameCallback() {
                 @Override
-                public void run() {
-                    final long newTimeMillis = System.currentTimeMillis();
-                    final long elapsedMillis = newTimeMillis - prevFrameMillis;
-                    prevFrameMillis = newTimeMillis;
-                    Log.d("CloudPaper", "Beginning new run just " + elapsedMillis + " millis later.");
-                    draw();
-                    final long afterDrawMillis = System.currentTimeMillis();
-                    final long frameDelay = frameSpacingMillis - (afterDrawMillis - newTimeMillis);
-                    if (visible) {
-                        Log.d("CloudPaper", "Will schedule to run again in " + frameDelay + "ms");
-                        handler.postDelayed(this, frameDelay);
+                public void doFrame(long frameTimeNanos) {
+                    animationIdle = false;
+                    if (released || !visible) {
+                        return;
+                    }
+                    if (!framePacer.isDueToStart(frameTimeNanos, leadMillis * 1_000_000L)) {
+                        // The delay asked for is rounded down, so this can be a vsync early
+                        scheduleDraw();
+                        return;
+                    }
+                    final long frameNanos = framePacer.getNextFrameNanos();
+                    prevFrameNanos = frameNanos;
+
+                    // The clouds as they will be when the frame is shown
+                    final long startMillis = SystemClock.uptimeMillis();
+                    final CloudFrame frame = generateChangedFrame(frameNanos / 1_000_000L);
+                    final long generateMillis = SystemClock.uptimeMillis() - startMillis;
+                    // Allow for the longest a frame has taken lately, but not more than the time
+                    // there is between frames, or the next one couldn't start in time either
+                    leadMillis = Math.min(frameSpacingMillis,
+                            Math.max(generateMillis, leadMillis - leadMillis / LEAD_DECAY_FRAMES));
+                    if (frame == null) {
+                        scheduleNextDraw();
+                    } else {
+                        pendingFrame = frame;
+                        choreographer.postFrameCallbackDelayed(presentCallback, framePacer.showDelayMillis(System.nanoTime()));
                     }
                 }
             };
+            presentCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (released || !visible) {
+                        pendingFrame = null;
+                        return;
+                    }
+                    if (!framePacer.isDueToShow(frameTimeNanos)) {
+                        choreographer.postFrameCallback(this);
+                        return;
+                    }
+                    if (frameTimeNanos >= framePacer.lateNanos()) {
+                        frameTimings.recordLate();
+                    }
+                    presentGenerated(pendingFrame);
+                    pendingFrame = null;
+                    scheduleNextDraw();
+                }
+            };
+        }
+
+        /**
+         * Moves the frame pacer on to the next frame, and asks for the vsync to start generating
+         * it on, unless the clouds won't change until the settings do. Runs on the render thread.
+         */
+        private void scheduleNextDraw() {
+            final int spacingFrames = spacingFrames();
+            if (spacingFrames == 0) {
+                // Nothing will change until the settings do
+                animationIdle = true;
+                return;
+            }
+            if (!visible) {
+                return;
+            }
+            // Frames that can no longer be ready in time are dropped
+            framePacer.advance(spacingFrames);
+            frameTimings.recordDropped(framePacer.dropMissed(System.nanoTime() + leadMillis * 1_000_000L));
+            scheduleDraw();
         }
 
         /**
-         * Draw the wallpaper with solid sky color and procedural clouds
+         * Draw the wallpaper with solid sky color and procedural clouds, as they are at the given
+         * time (in uptime milliseconds), right away. Runs on the render thread.
          */
-        private void draw() {
-            final long t1 = System.currentTimeMillis();
+        private void draw(long frameTime) {
+            final CloudFrame frame = generateChangedFrame(frameTime);
+            if (frame != null) {
+                presentGenerated(frame);
+            }
+        }
 
-            // Calculate elapsed time in milliseconds since animation started
-            final long currentTime = System.currentTimeMillis();
-            final float elapsedMillis = (float)(currentTime - animationStartTime);
+        /**
+         * Shows the frame generateChangedFrame() just returned, and tells the quality governor
+         * how long generating and showing it took together (not counting any wait for its vsync
+         * in between). Runs on the render thread.
+         */
+        private void presentGenerated(CloudFrame frame) {
+            final long t1 = System.nanoTime();
+            present(frame);
+            governFrame((generateNanos + System.nanoTime() - t1) / 1_000_000L);
+        }
+
+        /**
+         * Generates the clouds as they are at the given time (in uptime milliseconds) into the
+         * renderer's frame, returning it if it needs drawing: null if it looks the same as the
+         * frame on the screen, or the renderer isn't sized yet. A frame returned is to be shown
+         * with presentGenerated(); one that isn't needed is passed to the quality governor
+         * here, with just the time it took to generate. Runs on the render thread.
+         */
+        private CloudFrame generateChangedFrame(long frameTime) {
+            final long t1 = System.nanoTime();
+
+            // Generate clouds with evolution and drift
+            final boolean refining = cloudRenderer.isRefining();
+            final CloudFrame frame = generateFrame(cloudRenderer, null, frameTime);
+
+            final long t2 = System.nanoTime();
+
+            if (frame == null) {
+                return null;
+            }
+            frameTimings.record(FrameTimings.STAGE_GENERATE, t2 - t1);
+            generateNanos = t2 - t1;
+            if (!frameChanged(frame, refining)) {
+                governFrame(generateNanos / 1_000_000L);
+                return null;
+            }
+            return frame;
+        }
+
+        /**
+         * Whether the given frame, just generated, looks different from the one on the screen,
+         * so that it needs drawing. Frames part way through refining always do. Runs on the
+         * render thread.
+         */
+        private boolean frameChanged(CloudFrame frame, boolean refining) {
+            if (!animationSettings.skipUnchangedFrames || refining) {
+                changeGate.reset();
+                return true;
+            }
+            return changeGate.check(frame, lastXOffset, lastYOffset, lastZOffset);
+        }
+
+        /**
+         * How many frame times to wait before generating the next frame: 1 normally, more while
+         * the clouds won't change visibly before then, or 0 if they won't change at all. Runs on
+         * the render thread.
+         */
+        private int spacingFrames() {
+            if (!animationSettings.skipUnchangedFrames || cloudRenderer.isRefining()) {
+                return 1;
+            }
+            return changeGate.spacingFrames(animationSettings, frameSpacingMillis);
+        }
+
+        /**
+         * Generates the clouds for the given time into the given frame, or into the renderer's
+         * own frame if it is null. Returns the frame (null if the renderer isn't sized yet).
+         */
+        private CloudFrame generateFrame(CloudRenderer renderer, CloudFrame frame, long frameTime) {
+            // Calculate elapsed time in milliseconds since the animation base time
+            final float elapsedMillis = (float)(frameTime - animationBaseTime);
 
             // Calculate drift offsets based on elapsed time and drift rates
-            final float xOffset = elapsedMillis * animationSettings.driftX;
-            final float yOffset = elapsedMillis * animationSettings.driftY;
+            final float xOffset = baseXOffset + elapsedMillis * animationSettings.driftX;
+            final float yOffset = baseYOffset + elapsedMillis * animationSettings.driftY;
 
             // Use elapsed time for evolution (z-position in 3D noise)
-            final float zOffset = elapsedMillis * animationSettings.evolutionRate;
+            final float zOffset = baseZOffset + elapsedMillis * animationSettings.evolutionRate;
+
+            final CloudFrame generated;
+            if (animationSettings.loopMillis > 0) {
+                generated = generateLoopFrame(renderer, frame != null ? frame : renderer.getFrame(), frameTime);
+            } else if (frame == null) {
+                generated = renderer.generateClouds(xOffset, yOffset, zOffset);
+            } else {
+                renderer.generateClouds(frame, xOffset, yOffset, zOffset);
+                generated = frame;
+            }
+            if (generated != null) {
+                lastFrame = generated;
+                lastSettings = animationSettings;
+                lastXOffset = xOffset;
+                lastYOffset = yOffset;
+                lastZOffset = zOffset;
+                snapshotDue = true;
+            }
+            return generated;
+        }
+
+        /**
+         * Shows the frame of the loop for the given time in the given frame (null if the renderer
+         * isn't sized yet), decoding it from the loop cache, or generating it and saving it there
+         * the first time round. Returns the frame.
+         */
+        private CloudFrame generateLoopFrame(CloudRenderer renderer, CloudFrame frame, long frameTime) {
+            if (frame == null) {
+                return null;
+            }
+            final int loopMillis = animationSettings.loopMillis;
+            final int frameCount = LoopCache.frameCount(animationSettings);
+            final int index = (int) Math.floorMod((frameTime - animationBaseTime) * frameCount / loopMillis,
+                    (long) frameCount);
+            if (loopCache != null && loopCache.read(index, frame, animationSettings)) {
+                return frame;
+            }
+
+            // The clouds at this time within the loop, fading into those one loop earlier, so
+            // that at the end of the loop they are the clouds at its start
+            final float loopTime = (float) index * loopMillis / frameCount;
+            final float earlierTime = loopTime - loopMillis;
+            renderer.generateLoopFrame(frame,
+                    loopTime * animationSettings.driftX, loopTime * animationSettings.driftY,
+                    loopTime * animationSettings.evolutionRate,
+                    earlierTime * animationSettings.driftX, earlierTime * animationSettings.driftY,
+                    earlierTime * animationSettings.evolutionRate,
+                    loopTime / loopMillis);
+            if (loopCache != null) {
+                loopCache.write(index, frame);
+            }
+            return frame;
+        }
+
+        /**
+         * Draws the solid sky color and a generated frame to the surface. Runs on whichever
+         * thread is showing frames.
+         */
+        private void present(CloudFrame frame) {
+            final long t1 = System.nanoTime();
 
-            final long t2 = System.currentTimeMillis();
+            synchronized (surfaceLock) {
+                if (!surfaceReady) {
+                    return;
+                }
+
+                // The paints follow the latest settings, but the scale is that of the frame
+                final AnimationSettings latestSettings = displaySettings;
+                if (paintSettings != latestSettings) {
+                    paintSettings = latestSettings;
+                    skyPaint.setColor(Color.parseColor(latestSettings.skyColor));
+                    cloudPaint.setFilterBitmap(latestSettings.smoothClouds);
+                }
+                final AnimationSettings frameSettings = frame.getAnimationSettings();
 
-            // Generate and draw clouds with evolution and drift
-            final Bitmap cloudBitmap = cloudRenderer.generateClouds(xOffset, yOffset, zOffset);
+                Canvas canvas = null;
+                try {
+                    final long t2 = System.nanoTime();
+                    frameTimings.record(FrameTimings.STAGE_PREPARE, t2 - t1);
 
-            final long t3 = System.currentTimeMillis();
+                    canvas = getSurfaceHolder().lockCanvas();
 
-            Canvas canvas = null;
-            try {
-                canvas = getSurfaceHolder().lockCanvas();
+                    final long t3 = System.nanoTime();
+                    frameTimings.record(FrameTimings.STAGE_LOCK_CANVAS, t3 - t2);
 
-                final long t4 = System.currentTimeMillis();
+                    if (canvas != null) {
+                        // Draw solid sky color
+                        canvas.drawPaint(skyPaint);
+                        // Draw clouds, one texture pixel per block. The blocks may run past the edges.
+                        final Bitmap cloudBitmap = frame.getBitmap();
+                        final int blockSize = frameSettings.pixelSize;
+                        final float left = frame.getOffsetX();
+                        final float top = frame.getOffsetY();
+                        cloudDestRect.set(left, top, left + cloudBitmap.getWidth() * blockSize,
+                                top + cloudBitmap.getHeight() * blockSize);
+                        canvas.drawBitmap(cloudBitmap, null, cloudDestRect, cloudPaint);
 
-                if (canvas != null) {
-                    // Draw solid sky color
-                    canvas.drawRect(0, 0, surfaceWidth, surfaceHeight, skyPaint);
-                    canvas.drawBitmap(cloudBitmap, 0, 0, null);
+                        frameTimings.record(FrameTimings.STAGE_DRAW, System.nanoTime() - t3);
+                    }
+                } finally {
+                    if (canvas != null) {
+                        final long t4 = System.nanoTime();
+                        getSurfaceHolder().unlockCanvasAndPost(canvas);
+                        frameTimings.record(FrameTimings.STAGE_POST, System.nanoTime() - t4);
+                    }
                 }
+            }
+        }
 
-                final long t5 = System.currentTimeMillis();
+        /**
+         * A frame of the pipeline, with the tasks that pass it between the render and present threads.
+         */
+        private class PipelinedFrame {
+            final CloudFrame frame;
+            final PipelinedFrame[] pool;
+            int epoch;
+
+            // The vsync time from which the frame is late, set before it is handed to the present thread
+            long lateNanos;
 
-                Log.d("CloudPaper", "Draw timing: prep=" + (t2-t1) + "ms, generate=" + (t3-t2) +
-                      "ms, lockCanvas=" + (t4-t3) + "ms, drawOps=" + (t5-t4) + "ms, total=" + (t5-t1) + "ms");
+            /** Runs on the present thread half a vsync before the frame's time, to ask for the vsync nearest it */
+            final Runnable presentTask = new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(presentCallback);
+                }
+            };
+
+            /** Runs on the present thread on the frame's vsync */
+            final Choreographer.FrameCallback presentCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (epoch == pipelineEpoch) {
+                        if (frameTimeNanos >= lateNanos) {
+                            frameTimings.recordLate();
+                        }
+                        present(frame);
+                    }
+                    renderHandler.post(releaseTask);
+                }
+            };
 
-            } finally {
-                if (canvas != null) {
-                    long t6pre = System.currentTimeMillis();
-                    getSurfaceHolder().unlockCanvasAndPost(canvas);
-                    long t6post = System.currentTimeMillis();
-                    Log.d("CloudPaper", "unlockCanvasAndPost took " + (t6post-t6pre) + "ms");
+            /** Runs on the render thread once the frame has been shown (or skipped) */
+            final Runnable releaseTask = new Runnable() {
+                @Override
+                public void run() {
+                    releaseFrame(PipelinedFrame.this);
                 }
+            };
+
+            PipelinedFrame(CloudFrame frame, PipelinedFrame[] pool) {
+                this.frame = frame;
+                this.pool = pool;
+            }
+        }
+
+        /**
+         * Creates the frames of the pipeline for the current renderer and surface size. Frames
+         * still out with the present thread are dropped when they come back. Runs on the render thread.
+         */
+        private void createPipelineFrames() {
+            pipelineFrames = new PipelinedFrame[PIPELINE_FRAMES];
+            freeFrames.clear();
+            for (int i = 0; i < PIPELINE_FRAMES; i++) {
+                pipelineFrames[i] = new PipelinedFrame(cloudRenderer.createFrame(), pipelineFrames);
+                freeFrames.add(pipelineFrames[i]);
+            }
+        }
+
+        /**
+         * Takes back a frame from the present thread. Runs on the render thread.
+         */
+        private void releaseFrame(PipelinedFrame pipelinedFrame) {
+            if (pipelinedFrame.pool != pipelineFrames) {
+                return;
+            }
+            freeFrames.add(pipelinedFrame);
+            if (waitingForFrame) {
+                waitingForFrame = false;
+                renderHandler.post(generateRunnable);
             }
         }
+
+        /**
+         * Creates the runnables that log the frame timings while LOG_FRAME_TIMING is on: one on
+         * the main thread every LOG_TIMINGS_INTERVAL_MILLIS while visible, summarizing each
+         * stage, which hands over to one on the render thread for the power tier and the tile
+         * cache's counts, which belong to it.
+         */
+        private void createLogTimingsRunnables() {
+            logTimingsRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    final StringBuilder message = new StringBuilder("Frame timings (p50/p95/p99/max ms):");
+                    for (int stage = 0; stage < FrameTimings.STAGE_COUNT; stage++) {
+                        frameTimings.summarize(stage, timingsSummary);
+                        message.append(' ').append(FrameTimings.stageName(stage)).append('=');
+                        appendMillis(message, timingsSummary.p50).append('/');
+                        appendMillis(message, timingsSummary.p95).append('/');
+                        appendMillis(message, timingsSummary.p99).append('/');
+                        appendMillis(message, timingsSummary.max);
+                    }
+                    message.append(", frames=").append(frameTimings.getCount(FrameTimings.STAGE_POST))
+                            .append(", dropped=").append(frameTimings.getDroppedFrames())
+                            .append(", late=").append(frameTimings.getLateFrames());
+                    Log.d("CloudPaper", message.toString());
+
+                    renderHandler.post(logRenderStateRunnable);
+                    if (visible) {
+                        mainHandler.postDelayed(this, LOG_TIMINGS_INTERVAL_MILLIS);
+                    }
+                }
+            };
+            logRenderStateRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    final StringBuilder message = new StringBuilder("Power tier ").append(powerTier);
+                    if (animationSettings.tileZStep > 0) {
+                        message.append(", tile cache: hits=").append(cloudRenderer.getTileHits())
+                                .append(", misses=").append(cloudRenderer.getTileMisses())
+                                .append(", evictions=").append(cloudRenderer.getTileEvictions());
+                    }
+                    Log.d("CloudPaper", message.toString());
+                }
+            };
+        }
+
+        /** Appends the given nanoseconds as milliseconds, to a tenth. */
+        private StringBuilder appendMillis(StringBuilder message, long nanos) {
+            return message.append(nanos / 1_000_000L).append('.').append(nanos / 100_000L % 10);
+        }
+
+        /**
+         * Creates the generate runnable, which runs on the render thread. Each run generates the
+         * next frame and schedules it to be shown (unless it looks no different from the one
+         * before), then carries on with the one after it until every frame is in use; a frame
+         * coming back from the present thread picks it up again.
+         */
+        private void createGenerateRunnable() {
+            generateRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    animationIdle = false;
+                    if (released || !visible) {
+                        return;
+                    }
+                    final PipelinedFrame pipelinedFrame = freeFrames.poll();
+                    if (pipelinedFrame == null) {
+                        waitingForFrame = true;
+                        return;
+                    }
+
+                    // If we have fallen behind, don't try to catch up: drop the frames that can't
+                    // be ready in time, judging by how long the last one took
+                    final long startNanos = System.nanoTime();
+                    frameTimings.recordDropped(framePacer.dropMissed(startNanos + generateMillis * 1_000_000L));
+                    final long frameTime = framePacer.getNextFrameNanos() / 1_000_000L;
+
+                    final boolean refining = cloudRenderer.isRefining();
+                    generateFrame(cloudRenderer, pipelinedFrame.frame, frameTime);
+                    final long generateNanos = System.nanoTime() - startNanos;
+                    frameTimings.record(FrameTimings.STAGE_GENERATE, generateNanos);
+                    generateMillis = generateNanos / 1_000_000L;
+
+                    if (frameChanged(pipelinedFrame.frame, refining)) {
+                        pipelinedFrame.epoch = pipelineEpoch;
+                        pipelinedFrame.lateNanos = framePacer.lateNanos();
+                        presentHandler.postAtTime(pipelinedFrame.presentTask, framePacer.showRequestMillis());
+                    } else {
+                        // It would look just like the frame before it, so it can be used again at once
+                        freeFrames.add(pipelinedFrame);
+                    }
+                    if (governFrame(generateMillis)) {
+                        // The governor changed the size of the frames; start over with new ones
+                        startAnimation();
+                        return;
+                    }
+                    final int spacingFrames = spacingFrames();
+                    if (spacingFrames == 0) {
+                        // Nothing will change until the settings do
+                        animationIdle = true;
+                        return;
+                    }
+                    framePacer.advance(spacingFrames);
+                    renderHandler.post(this);
+                }
+            };
+        }
     }
 }
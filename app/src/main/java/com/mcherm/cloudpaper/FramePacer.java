@@ -0,0 +1,118 @@
+package com.mcherm.cloudpaper;
+
+/**
+ * Keeps frames to a steady cadence on the display's vsync.
+ *
+ * <p>Frames are due on a grid of times, each frame spacing after the last, starting from
+ * when the pacer was started. A frame is shown on the vsync nearest its time, so the
+ * intervals between frames are whole numbers of vsync periods that average out to the
+ * frame spacing: at 4 frames per second on a 90 Hz display, alternately 22 and 23 vsyncs.
+ * A frame that can't be ready by its time (because the one before took too long) is dropped
+ * and the next one on the grid is aimed for instead, so late frames don't bunch up behind
+ * each other or shift the grid.
+ *
+ * <p>Times are in nanoseconds of the monotonic clock that System.nanoTime(), Choreographer
+ * frame times and SystemClock.uptimeMillis() all use. Not thread safe: use it from the
+ * render thread.
+ */
+class FramePacer {
+
+    private long spacingNanos;
+    private long vsyncNanos;
+    private long nextFrameNanos;
+
+    /**
+     * Starts the grid with a frame at the given time, frameSpacingMillis apart, on a display
+     * refreshing refreshRate times a second.
+     */
+    void start(long firstFrameNanos, long frameSpacingMillis, float refreshRate) {
+        spacingNanos = frameSpacingMillis * 1_000_000L;
+        vsyncNanos = refreshRate > 0 ? (long) (1_000_000_000L / refreshRate) : 16_666_667L;
+        nextFrameNanos = firstFrameNanos;
+    }
+
+    /** When the next frame is due. */
+    long getNextFrameNanos() {
+        return nextFrameNanos;
+    }
+
+    /**
+     * The time from which a vsync is too late to show the next frame on: the vsync after the
+     * one nearest its time.
+     */
+    long lateNanos() {
+        return showNanos() + vsyncNanos;
+    }
+
+    /**
+     * Whether the vsync at the given time is the one to show the next frame on: the vsync
+     * nearest its time, or any after that.
+     */
+    boolean isDueToShow(long vsyncTimeNanos) {
+        return vsyncTimeNanos >= showNanos();
+    }
+
+    /**
+     * Whether the vsync at the given time is the one to start generating the next frame on,
+     * if that takes generateNanos: the last vsync from which it would be ready in time to be
+     * shown, or any after that.
+     */
+    boolean isDueToStart(long vsyncTimeNanos, long generateNanos) {
+        return vsyncTimeNanos > startNanos(generateNanos);
+    }
+
+    /**
+     * How long to wait, from the given time, before asking for the vsync to show the next
+     * frame on, in milliseconds (rounded down, so as not to miss it).
+     */
+    long showDelayMillis(long nowNanos) {
+        return Math.max(0, (showNanos() - nowNanos) / 1_000_000L);
+    }
+
+    /**
+     * How long to wait, from the given time, before asking for the vsync to start generating
+     * the next frame on, if that takes generateNanos, in milliseconds (rounded down).
+     */
+    long startDelayMillis(long nowNanos, long generateNanos) {
+        return Math.max(0, (startNanos(generateNanos) - nowNanos) / 1_000_000L);
+    }
+
+    /**
+     * When to ask for the vsync to show the next frame on, in uptime milliseconds (rounded
+     * down, so as not to miss it).
+     */
+    long showRequestMillis() {
+        return showNanos() / 1_000_000L;
+    }
+
+    /**
+     * Moves the next frame the given number of frame spacings along the grid.
+     */
+    void advance(int frames) {
+        nextFrameNanos += frames * spacingNanos;
+    }
+
+    // The earliest a vsync can be to be the one nearest the next frame's time
+    private long showNanos() {
+        return nextFrameNanos - vsyncNanos / 2;
+    }
+
+    // The latest a vsync can be and not be the last one to start generating the next frame on
+    private long startNanos(long generateNanos) {
+        return showNanos() - generateNanos - vsyncNanos;
+    }
+
+    /**
+     * Drops frames whose vsync will have passed by the given time, leaving the next frame
+     * the first one on the grid that can still be shown on time. Returns how many were dropped.
+     */
+    int dropMissed(long readyNanos) {
+        final long late = readyNanos - lateNanos();
+        if (late <= 0) {
+            return 0;
+        }
+        final long missed = late / spacingNanos + 1;
+        nextFrameNanos += missed * spacingNanos;
+        return (int) missed;
+    }
+}
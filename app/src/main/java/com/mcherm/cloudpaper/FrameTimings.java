@@ -0,0 +1,166 @@
+package com.mcherm.cloudpaper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps how long the last CAPACITY frames took at each stage of drawing, in nanoseconds, and
+ * counts the frames dropped or shown late, cheaply enough to be always on.
+ *
+ * <p>Each stage's times go in a ring, written by one thread at a time (the render thread
+ * generates; whichever thread holds surfaceLock presents) and readable from any thread
+ * without locking. Recording allocates nothing and never waits. A reader copies the ring and
+ * then checks how far the writer got meanwhile, discarding any time that may have been
+ * written over, so it sees only whole times from the last CAPACITY frames (all but the
+ * oldest, unless the writer gets far ahead while the ring is copied). summarize() sorts the
+ * copy in place for the percentiles; with a Summary kept for the purpose, that allocates
+ * nothing either.
+ */
+class FrameTimings {
+
+    /** Frames kept for each stage: a power of two, few enough for an insertion sort */
+    static final int CAPACITY = 256;
+
+    /** Generating the clouds */
+    static final int STAGE_GENERATE = 0;
+    /** Waiting for the surface and setting up the paints, before locking the canvas */
+    static final int STAGE_PREPARE = 1;
+    /** lockCanvas() */
+    static final int STAGE_LOCK_CANVAS = 2;
+    /** Drawing the sky and the clouds to the canvas */
+    static final int STAGE_DRAW = 3;
+    /** unlockCanvasAndPost() */
+    static final int STAGE_POST = 4;
+
+    static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {"generate", "prepare", "lockCanvas", "draw", "post"};
+
+    /**
+     * The times of a stage, as summarize() last found them: how many there were (0 if none),
+     * and the 50th, 95th and 99th percentiles and the longest, in nanoseconds.
+     */
+    static class Summary {
+        final long[] samples = new long[CAPACITY];
+        int count;
+        long p50;
+        long p95;
+        long p99;
+        long max;
+    }
+
+    // For each stage, a ring of times and how many times have ever been recorded
+    private final AtomicLongArray[] rings = new AtomicLongArray[STAGE_COUNT];
+    private final AtomicLong[] counts = new AtomicLong[STAGE_COUNT];
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong lateFrames = new AtomicLong();
+
+    FrameTimings() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            rings[stage] = new AtomicLongArray(CAPACITY);
+            counts[stage] = new AtomicLong();
+        }
+    }
+
+    /** The name of the given stage, for logging. */
+    static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Records how long a frame took at the given stage. Only one thread at a time may record
+     * each stage.
+     */
+    void record(int stage, long nanos) {
+        final AtomicLong count = counts[stage];
+        final long index = count.get();
+        rings[stage].lazySet((int) (index & (CAPACITY - 1)), nanos);
+        // Publishes the time, which was written first
+        count.lazySet(index + 1);
+    }
+
+    /** Counts frames dropped because they couldn't be ready in time. */
+    void recordDropped(int frames) {
+        if (frames > 0) {
+            droppedFrames.addAndGet(frames);
+        }
+    }
+
+    /** Counts a frame shown after the vsync it was due on. */
+    void recordLate() {
+        lateFrames.incrementAndGet();
+    }
+
+    /** How many frames have been dropped since the timings were created. */
+    long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** How many frames have been shown late since the timings were created. */
+    long getLateFrames() {
+        return lateFrames.get();
+    }
+
+    /** How many times have been recorded for the given stage since the timings were created. */
+    long getCount(int stage) {
+        return counts[stage].get();
+    }
+
+    /**
+     * Fills in the given summary from the latest times of the given stage. Can be called from
+     * any thread, but each summary should be used by one thread at a time.
+     */
+    void summarize(int stage, Summary summary) {
+        final AtomicLong count = counts[stage];
+        final AtomicLongArray ring = rings[stage];
+        final long end = count.get();
+        long start = Math.max(0, end - CAPACITY);
+        for (long index = start; index < end; index++) {
+            summary.samples[(int) (index - start)] = ring.get((int) (index & (CAPACITY - 1)));
+        }
+
+        // The writer may since have written over the oldest times, or be part way through the
+        // time that comes after the last one it published
+        final long overwritten = count.get() - CAPACITY + 1;
+        int skip = 0;
+        if (overwritten > start) {
+            skip = (int) Math.min(end - start, overwritten - start);
+            start += skip;
+        }
+        final int n = (int) (end - start);
+        if (skip > 0) {
+            System.arraycopy(summary.samples, skip, summary.samples, 0, n);
+        }
+
+        summary.count = n;
+        if (n == 0) {
+            summary.p50 = summary.p95 = summary.p99 = summary.max = 0;
+            return;
+        }
+        sort(summary.samples, n);
+        summary.p50 = percentile(summary.samples, n, 50);
+        summary.p95 = percentile(summary.samples, n, 95);
+        summary.p99 = percentile(summary.samples, n, 99);
+        summary.max = summary.samples[n - 1];
+    }
+
+    // Sorts the first n values in place. Arrays.sort() may allocate a work array, on some runtimes
+    private static void sort(long[] values, int n) {
+        for (int i = 1; i < n; i++) {
+            final long value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+
+    // The nearest-rank percentile of the first n sorted samples
+    private static long percentile(long[] sorted, int n, int percent) {
+        final int rank = (n * percent + 99) / 100;
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,179 @@
+package com.mcherm.cloudpaper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Watches the device's power state (battery saver, whether it is plugged in, and from API 29
+ * its thermal status) and picks the power tier the settings call for in that state.
+ *
+ * <p>The tiers go from TIER_FULL (frames as the settings ask) through TIER_REDUCED (half the
+ * frame rate, coarser blocks) to TIER_STATIC (a new frame only every few seconds). Each state
+ * the settings name a tier for (batterySaverTier, unpluggedTier, thermalTier) asks for at
+ * least that tier, and a severe thermal status or worse always asks for TIER_STATIC.
+ *
+ * <p>The state is updated on the main thread, where the system reports it, and can be read
+ * on any thread; the listener is called on the main thread whenever it changes.
+ */
+class PowerMonitor {
+
+    /**
+     * Told whenever the power state changes.
+     */
+    interface PowerListener {
+        void onPowerStateChanged();
+    }
+
+    /** Frames as the settings ask for them */
+    static final int TIER_FULL = 0;
+
+    /** Half the frame rate, and blocks at least twice pixelSize */
+    static final int TIER_REDUCED = 1;
+
+    /** A frame every STATIC_FRAME_MILLIS */
+    static final int TIER_STATIC = 2;
+
+    /** Time between frames in TIER_STATIC */
+    static final long STATIC_FRAME_MILLIS = 5000;
+
+    private static final String[] TIER_NAMES = {"full", "reduced", "static"};
+
+    private final Context context;
+    private final PowerListener listener;
+    private final PowerManager powerManager;
+    private boolean started;
+
+    private volatile boolean batterySaver;
+    private volatile boolean pluggedIn = true;
+    private volatile int thermalStatus;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final boolean newPluggedIn = Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())
+                    ? isPluggedIn(intent) : pluggedIn;
+            update(powerManager.isPowerSaveMode(), newPluggedIn, thermalStatus);
+        }
+    };
+
+    // Only created on API 29 and up, where the interface exists
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    PowerMonitor(Context context, PowerListener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Starts watching, reading the current state first. Call on the main thread.
+     */
+    void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        batterySaver = powerManager.isPowerSaveMode();
+        final IntentFilter filter = new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        // The battery broadcast is sticky, so registering for it returns the latest one
+        final Intent battery = context.registerReceiver(receiver, filter);
+        if (battery != null) {
+            pluggedIn = isPluggedIn(battery);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalStatus = powerManager.getCurrentThermalStatus();
+            thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    update(batterySaver, pluggedIn, status);
+                }
+            };
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+    }
+
+    /**
+     * Stops watching. Call on the main thread.
+     */
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        context.unregisterReceiver(receiver);
+        if (thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+    }
+
+    /**
+     * The tier the given settings call for in the current power state.
+     */
+    int getTier(AnimationSettings animationSettings) {
+        return tierFor(animationSettings, batterySaver, pluggedIn, thermalStatus);
+    }
+
+    /**
+     * The tier the given settings call for in the given power state.
+     */
+    static int tierFor(AnimationSettings animationSettings, boolean batterySaver, boolean pluggedIn,
+                       int thermalStatus) {
+        int tier = TIER_FULL;
+        if (batterySaver) {
+            tier = Math.max(tier, animationSettings.batterySaverTier);
+        }
+        if (!pluggedIn) {
+            tier = Math.max(tier, animationSettings.unpluggedTier);
+        }
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            tier = TIER_STATIC;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            tier = Math.max(tier, animationSettings.thermalTier);
+        }
+        return Math.min(tier, TIER_STATIC);
+    }
+
+    /**
+     * The time between frames for the given settings in the given tier.
+     */
+    static long frameSpacingMillis(AnimationSettings animationSettings, int tier) {
+        switch (tier) {
+            case TIER_STATIC:
+                return STATIC_FRAME_MILLIS;
+            case TIER_REDUCED:
+                return 2000 / animationSettings.framesPerSecond;
+            default:
+                return 1000 / animationSettings.framesPerSecond;
+        }
+    }
+
+    /**
+     * A description of a tier and the current power state, for the logs.
+     */
+    String describe(int tier) {
+        return "Power tier " + TIER_NAMES[tier] + " (battery saver " + (batterySaver ? "on" : "off")
+                + ", " + (pluggedIn ? "plugged in" : "on battery") + ", thermal status " + thermalStatus + ")";
+    }
+
+    private static boolean isPluggedIn(Intent battery) {
+        return battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void update(boolean newBatterySaver, boolean newPluggedIn, int newThermalStatus) {
+        // The battery broadcast also comes for every change of charge, which doesn't matter here
+        if (newBatterySaver == batterySaver && newPluggedIn == pluggedIn && newThermalStatus == thermalStatus) {
+            return;
+        }
+        batterySaver = newBatterySaver;
+        pluggedIn = newPluggedIn;
+        thermalStatus = newThermalStatus;
+        listener.onPowerStateChanged();
+    }
+}
@@ -0,0 +1,141 @@
+package com.mcherm.cloudpaper;
+
+import com.mcherm.cloudpaper.renderer.CloudRenderer;
+
+import java.util.Arrays;
+
+/**
+ * Picks how much detail frames can afford, from how long recent frames took.
+ *
+ * <p>The settings chosen by the user are the most detail there can be (level 0). When the
+ * 90th percentile of the last WINDOW_FRAMES frame times is over the time there is for a
+ * frame, the governor steps down a level, adding fewer octaves of noise or using bigger
+ * blocks. It steps back up once the frames at the level above would be expected to take at
+ * most UP_HEADROOM of the time there is. It waits for a whole window of frames after each
+ * change before judging again, and longer before stepping up: UP_WINDOWS windows, or twice
+ * as long as the last time if the last step up had to be taken back within a couple of
+ * windows, so that it doesn't go back and forth.
+ * A lowest level can be set, to keep frames coarse whatever they cost (see PowerMonitor).
+ * Not thread safe: use it from the render thread.
+ */
+class QualityGovernor {
+
+    /** Octaves of noise at each level, from the most detail to the least, which is a single octave */
+    private static final int[] LEVEL_OCTAVES = {CloudRenderer.FULL_OCTAVES, CloudRenderer.FULL_OCTAVES - 1,
+            CloudRenderer.FULL_OCTAVES, CloudRenderer.FULL_OCTAVES - 1, 1};
+
+    /** How many times pixelSize the blocks are at each level */
+    private static final int[] LEVEL_BLOCK_SCALES = {1, 1, 2, 2, 2};
+
+    /** The first level with blocks bigger than pixelSize */
+    static final int COARSE_BLOCKS_LEVEL = 2;
+
+    /** Roughly what a frame costs at each level, relative to level 0 */
+    private static final float[] LEVEL_COSTS = {1.0f, 0.76f, 0.35f, 0.22f, 0.11f};
+
+    /** Frames judged at a time */
+    private static final int WINDOW_FRAMES = 60;
+
+    /** Windows to wait after a change before stepping up, at first and at most */
+    private static final int UP_WINDOWS = 3;
+    private static final int MAX_UP_WINDOWS = 48;
+
+    /** Share of a frame's time that the level above should be expected to take, to step up to it */
+    private static final float UP_HEADROOM = 0.75f;
+
+    // The latest frame times in a ring, and a scratch copy to sort
+    private final int[] frameMillis = new int[WINDOW_FRAMES];
+    private final int[] sorted = new int[WINDOW_FRAMES];
+    private int frameCount;
+
+    // Frames since the level last changed
+    private int framesAtLevel;
+    private int level;
+    private int minLevel;
+
+    // Windows to wait before stepping up, and whether the last change was a step up
+    private int upWindows = UP_WINDOWS;
+    private boolean steppedUp;
+
+    /**
+     * Sets the level of detail to stay at or below: 0 to allow all the detail the settings ask
+     * for. If the frames were held at the old lowest level and the new one allows more detail,
+     * they go straight to it, and the governor steps down again if they can't keep up.
+     * Returns whether the level changed.
+     */
+    boolean setMinLevel(int minLevel) {
+        final int oldMinLevel = this.minLevel;
+        this.minLevel = Math.min(minLevel, LEVEL_COSTS.length - 1);
+        if (level >= this.minLevel && !(level == oldMinLevel && this.minLevel < oldMinLevel)) {
+            return false;
+        }
+        level = this.minLevel;
+        steppedUp = false;
+        reset();
+        return true;
+    }
+
+    /** Octaves of noise to add together at the current level. */
+    int getOctaves() {
+        return LEVEL_OCTAVES[level];
+    }
+
+    /** How many times the user's pixelSize blocks should be at the current level. */
+    int getBlockScale() {
+        return LEVEL_BLOCK_SCALES[level];
+    }
+
+    /**
+     * The given settings, with the blocks scaled for the current level.
+     */
+    AnimationSettings limit(AnimationSettings animationSettings) {
+        final int blockScale = getBlockScale();
+        return blockScale == 1 ? animationSettings
+                : animationSettings.withPixelSize(animationSettings.pixelSize * blockScale);
+    }
+
+    /**
+     * Forgets the frame times so far (for instance after a pause, or when the frames change
+     * for other reasons), keeping the level.
+     */
+    void reset() {
+        frameCount = 0;
+        framesAtLevel = 0;
+    }
+
+    /**
+     * Records how long a frame took, when there were budgetMillis for it. Returns whether the
+     * level changed, so that the frames should be made differently from now on.
+     */
+    boolean recordFrame(long millis, long budgetMillis) {
+        frameMillis[frameCount % WINDOW_FRAMES] = (int) Math.min(millis, Integer.MAX_VALUE);
+        frameCount++;
+        framesAtLevel++;
+        if (frameCount < WINDOW_FRAMES || framesAtLevel < WINDOW_FRAMES) {
+            return false;
+        }
+        System.arraycopy(frameMillis, 0, sorted, 0, WINDOW_FRAMES);
+        Arrays.sort(sorted);
+        final int percentile = sorted[WINDOW_FRAMES * 9 / 10];
+
+        if (percentile > budgetMillis && level < LEVEL_COSTS.length - 1) {
+            if (steppedUp && framesAtLevel <= 2 * WINDOW_FRAMES) {
+                // The last step up was too far, so be slower to try it again
+                upWindows = Math.min(MAX_UP_WINDOWS, upWindows * 2);
+            } else {
+                upWindows = UP_WINDOWS;
+            }
+            level++;
+            steppedUp = false;
+        } else if (level > minLevel && framesAtLevel >= upWindows * WINDOW_FRAMES
+                && percentile * LEVEL_COSTS[level - 1] / LEVEL_COSTS[level] <= UP_HEADROOM * budgetMillis) {
+            level--;
+            steppedUp = true;
+        } else {
+            return false;
+        }
+        // Frames at the old level say little about the new one
+        reset();
+        return true;
+    }
+}
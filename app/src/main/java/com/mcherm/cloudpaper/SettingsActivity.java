@@ -8,8 +8,10 @@ import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.SeekBar;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -31,6 +33,17 @@ public class SettingsActivity extends Activity {
     private TextView cloudDensityValue;
     private EditText driftXEdit;
     private EditText driftYEdit;
+    private EditText scrollRefreshFramesEdit;
+    private EditText tileZStepEdit;
+    private EditText keyframeMillisEdit;
+    private EditText loopMillisEdit;
+    private Spinner batterySaverTierSpinner;
+    private Spinner unpluggedTierSpinner;
+    private Spinner thermalTierSpinner;
+    private CheckBox smoothCloudsCheckBox;
+    private CheckBox pipelinedFramesCheckBox;
+    private CheckBox progressiveFramesCheckBox;
+    private CheckBox skipUnchangedFramesCheckBox;
     private Button saveButton;
     private Button creditsButton;
 
@@ -43,6 +56,17 @@ public class SettingsActivity extends Activity {
     private Button cloudDensityResetButton;
     private Button driftXResetButton;
     private Button driftYResetButton;
+    private Button smoothCloudsResetButton;
+    private Button pipelinedFramesResetButton;
+    private Button scrollRefreshFramesResetButton;
+    private Button tileZStepResetButton;
+    private Button keyframeMillisResetButton;
+    private Button loopMillisResetButton;
+    private Button progressiveFramesResetButton;
+    private Button batterySaverTierResetButton;
+    private Button unpluggedTierResetButton;
+    private Button thermalTierResetButton;
+    private Button skipUnchangedFramesResetButton;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -72,6 +96,17 @@ public class SettingsActivity extends Activity {
         cloudDensityValue = findViewById(R.id.cloudDensityValue);
         driftXEdit = findViewById(R.id.driftXEdit);
         driftYEdit = findViewById(R.id.driftYEdit);
+        scrollRefreshFramesEdit = findViewById(R.id.scrollRefreshFramesEdit);
+        tileZStepEdit = findViewById(R.id.tileZStepEdit);
+        keyframeMillisEdit = findViewById(R.id.keyframeMillisEdit);
+        loopMillisEdit = findViewById(R.id.loopMillisEdit);
+        batterySaverTierSpinner = findViewById(R.id.batterySaverTierSpinner);
+        unpluggedTierSpinner = findViewById(R.id.unpluggedTierSpinner);
+        thermalTierSpinner = findViewById(R.id.thermalTierSpinner);
+        smoothCloudsCheckBox = findViewById(R.id.smoothCloudsCheckBox);
+        pipelinedFramesCheckBox = findViewById(R.id.pipelinedFramesCheckBox);
+        progressiveFramesCheckBox = findViewById(R.id.progressiveFramesCheckBox);
+        skipUnchangedFramesCheckBox = findViewById(R.id.skipUnchangedFramesCheckBox);
         saveButton = findViewById(R.id.saveButton);
         creditsButton = findViewById(R.id.creditsButton);
 
@@ -84,6 +119,17 @@ public class SettingsActivity extends Activity {
         cloudDensityResetButton = findViewById(R.id.cloudDensityResetButton);
         driftXResetButton = findViewById(R.id.driftXResetButton);
         driftYResetButton = findViewById(R.id.driftYResetButton);
+        smoothCloudsResetButton = findViewById(R.id.smoothCloudsResetButton);
+        pipelinedFramesResetButton = findViewById(R.id.pipelinedFramesResetButton);
+        scrollRefreshFramesResetButton = findViewById(R.id.scrollRefreshFramesResetButton);
+        tileZStepResetButton = findViewById(R.id.tileZStepResetButton);
+        keyframeMillisResetButton = findViewById(R.id.keyframeMillisResetButton);
+        loopMillisResetButton = findViewById(R.id.loopMillisResetButton);
+        progressiveFramesResetButton = findViewById(R.id.progressiveFramesResetButton);
+        batterySaverTierResetButton = findViewById(R.id.batterySaverTierResetButton);
+        unpluggedTierResetButton = findViewById(R.id.unpluggedTierResetButton);
+        thermalTierResetButton = findViewById(R.id.thermalTierResetButton);
+        skipUnchangedFramesResetButton = findViewById(R.id.skipUnchangedFramesResetButton);
     }
 
     private void loadSettings() {
@@ -114,6 +160,39 @@ public class SettingsActivity extends Activity {
 
         // Drift Y
         driftYEdit.setText(String.format("%.4f", settings.driftY));
+
+        // Smooth Clouds
+        smoothCloudsCheckBox.setChecked(settings.smoothClouds);
+
+        // Pipelined Frames
+        pipelinedFramesCheckBox.setChecked(settings.pipelinedFrames);
+
+        // Progressive Frames
+        progressiveFramesCheckBox.setChecked(settings.progressiveFrames);
+
+        // Skip Unchanged Frames
+        skipUnchangedFramesCheckBox.setChecked(settings.skipUnchangedFrames);
+
+        // Scrolling Refresh
+        scrollRefreshFramesEdit.setText(String.valueOf(settings.scrollRefreshFrames));
+
+        // Tile Cache Time Step
+        tileZStepEdit.setText(String.format("%.4f", settings.tileZStep));
+
+        // Keyframe Interval
+        keyframeMillisEdit.setText(String.valueOf(settings.keyframeMillis));
+
+        // Loop Length
+        loopMillisEdit.setText(String.valueOf(settings.loopMillis));
+
+        // Battery Saver Tier
+        batterySaverTierSpinner.setSelection(settings.batterySaverTier);
+
+        // Unplugged Tier
+        unpluggedTierSpinner.setSelection(settings.unpluggedTier);
+
+        // Thermal Tier
+        thermalTierSpinner.setSelection(settings.thermalTier);
     }
 
     private void setupListeners() {
@@ -176,6 +255,50 @@ public class SettingsActivity extends Activity {
             driftYEdit.setText(String.format("%.4f", AnimationSettings.DEFAULT_DRIFT_Y));
         });
 
+        smoothCloudsResetButton.setOnClickListener(v -> {
+            smoothCloudsCheckBox.setChecked(AnimationSettings.DEFAULT_SMOOTH_CLOUDS);
+        });
+
+        pipelinedFramesResetButton.setOnClickListener(v -> {
+            pipelinedFramesCheckBox.setChecked(AnimationSettings.DEFAULT_PIPELINED_FRAMES);
+        });
+
+        progressiveFramesResetButton.setOnClickListener(v -> {
+            progressiveFramesCheckBox.setChecked(AnimationSettings.DEFAULT_PROGRESSIVE_FRAMES);
+        });
+
+        skipUnchangedFramesResetButton.setOnClickListener(v -> {
+            skipUnchangedFramesCheckBox.setChecked(AnimationSettings.DEFAULT_SKIP_UNCHANGED_FRAMES);
+        });
+
+        thermalTierResetButton.setOnClickListener(v -> {
+            thermalTierSpinner.setSelection(AnimationSettings.DEFAULT_THERMAL_TIER);
+        });
+
+        unpluggedTierResetButton.setOnClickListener(v -> {
+            unpluggedTierSpinner.setSelection(AnimationSettings.DEFAULT_UNPLUGGED_TIER);
+        });
+
+        batterySaverTierResetButton.setOnClickListener(v -> {
+            batterySaverTierSpinner.setSelection(AnimationSettings.DEFAULT_BATTERY_SAVER_TIER);
+        });
+
+        loopMillisResetButton.setOnClickListener(v -> {
+            loopMillisEdit.setText(String.valueOf(AnimationSettings.DEFAULT_LOOP_MILLIS));
+        });
+
+        keyframeMillisResetButton.setOnClickListener(v -> {
+            keyframeMillisEdit.setText(String.valueOf(AnimationSettings.DEFAULT_KEYFRAME_MILLIS));
+        });
+
+        tileZStepResetButton.setOnClickListener(v -> {
+            tileZStepEdit.setText(String.format("%.4f", AnimationSettings.DEFAULT_TILE_Z_STEP));
+        });
+
+        scrollRefreshFramesResetButton.setOnClickListener(v -> {
+            scrollRefreshFramesEdit.setText(String.valueOf(AnimationSettings.DEFAULT_SCROLL_REFRESH_FRAMES));
+        });
+
         // Save Button
         saveButton.setOnClickListener(v -> saveSettings());
 
@@ -203,6 +326,17 @@ public class SettingsActivity extends Activity {
             float cloudDensity = cloudDensitySeekBar.getProgress() / 100.0f;
             float driftX = Float.parseFloat(driftXEdit.getText().toString().trim());
             float driftY = Float.parseFloat(driftYEdit.getText().toString().trim());
+            boolean smoothClouds = smoothCloudsCheckBox.isChecked();
+            boolean pipelinedFrames = pipelinedFramesCheckBox.isChecked();
+            boolean progressiveFrames = progressiveFramesCheckBox.isChecked();
+            boolean skipUnchangedFrames = skipUnchangedFramesCheckBox.isChecked();
+            int thermalTier = thermalTierSpinner.getSelectedItemPosition();
+            int unpluggedTier = unpluggedTierSpinner.getSelectedItemPosition();
+            int batterySaverTier = batterySaverTierSpinner.getSelectedItemPosition();
+            int loopMillis = Integer.parseInt(loopMillisEdit.getText().toString().trim());
+            int keyframeMillis = Integer.parseInt(keyframeMillisEdit.getText().toString().trim());
+            float tileZStep = Float.parseFloat(tileZStepEdit.getText().toString().trim());
+            int scrollRefreshFrames = Integer.parseInt(scrollRefreshFramesEdit.getText().toString().trim());
 
             // Validate ranges
             if (pixelSize < 1 || pixelSize > 10) {
@@ -213,15 +347,48 @@ public class SettingsActivity extends Activity {
                 Toast.makeText(this, "FPS must be between 1 and 30", Toast.LENGTH_LONG).show();
                 return;
             }
+            if (scrollRefreshFrames < 0) {
+                Toast.makeText(this, "Scrolling Refresh must be 0 or more", Toast.LENGTH_LONG).show();
+                return;
+            }
+            if (tileZStep < 0) {
+                Toast.makeText(this, "Tile Cache Time Step must be 0 or more", Toast.LENGTH_LONG).show();
+                return;
+            }
+            if (keyframeMillis < 0) {
+                Toast.makeText(this, "Keyframe Interval must be 0 or more", Toast.LENGTH_LONG).show();
+                return;
+            }
+            if (loopMillis < 0 || loopMillis > 600000) {
+                Toast.makeText(this, "Loop Length must be between 0 and 600000 (10 minutes)", Toast.LENGTH_LONG).show();
+                return;
+            }
 
             // Validate color
             Color.parseColor(skyColor);
 
             // Create new settings and save
-            AnimationSettings newSettings = new AnimationSettings(
-                pixelSize, fps, skyColor, evolutionRate, noiseFrequency,
-                cloudDensity, driftX, driftY
-            );
+            AnimationSettings newSettings = new AnimationSettings.Builder()
+                .setPixelSize(pixelSize)
+                .setFramesPerSecond(fps)
+                .setSkyColor(skyColor)
+                .setEvolutionRate(evolutionRate)
+                .setNoiseFrequency(noiseFrequency)
+                .setCloudDensityThreshold(cloudDensity)
+                .setDriftX(driftX)
+                .setDriftY(driftY)
+                .setSmoothClouds(smoothClouds)
+                .setPipelinedFrames(pipelinedFrames)
+                .setScrollRefreshFrames(scrollRefreshFrames)
+                .setTileZStep(tileZStep)
+                .setKeyframeMillis(keyframeMillis)
+                .setLoopMillis(loopMillis)
+                .setProgressiveFrames(progressiveFrames)
+                .setBatterySaverTier(batterySaverTier)
+                .setUnpluggedTier(unpluggedTier)
+                .setThermalTier(thermalTier)
+                .setSkipUnchangedFrames(skipUnchangedFrames)
+                .build();
             settingsManager.saveSettings(newSettings);
 
             Toast.makeText(this, "Settings saved!", Toast.LENGTH_SHORT).show();
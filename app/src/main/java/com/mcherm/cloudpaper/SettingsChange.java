@@ -0,0 +1,79 @@
+package com.mcherm.cloudpaper;
+
+/**
+ * What changed between two settings snapshots, as far as the running animation is concerned,
+ * and how its frames have to start over for the new settings to show.
+ *
+ * <p>Most settings need nothing more than the next frame: colors and smoothing are read when
+ * drawing, and density, noise frequency and scrolling when generating. Only the frame loop
+ * (pipelined or not), the size of the pipelined frames, and the time to the next frame call
+ * for anything else.
+ */
+class SettingsChange {
+
+    /** The frames carry on as scheduled, and the next one shows the new settings */
+    static final int CARRY_ON = 0;
+
+    /** The next frame is rescheduled a frame spacing (the new one) after the last frame */
+    static final int RESCHEDULE = 1;
+
+    /** The next frame is generated right away, to show new noise (coarse at first) */
+    static final int DRAW_NOW = 2;
+
+    /** The animation starts over, on new pipelined frames if pipelining */
+    static final int RESTART = 3;
+
+    /** The new settings */
+    final AnimationSettings settings;
+
+    /** Whether the drift or evolution rates changed */
+    final boolean ratesChanged;
+
+    /** Whether the density changed but nothing else about the noise, so the last frame can be remapped */
+    final boolean densityOnlyChanged;
+
+    /** Whether frames switch between the pipelined and the plain frame loop */
+    final boolean pipeliningChanged;
+
+    /** Whether the time between frames changed, with the frame rate or the power tier */
+    final boolean frameSpacingChanged;
+
+    /**
+     * The change from oldSettings in oldPowerTier to newSettings in newPowerTier.
+     */
+    SettingsChange(AnimationSettings oldSettings, int oldPowerTier, AnimationSettings newSettings, int newPowerTier) {
+        settings = newSettings;
+        ratesChanged = newSettings.driftX != oldSettings.driftX || newSettings.driftY != oldSettings.driftY
+                || newSettings.evolutionRate != oldSettings.evolutionRate;
+        densityOnlyChanged = newSettings.cloudDensityThreshold != oldSettings.cloudDensityThreshold
+                && newSettings.noiseFrequency == oldSettings.noiseFrequency
+                && newSettings.pixelSize == oldSettings.pixelSize
+                && newSettings.loopMillis == 0;
+        pipeliningChanged = newSettings.pipelinedFrames != oldSettings.pipelinedFrames;
+        frameSpacingChanged = PowerMonitor.frameSpacingMillis(newSettings, newPowerTier)
+                != PowerMonitor.frameSpacingMillis(oldSettings, oldPowerTier);
+    }
+
+    /**
+     * How the frames start over: CARRY_ON, RESCHEDULE, DRAW_NOW or RESTART. The pipelined frames
+     * no longer fitting the renderer, the renderer refining new noise, and the frames having
+     * stopped while the clouds don't change are up to the animation, and are passed in.
+     */
+    int restart(boolean pipelinedFramesDontFit, boolean refining, boolean animationIdle) {
+        final boolean pipelined = settings.pipelinedFrames;
+        if (pipeliningChanged || (pipelined && pipelinedFramesDontFit)) {
+            // Switch frame loops, or replace the pipelined frames with ones of the new size
+            return RESTART;
+        }
+        if (refining && !pipelined) {
+            // The noise changed, so show it now rather than at the next frame
+            return DRAW_NOW;
+        }
+        // While the clouds don't change visibly, the next frame may be a while coming, or not
+        // coming at all, so that the new settings show now
+        if (frameSpacingChanged || animationIdle || settings.skipUnchangedFrames) {
+            return pipelined ? RESTART : RESCHEDULE;
+        }
+        return CARRY_ON;
+    }
+}
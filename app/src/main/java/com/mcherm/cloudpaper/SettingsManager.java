@@ -3,10 +3,26 @@ package com.mcherm.cloudpaper;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Manages loading and saving AnimationSettings to/from SharedPreferences.
+ *
+ * <p>Every save also bumps a settings version, written in the same apply() as the settings
+ * themselves. SharedPreferences reports each changed key separately, but the version key
+ * changes exactly once per save, and by the time any key is reported the whole save is in
+ * place; so listeners get one complete AnimationSettings per save.
  */
 public class SettingsManager {
+
+    /**
+     * Receives the settings once each time they are saved.
+     */
+    public interface SettingsListener {
+        void onSettingsChanged(AnimationSettings newSettings);
+    }
+
     private static final String PREFS_NAME = "CloudPaperSettings";
 
     private static final String KEY_PIXEL_SIZE = "pixelSize";
@@ -17,11 +33,35 @@ public class SettingsManager {
     private static final String KEY_CLOUD_DENSITY_THRESHOLD = "cloudDensityThreshold";
     private static final String KEY_DRIFT_X = "driftX";
     private static final String KEY_DRIFT_Y = "driftY";
+    private static final String KEY_SMOOTH_CLOUDS = "smoothClouds";
+    private static final String KEY_PIPELINED_FRAMES = "pipelinedFrames";
+    private static final String KEY_SCROLL_REFRESH_FRAMES = "scrollRefreshFrames";
+    private static final String KEY_TILE_Z_STEP = "tileZStep";
+    private static final String KEY_KEYFRAME_MILLIS = "keyframeMillis";
+    private static final String KEY_LOOP_MILLIS = "loopMillis";
+    private static final String KEY_PROGRESSIVE_FRAMES = "progressiveFrames";
+    private static final String KEY_BATTERY_SAVER_TIER = "batterySaverTier";
+    private static final String KEY_UNPLUGGED_TIER = "unpluggedTier";
+    private static final String KEY_THERMAL_TIER = "thermalTier";
+    private static final String KEY_SKIP_UNCHANGED_FRAMES = "skipUnchangedFrames";
+
+    // Not a setting: bumped on every save, so that each save notifies the listeners exactly once
+    private static final String KEY_SETTINGS_VERSION = "settingsVersion";
 
     private final SharedPreferences prefs;
 
+    // SharedPreferences only keeps weak references to its listeners, so these are kept here
+    private final Map<SettingsListener, SharedPreferences.OnSharedPreferenceChangeListener> listeners = new HashMap<>();
+
     public SettingsManager(Context context) {
-        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Creates a manager that keeps the settings in the given preferences.
+     */
+    SettingsManager(SharedPreferences prefs) {
+        this.prefs = prefs;
     }
 
     /**
@@ -29,18 +69,27 @@ public class SettingsManager {
      * Returns a new AnimationSettings instance with saved values, or defaults if not set.
      */
     public AnimationSettings loadSettings() {
-        int pixelSize = prefs.getInt(KEY_PIXEL_SIZE, AnimationSettings.DEFAULT_PIXEL_SIZE);
-        int framesPerSecond = prefs.getInt(KEY_FRAMES_PER_SECOND, AnimationSettings.DEFAULT_FRAMES_PER_SECOND);
-        String skyColor = prefs.getString(KEY_SKY_COLOR, AnimationSettings.DEFAULT_SKY_COLOR);
-        float evolutionRate = prefs.getFloat(KEY_EVOLUTION_RATE, AnimationSettings.DEFAULT_EVOLUTION_RATE);
-        float noiseFrequency = prefs.getFloat(KEY_NOISE_FREQUENCY, AnimationSettings.DEFAULT_NOISE_FREQUENCY);
-        float cloudDensityThreshold = prefs.getFloat(KEY_CLOUD_DENSITY_THRESHOLD, AnimationSettings.DEFAULT_CLOUD_DENSITY_THRESHOLD);
-        float driftX = prefs.getFloat(KEY_DRIFT_X, AnimationSettings.DEFAULT_DRIFT_X);
-        float driftY = prefs.getFloat(KEY_DRIFT_Y, AnimationSettings.DEFAULT_DRIFT_Y);
-
-        return new AnimationSettings(pixelSize, framesPerSecond, skyColor,
-                                    evolutionRate, noiseFrequency, cloudDensityThreshold,
-                                    driftX, driftY);
+        return new AnimationSettings.Builder()
+                .setPixelSize(prefs.getInt(KEY_PIXEL_SIZE, AnimationSettings.DEFAULT_PIXEL_SIZE))
+                .setFramesPerSecond(prefs.getInt(KEY_FRAMES_PER_SECOND, AnimationSettings.DEFAULT_FRAMES_PER_SECOND))
+                .setSkyColor(prefs.getString(KEY_SKY_COLOR, AnimationSettings.DEFAULT_SKY_COLOR))
+                .setEvolutionRate(prefs.getFloat(KEY_EVOLUTION_RATE, AnimationSettings.DEFAULT_EVOLUTION_RATE))
+                .setNoiseFrequency(prefs.getFloat(KEY_NOISE_FREQUENCY, AnimationSettings.DEFAULT_NOISE_FREQUENCY))
+                .setCloudDensityThreshold(prefs.getFloat(KEY_CLOUD_DENSITY_THRESHOLD, AnimationSettings.DEFAULT_CLOUD_DENSITY_THRESHOLD))
+                .setDriftX(prefs.getFloat(KEY_DRIFT_X, AnimationSettings.DEFAULT_DRIFT_X))
+                .setDriftY(prefs.getFloat(KEY_DRIFT_Y, AnimationSettings.DEFAULT_DRIFT_Y))
+                .setSmoothClouds(prefs.getBoolean(KEY_SMOOTH_CLOUDS, AnimationSettings.DEFAULT_SMOOTH_CLOUDS))
+                .setPipelinedFrames(prefs.getBoolean(KEY_PIPELINED_FRAMES, AnimationSettings.DEFAULT_PIPELINED_FRAMES))
+                .setScrollRefreshFrames(prefs.getInt(KEY_SCROLL_REFRESH_FRAMES, AnimationSettings.DEFAULT_SCROLL_REFRESH_FRAMES))
+                .setTileZStep(prefs.getFloat(KEY_TILE_Z_STEP, AnimationSettings.DEFAULT_TILE_Z_STEP))
+                .setKeyframeMillis(prefs.getInt(KEY_KEYFRAME_MILLIS, AnimationSettings.DEFAULT_KEYFRAME_MILLIS))
+                .setLoopMillis(prefs.getInt(KEY_LOOP_MILLIS, AnimationSettings.DEFAULT_LOOP_MILLIS))
+                .setProgressiveFrames(prefs.getBoolean(KEY_PROGRESSIVE_FRAMES, AnimationSettings.DEFAULT_PROGRESSIVE_FRAMES))
+                .setBatterySaverTier(prefs.getInt(KEY_BATTERY_SAVER_TIER, AnimationSettings.DEFAULT_BATTERY_SAVER_TIER))
+                .setUnpluggedTier(prefs.getInt(KEY_UNPLUGGED_TIER, AnimationSettings.DEFAULT_UNPLUGGED_TIER))
+                .setThermalTier(prefs.getInt(KEY_THERMAL_TIER, AnimationSettings.DEFAULT_THERMAL_TIER))
+                .setSkipUnchangedFrames(prefs.getBoolean(KEY_SKIP_UNCHANGED_FRAMES, AnimationSettings.DEFAULT_SKIP_UNCHANGED_FRAMES))
+                .build();
     }
 
     /**
@@ -56,6 +105,18 @@ public class SettingsManager {
         editor.putFloat(KEY_CLOUD_DENSITY_THRESHOLD, settings.cloudDensityThreshold);
         editor.putFloat(KEY_DRIFT_X, settings.driftX);
         editor.putFloat(KEY_DRIFT_Y, settings.driftY);
+        editor.putBoolean(KEY_SMOOTH_CLOUDS, settings.smoothClouds);
+        editor.putBoolean(KEY_PIPELINED_FRAMES, settings.pipelinedFrames);
+        editor.putInt(KEY_SCROLL_REFRESH_FRAMES, settings.scrollRefreshFrames);
+        editor.putFloat(KEY_TILE_Z_STEP, settings.tileZStep);
+        editor.putInt(KEY_KEYFRAME_MILLIS, settings.keyframeMillis);
+        editor.putInt(KEY_LOOP_MILLIS, settings.loopMillis);
+        editor.putBoolean(KEY_PROGRESSIVE_FRAMES, settings.progressiveFrames);
+        editor.putInt(KEY_BATTERY_SAVER_TIER, settings.batterySaverTier);
+        editor.putInt(KEY_UNPLUGGED_TIER, settings.unpluggedTier);
+        editor.putInt(KEY_THERMAL_TIER, settings.thermalTier);
+        editor.putBoolean(KEY_SKIP_UNCHANGED_FRAMES, settings.skipUnchangedFrames);
+        editor.putInt(KEY_SETTINGS_VERSION, prefs.getInt(KEY_SETTINGS_VERSION, 0) + 1);
         editor.apply();
     }
 
@@ -67,16 +128,29 @@ public class SettingsManager {
     }
 
     /**
-     * Registers a listener to be notified when settings change.
+     * Registers a listener to be notified, once per save, when settings change.
      */
-    public void registerListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-        prefs.registerOnSharedPreferenceChangeListener(listener);
+    public void registerListener(final SettingsListener listener) {
+        SharedPreferences.OnSharedPreferenceChangeListener prefsListener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        if (KEY_SETTINGS_VERSION.equals(key)) {
+                            listener.onSettingsChanged(loadSettings());
+                        }
+                    }
+                };
+        listeners.put(listener, prefsListener);
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
     }
 
     /**
      * Unregisters a previously registered listener.
      */
-    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-        prefs.unregisterOnSharedPreferenceChangeListener(listener);
+    public void unregisterListener(SettingsListener listener) {
+        SharedPreferences.OnSharedPreferenceChangeListener prefsListener = listeners.remove(listener);
+        if (prefsListener != null) {
+            prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
+        }
     }
 }
@@ -140,6 +140,14 @@ public class FastNoiseLite
     private TransformType3D mWarpTransformType3D = TransformType3D.DefaultOpenSimplex2;
     private float mDomainWarpAmp = 1.0f;
 
+    private final Vector3 mGridOrigin = new Vector3(0, 0, 0);
+    private final Vector3 mGridStepX = new Vector3(0, 0, 0);
+    private final Vector3 mGridStepY = new Vector3(0, 0, 0);
+
+    // Gradient indices of the lattice points around the current cell, used by GenRowOpenSimplex2S
+    private final int[] mRowGrad0 = new int[8];
+    private final int[] mRowGrad1 = new int[27];
+
     /// <summary>
     /// Create new FastNoise object with default seed
     /// </summary>
@@ -402,6 +410,88 @@ public class FastNoiseLite
         }
     }
 
+    /// <summary>
+    /// 3D noise for a regular grid of positions in a plane of constant z, using current settings
+    /// </summary>
+    /// <remarks>
+    /// Sample (col, row) is the noise at (x + col * xStep, y + row * yStep, z) and is written to
+    /// output[row * width + col]. Matches GetNoise(x, y, z) at each position to within float rounding,
+    /// but the frequency, 3D transform and fractal type are resolved once per call instead of once
+    /// per sample.
+    /// </remarks>
+    public void GetNoiseGrid(float[] output, /*FNLfloat*/ float x, /*FNLfloat*/ float y,
+        /*FNLfloat*/ float xStep, /*FNLfloat*/ float yStep, int width, int height, /*FNLfloat*/ float z)
+    {
+        GetNoiseGrid(output, x, y, xStep, yStep, width, height, z, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /// <summary>
+    /// GetNoiseGrid where only values between lowerBound and upperBound need to be exact
+    /// </summary>
+    /// <remarks>
+    /// Each sample is the same value as GetNoise(...) if that lies in lowerBound...upperBound.
+    /// Otherwise FBm may stop after fewer octaves, once the remaining octaves can no longer bring
+    /// the sum back into range, and gives a value that is still below lowerBound (or at least
+    /// upperBound). Relies on each octave being bounded between -1...1, so weighted strength must
+    /// be kept between 0...1. The bounds are ignored for fractal types other than FBm.
+    /// </remarks>
+    public void GetNoiseGrid(float[] output, /*FNLfloat*/ float x, /*FNLfloat*/ float y,
+        /*FNLfloat*/ float xStep, /*FNLfloat*/ float yStep, int width, int height, /*FNLfloat*/ float z,
+        float lowerBound, float upperBound)
+    {
+        GetNoiseGridRows(output, x, y, xStep, yStep, width, 0, height, z, lowerBound, upperBound);
+    }
+
+    /// <summary>
+    /// Rows firstRow...firstRow + rowCount - 1 of the grid from GetNoiseGrid(...) with these bounds
+    /// </summary>
+    /// <remarks>
+    /// Only writes those rows of output, at the same indices the whole grid would use. Each sample is
+    /// bit-for-bit the value the whole grid would give it, so separate instances with the same settings
+    /// can each fill some of the rows of one grid.
+    /// </remarks>
+    public void GetNoiseGridRows(float[] output, /*FNLfloat*/ float x, /*FNLfloat*/ float y,
+        /*FNLfloat*/ float xStep, /*FNLfloat*/ float yStep, int width, int firstRow, int rowCount,
+        /*FNLfloat*/ float z, float lowerBound, float upperBound)
+    {
+        // Frequency and the 3D transforms are all linear, so transform the origin and the two
+        // step vectors once and build every sample position from them.
+        Vector3 origin = mGridOrigin;
+        origin.x = x;
+        origin.y = y;
+        origin.z = z;
+        TransformNoiseCoordinate(origin);
+
+        Vector3 stepX = mGridStepX;
+        stepX.x = xStep;
+        stepX.y = 0;
+        stepX.z = 0;
+        TransformNoiseCoordinate(stepX);
+
+        Vector3 stepY = mGridStepY;
+        stepY.x = 0;
+        stepY.y = yStep;
+        stepY.z = 0;
+        TransformNoiseCoordinate(stepY);
+
+        int endRow = firstRow + rowCount;
+        switch (mFractalType)
+        {
+            default:
+                GenGridSingle(output, origin, stepX, stepY, width, firstRow, endRow);
+                break;
+            case FBm:
+                GenGridFBm(output, origin, stepX, stepY, width, firstRow, endRow, lowerBound, upperBound);
+                break;
+            case Ridged:
+                GenGridRidged(output, origin, stepX, stepY, width, firstRow, endRow);
+                break;
+            case PingPong:
+                GenGridPingPong(output, origin, stepX, stepY, width, firstRow, endRow);
+                break;
+        }
+    }
+
 
     /// <summary>
     /// 2D warps the input position using current domain warp settings
@@ -783,6 +873,53 @@ public class FastNoiseLite
     }
 
 
+    private void TransformNoiseCoordinate(Vector3 coord)
+    {
+        /*FNLfloat*/ float x = coord.x * mFrequency;
+        /*FNLfloat*/ float y = coord.y * mFrequency;
+        /*FNLfloat*/ float z = coord.z * mFrequency;
+
+        switch (mTransformType3D)
+        {
+            case ImproveXYPlanes:
+                {
+                    /*FNLfloat*/ float xy = x + y;
+                    /*FNLfloat*/ float s2 = xy * -(/*FNLfloat*/ float)0.211324865405187;
+                    z *= (/*FNLfloat*/ float)0.577350269189626;
+                    x += s2 - z;
+                    y = y + s2 - z;
+                    z += xy * (/*FNLfloat*/ float)0.577350269189626;
+                }
+                break;
+            case ImproveXZPlanes:
+                {
+                    /*FNLfloat*/ float xz = x + z;
+                    /*FNLfloat*/ float s2 = xz * -(/*FNLfloat*/ float)0.211324865405187;
+                    y *= (/*FNLfloat*/ float)0.577350269189626;
+                    x += s2 - y;
+                    z += s2 - y;
+                    y += xz * (/*FNLfloat*/ float)0.577350269189626;
+                }
+                break;
+            case DefaultOpenSimplex2:
+                {
+                    final /*FNLfloat*/ float R3 = (/*FNLfloat*/ float)(2.0 / 3.0);
+                    /*FNLfloat*/ float r = (x + y + z) * R3; // Rotation, not skew
+                    x = r - x;
+                    y = r - y;
+                    z = r - z;
+                }
+                break;
+            default:
+                break;
+        }
+
+        coord.x = x;
+        coord.y = y;
+        coord.z = z;
+    }
+
+
     // Fractal FBm
 
     private float GenFractalFBm(/*FNLfloat*/ float x, /*FNLfloat*/ float y)
@@ -826,6 +963,55 @@ public class FastNoiseLite
         return sum;
     }
 
+    private float GenFractalFBmBounded(/*FNLfloat*/ float x, /*FNLfloat*/ float y, /*FNLfloat*/ float z,
+        float lowerBound, float upperBound)
+    {
+        int seed = mSeed;
+        float sum = 0;
+        float amp = mFractalBounding;
+        float nominalAmp = mFractalBounding;
+        float remaining = FractalAmplitudeRemaining(0);
+
+        for (int i = 0; i < mOctaves; i++)
+        {
+            float noise = GenNoiseSingle(seed++, x, y, z);
+            sum += noise * amp;
+            amp *= Lerp(1.0f, (noise + 1) * 0.5f, mWeightedStrength);
+
+            // The octaves still to come can move the sum by at most their nominal amplitudes
+            remaining -= nominalAmp;
+            nominalAmp *= FastAbs(mGain);
+            if (sum + remaining < lowerBound || sum - remaining >= upperBound)
+            {
+                break;
+            }
+
+            x *= mLacunarity;
+            y *= mLacunarity;
+            z *= mLacunarity;
+            amp *= mGain;
+        }
+
+        return sum;
+    }
+
+    // Sum of the nominal amplitudes of octaves firstOctave...mOctaves-1
+    private float FractalAmplitudeRemaining(int firstOctave)
+    {
+        float gain = FastAbs(mGain);
+        float amp = mFractalBounding;
+        float remaining = 0;
+        for (int i = 0; i < mOctaves; i++)
+        {
+            if (i >= firstOctave)
+            {
+                remaining += amp;
+            }
+            amp *= gain;
+        }
+        return remaining;
+    }
+
 
     // Fractal Ridged
 
@@ -915,6 +1101,121 @@ public class FastNoiseLite
     }
 
 
+    // Grid Sampling (positions already transformed by TransformNoiseCoordinate; fills rows firstRow...endRow - 1)
+
+    private void GenGridSingle(float[] output, Vector3 origin, Vector3 stepX, Vector3 stepY, int width, int firstRow, int endRow)
+    {
+        int seed = mSeed;
+
+        if (mNoiseType == NoiseType.OpenSimplex2S)
+        {
+            for (int row = firstRow; row < endRow; row++)
+            {
+                GenRowOpenSimplex2S(seed, origin.x + row * stepY.x, origin.y + row * stepY.y, origin.z + row * stepY.z,
+                    stepX.x, stepX.y, stepX.z, 1, false, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+                    output, row * width, width);
+            }
+            return;
+        }
+
+        int index = firstRow * width;
+        for (int row = firstRow; row < endRow; row++)
+        {
+            /*FNLfloat*/ float rowX = origin.x + row * stepY.x;
+            /*FNLfloat*/ float rowY = origin.y + row * stepY.y;
+            /*FNLfloat*/ float rowZ = origin.z + row * stepY.z;
+            for (int col = 0; col < width; col++)
+            {
+                output[index++] = GenNoiseSingle(seed,
+                    rowX + col * stepX.x, rowY + col * stepX.y, rowZ + col * stepX.z);
+            }
+        }
+    }
+
+    private void GenGridFBm(float[] output, Vector3 origin, Vector3 stepX, Vector3 stepY, int width, int firstRow, int endRow,
+        float lowerBound, float upperBound)
+    {
+        // Weighted strength makes each octave's amplitude depend on the previous octave's value,
+        // so the row-at-a-time path only handles the unweighted case.
+        if (mNoiseType == NoiseType.OpenSimplex2S && mWeightedStrength == 0)
+        {
+            for (int row = firstRow; row < endRow; row++)
+            {
+                /*FNLfloat*/ float x = origin.x + row * stepY.x;
+                /*FNLfloat*/ float y = origin.y + row * stepY.y;
+                /*FNLfloat*/ float z = origin.z + row * stepY.z;
+                /*FNLfloat*/ float dx = stepX.x;
+                /*FNLfloat*/ float dy = stepX.y;
+                /*FNLfloat*/ float dz = stepX.z;
+                int seed = mSeed;
+                float amp = mFractalBounding;
+
+                for (int i = 0; i < mOctaves; i++)
+                {
+                    // Samples already decided by earlier octaves are skipped
+                    float remaining = FractalAmplitudeRemaining(i);
+                    GenRowOpenSimplex2S(seed++, x, y, z, dx, dy, dz, amp, i > 0,
+                        lowerBound - remaining, upperBound + remaining, output, row * width, width);
+
+                    x *= mLacunarity;
+                    y *= mLacunarity;
+                    z *= mLacunarity;
+                    dx *= mLacunarity;
+                    dy *= mLacunarity;
+                    dz *= mLacunarity;
+                    amp *= mGain;
+                }
+            }
+            return;
+        }
+
+        int index = firstRow * width;
+        for (int row = firstRow; row < endRow; row++)
+        {
+            /*FNLfloat*/ float rowX = origin.x + row * stepY.x;
+            /*FNLfloat*/ float rowY = origin.y + row * stepY.y;
+            /*FNLfloat*/ float rowZ = origin.z + row * stepY.z;
+            for (int col = 0; col < width; col++)
+            {
+                output[index++] = GenFractalFBmBounded(
+                    rowX + col * stepX.x, rowY + col * stepX.y, rowZ + col * stepX.z, lowerBound, upperBound);
+            }
+        }
+    }
+
+    private void GenGridRidged(float[] output, Vector3 origin, Vector3 stepX, Vector3 stepY, int width, int firstRow, int endRow)
+    {
+        int index = firstRow * width;
+        for (int row = firstRow; row < endRow; row++)
+        {
+            /*FNLfloat*/ float rowX = origin.x + row * stepY.x;
+            /*FNLfloat*/ float rowY = origin.y + row * stepY.y;
+            /*FNLfloat*/ float rowZ = origin.z + row * stepY.z;
+            for (int col = 0; col < width; col++)
+            {
+                output[index++] = GenFractalRidged(
+                    rowX + col * stepX.x, rowY + col * stepX.y, rowZ + col * stepX.z);
+            }
+        }
+    }
+
+    private void GenGridPingPong(float[] output, Vector3 origin, Vector3 stepX, Vector3 stepY, int width, int firstRow, int endRow)
+    {
+        int index = firstRow * width;
+        for (int row = firstRow; row < endRow; row++)
+        {
+            /*FNLfloat*/ float rowX = origin.x + row * stepY.x;
+            /*FNLfloat*/ float rowY = origin.y + row * stepY.y;
+            /*FNLfloat*/ float rowZ = origin.z + row * stepY.z;
+            for (int col = 0; col < width; col++)
+            {
+                output[index++] = GenFractalPingPong(
+                    rowX + col * stepX.x, rowY + col * stepX.y, rowZ + col * stepX.z);
+            }
+        }
+    }
+
+
     // Simplex/OpenSimplex2 Noise
 
     private float SingleSimplex(int seed, /*FNLfloat*/ float x, /*FNLfloat*/ float y)
@@ -1407,6 +1708,254 @@ public class FastNoiseLite
     }
 
 
+    /// <summary>
+    /// Evaluates 3D OpenSimplex2S along a row of count samples, where sample n is at
+    /// (x + n * dx, y + n * dy, z + n * dz), and writes amp times each value to output starting
+    /// at offset (or adds it, if accumulate is set). Gives the same values as SingleOpenSimplex2S
+    /// at those positions, but the lattice cell's primed coordinates and gradient hashes are only
+    /// recomputed when the row steps into a new cell.
+    /// When accumulating, samples whose current value is below skipBelow or at least skipFrom
+    /// are left unchanged.
+    /// </summary>
+    private void GenRowOpenSimplex2S(int seed, /*FNLfloat*/ float x, /*FNLfloat*/ float y, /*FNLfloat*/ float z,
+        /*FNLfloat*/ float dx, /*FNLfloat*/ float dy, /*FNLfloat*/ float dz,
+        float amp, boolean accumulate, float skipBelow, float skipFrom, float[] output, int offset, int count)
+    {
+        final int[] grad0 = mRowGrad0;
+        final int[] grad1 = mRowGrad1;
+        final int seed2 = seed + 1293373;
+        final float scale = amp * 9.046026385208288f;
+
+        // The cell is identified by its floored coordinates; start with one that can't match.
+        int cellI = Integer.MIN_VALUE;
+        int cellJ = Integer.MIN_VALUE;
+        int cellK = Integer.MIN_VALUE;
+
+        for (int n = 0; n < count; n++)
+        {
+            if (accumulate)
+            {
+                float current = output[offset + n];
+                if (current < skipBelow || current >= skipFrom)
+                {
+                    continue;
+                }
+            }
+
+            /*FNLfloat*/ float px = x + n * dx;
+            /*FNLfloat*/ float py = y + n * dy;
+            /*FNLfloat*/ float pz = z + n * dz;
+            int i = FastFloor(px);
+            int j = FastFloor(py);
+            int k = FastFloor(pz);
+
+            if (i != cellI || j != cellJ || k != cellK)
+            {
+                cellI = i;
+                cellJ = j;
+                cellK = k;
+
+                // The first grid uses the 8 corners of the cell. The offset grid is centred on the
+                // far corner and uses points 0, 1 or 2 steps along each axis, but never a point
+                // that is off-centre on all three axes.
+                int iPrimed = i * PrimeX;
+                int jPrimed = j * PrimeY;
+                int kPrimed = k * PrimeZ;
+                for (int c = 0; c < 8; c++)
+                {
+                    grad0[c] = GradIndex(seed, iPrimed + ((c & 1) != 0 ? PrimeX : 0),
+                        jPrimed + ((c & 2) != 0 ? PrimeY : 0), kPrimed + ((c & 4) != 0 ? PrimeZ : 0));
+                }
+                for (int c = 0; c < 27; c++)
+                {
+                    int a = c % 3;
+                    int b = (c / 3) % 3;
+                    int d = c / 9;
+                    if (a == 1 || b == 1 || d == 1)
+                    {
+                        grad1[c] = GradIndex(seed2, iPrimed + a * PrimeX, jPrimed + b * PrimeY, kPrimed + d * PrimeZ);
+                    }
+                }
+            }
+
+            float value = SingleOpenSimplex2SInCell(grad0, grad1, (float)(px - i), (float)(py - j), (float)(pz - k)) * scale;
+            if (accumulate)
+            {
+                output[offset + n] += value;
+            }
+            else
+            {
+                output[offset + n] = value;
+            }
+        }
+    }
+
+    private static int GradIndex(int seed, int xPrimed, int yPrimed, int zPrimed)
+    {
+        int hash = Hash(seed, xPrimed, yPrimed, zPrimed);
+        hash ^= hash >> 15;
+        return hash & (63 << 2);
+    }
+
+    private static float GradDot(int gradIndex, float xd, float yd, float zd)
+    {
+        return xd * Gradients3D[gradIndex] + yd * Gradients3D[gradIndex | 1] + zd * Gradients3D[gradIndex | 2];
+    }
+
+    // Same as SingleOpenSimplex2S (before its final scaling), but with the gradients looked up from
+    // the per-cell tables filled in by GenRowOpenSimplex2S. Corner (a, b, c) of the first grid is
+    // grad0[a | b << 1 | c << 2] and point (a, b, c) of the offset grid is grad1[a + 3 * b + 9 * c].
+    private static float SingleOpenSimplex2SInCell(int[] grad0, int[] grad1, float xi, float yi, float zi)
+    {
+        int xNMask = (int)(-0.5f - xi);
+        int yNMask = (int)(-0.5f - yi);
+        int zNMask = (int)(-0.5f - zi);
+
+        // Lattice offsets selected by the masks, as used for the primed coordinates in SingleOpenSimplex2S
+        int xN = xNMask & 1;
+        int yN = yNMask & 1;
+        int zN = zNMask & 1;
+        int xF = xN ^ 1;
+        int yF = yN ^ 1;
+        int zF = zN ^ 1;
+        int xN2 = xNMask & 2;
+        int yN2 = (yNMask & 2) * 3;
+        int zN2 = (zNMask & 2) * 9;
+
+        float x0 = xi + xNMask;
+        float y0 = yi + yNMask;
+        float z0 = zi + zNMask;
+        float a0 = 0.75f - x0 * x0 - y0 * y0 - z0 * z0;
+        float value = (a0 * a0) * (a0 * a0) * GradDot(grad0[xN | (yN << 1) | (zN << 2)], x0, y0, z0);
+
+        float x1 = xi - 0.5f;
+        float y1 = yi - 0.5f;
+        float z1 = zi - 0.5f;
+        float a1 = 0.75f - x1 * x1 - y1 * y1 - z1 * z1;
+        value += (a1 * a1) * (a1 * a1) * GradDot(grad1[1 + 3 + 9], x1, y1, z1);
+
+        float xAFlipMask0 = ((xNMask | 1) << 1) * x1;
+        float yAFlipMask0 = ((yNMask | 1) << 1) * y1;
+        float zAFlipMask0 = ((zNMask | 1) << 1) * z1;
+        float xAFlipMask1 = (-2 - (xNMask << 2)) * x1 - 1.0f;
+        float yAFlipMask1 = (-2 - (yNMask << 2)) * y1 - 1.0f;
+        float zAFlipMask1 = (-2 - (zNMask << 2)) * z1 - 1.0f;
+
+        boolean skip5 = false;
+        float a2 = xAFlipMask0 + a0;
+        if (a2 > 0)
+        {
+            float x2 = x0 - (xNMask | 1);
+            value += (a2 * a2) * (a2 * a2) * GradDot(grad0[xF | (yN << 1) | (zN << 2)], x2, y0, z0);
+        }
+        else
+        {
+            float a3 = yAFlipMask0 + zAFlipMask0 + a0;
+            if (a3 > 0)
+            {
+                float y3 = y0 - (yNMask | 1);
+                float z3 = z0 - (zNMask | 1);
+                value += (a3 * a3) * (a3 * a3) * GradDot(grad0[xN | (yF << 1) | (zF << 2)], x0, y3, z3);
+            }
+
+            float a4 = xAFlipMask1 + a1;
+            if (a4 > 0)
+            {
+                float x4 = (xNMask | 1) + x1;
+                value += (a4 * a4) * (a4 * a4) * GradDot(grad1[xN2 + 3 + 9], x4, y1, z1);
+                skip5 = true;
+            }
+        }
+
+        boolean skip9 = false;
+        float a6 = yAFlipMask0 + a0;
+        if (a6 > 0)
+        {
+            float y6 = y0 - (yNMask | 1);
+            value += (a6 * a6) * (a6 * a6) * GradDot(grad0[xN | (yF << 1) | (zN << 2)], x0, y6, z0);
+        }
+        else
+        {
+            float a7 = xAFlipMask0 + zAFlipMask0 + a0;
+            if (a7 > 0)
+            {
+                float x7 = x0 - (xNMask | 1);
+                float z7 = z0 - (zNMask | 1);
+                value += (a7 * a7) * (a7 * a7) * GradDot(grad0[xF | (yN << 1) | (zF << 2)], x7, y0, z7);
+            }
+
+            float a8 = yAFlipMask1 + a1;
+            if (a8 > 0)
+            {
+                float y8 = (yNMask | 1) + y1;
+                value += (a8 * a8) * (a8 * a8) * GradDot(grad1[1 + yN2 + 9], x1, y8, z1);
+                skip9 = true;
+            }
+        }
+
+        boolean skipD = false;
+        float aA = zAFlipMask0 + a0;
+        if (aA > 0)
+        {
+            float zA = z0 - (zNMask | 1);
+            value += (aA * aA) * (aA * aA) * GradDot(grad0[xN | (yN << 1) | (zF << 2)], x0, y0, zA);
+        }
+        else
+        {
+            float aB = xAFlipMask0 + yAFlipMask0 + a0;
+            if (aB > 0)
+            {
+                float xB = x0 - (xNMask | 1);
+                float yB = y0 - (yNMask | 1);
+                value += (aB * aB) * (aB * aB) * GradDot(grad0[xF | (yF << 1) | (zN << 2)], xB, yB, z0);
+            }
+
+            float aC = zAFlipMask1 + a1;
+            if (aC > 0)
+            {
+                float zC = (zNMask | 1) + z1;
+                value += (aC * aC) * (aC * aC) * GradDot(grad1[1 + 3 + zN2], x1, y1, zC);
+                skipD = true;
+            }
+        }
+
+        if (!skip5)
+        {
+            float a5 = yAFlipMask1 + zAFlipMask1 + a1;
+            if (a5 > 0)
+            {
+                float y5 = (yNMask | 1) + y1;
+                float z5 = (zNMask | 1) + z1;
+                value += (a5 * a5) * (a5 * a5) * GradDot(grad1[1 + yN2 + zN2], x1, y5, z5);
+            }
+        }
+
+        if (!skip9)
+        {
+            float a9 = xAFlipMask1 + zAFlipMask1 + a1;
+            if (a9 > 0)
+            {
+                float x9 = (xNMask | 1) + x1;
+                float z9 = (zNMask | 1) + z1;
+                value += (a9 * a9) * (a9 * a9) * GradDot(grad1[xN2 + 3 + zN2], x9, y1, z9);
+            }
+        }
+
+        if (!skipD)
+        {
+            float aD = xAFlipMask1 + yAFlipMask1 + a1;
+            if (aD > 0)
+            {
+                float xD = (xNMask | 1) + x1;
+                float yD = (yNMask | 1) + y1;
+                value += (aD * aD) * (aD * aD) * GradDot(grad1[xN2 + yN2 + 9], xD, yD, z1);
+            }
+        }
+
+        return value;
+    }
+
+
     // Cellular Noise
 
     private float SingleCellular(int seed, /*FNLfloat*/ float x, /*FNLfloat*/ float y)
@@ -0,0 +1,178 @@
+package com.mcherm.cloudpaper.renderer;
+
+/**
+ * A small fixed set of threads which, together with the calling thread, split a job into
+ * bands and work through them in parallel.
+ *
+ * <p>Each participating thread has a worker number (the calling thread is 0) so that a job
+ * can give each thread its own scratch state. Bands are handed out one at a time, so faster
+ * cores simply end up doing more of them. Nothing is allocated per job.
+ */
+class BandWorkers {
+
+    /** A job that has been split into bands. */
+    interface Job {
+        /** Does one band. Called exactly once per band, from any worker, with that worker's number. */
+        void runBand(int worker, int band);
+    }
+
+    private final Thread[] threads;
+
+    // Guarded by this. Threads that have stopped (interrupted) are no longer live, and aren't waited for.
+    private Job job;
+    private int bandCount;
+    private int nextBand;
+    private int liveThreads;
+    private int busyThreads;
+    private int generation;
+    private boolean shutDown;
+    private RuntimeException failure;
+
+    /**
+     * Starts workerCount - 1 threads; the thread calling run() is the remaining worker.
+     */
+    BandWorkers(int workerCount) {
+        threads = new Thread[workerCount - 1];
+        liveThreads = threads.length;
+        for (int i = 0; i < threads.length; i++) {
+            final int worker = i + 1;
+            threads[i] = new Thread(() -> workLoop(worker), "CloudPaperBand-" + worker);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /** The number of workers, including the thread that calls run(). */
+    int getWorkerCount() {
+        return threads.length + 1;
+    }
+
+    /**
+     * Runs every band of the job, returning once all of them are done. If any band throws,
+     * the first exception is rethrown here after the other bands have finished. If a worker
+     * thread has been interrupted it stops, and the others (and the calling thread) do its share.
+     *
+     * @throws IllegalStateException if the workers have been shut down
+     */
+    void run(Job job, int bandCount) {
+        synchronized (this) {
+            if (shutDown) {
+                throw new IllegalStateException("The band workers have been shut down");
+            }
+            this.job = job;
+            this.bandCount = bandCount;
+            this.nextBand = 0;
+            this.busyThreads = liveThreads;
+            this.failure = null;
+            generation++;
+            notifyAll();
+        }
+
+        try {
+            workOn(job, 0);
+        } finally {
+            boolean interrupted = false;
+            synchronized (this) {
+                while (busyThreads > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                this.job = null;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Stops the threads once they finish what they are doing. The workers can't be used afterward.
+     */
+    synchronized void shutDown() {
+        shutDown = true;
+        notifyAll();
+    }
+
+    private void workLoop(int worker) {
+        int seenGeneration = 0;
+        boolean busy = false;
+        try {
+            while (true) {
+                final Job current;
+                synchronized (this) {
+                    while (generation == seenGeneration && !shutDown) {
+                        wait();
+                    }
+                    if (shutDown) {
+                        return;
+                    }
+                    seenGeneration = generation;
+                    current = job;
+                    busy = true;
+                }
+
+                try {
+                    workOn(current, worker);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+
+                synchronized (this) {
+                    busy = false;
+                    finishJob();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stop, as on shutDown()
+        } finally {
+            synchronized (this) {
+                liveThreads--;
+                if (busy && failure == null) {
+                    // An Error stopped this thread part way through its bands
+                    failure = new IllegalStateException("A band worker stopped mid-job");
+                }
+                // A job this thread was counted in, but won't finish, mustn't be waited on forever
+                if (busy || generation != seenGeneration) {
+                    finishJob();
+                }
+            }
+        }
+    }
+
+    // Marks one worker thread as done with the current job. Called with the lock held.
+    private void finishJob() {
+        busyThreads--;
+        if (busyThreads == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Claims and runs bands until there are none left.
+     */
+    private void workOn(Job job, int worker) {
+        while (true) {
+            final int band;
+            synchronized (this) {
+                if (nextBand >= bandCount) {
+                    return;
+                }
+                band = nextBand++;
+            }
+            job.runBand(worker, band);
+        }
+    }
+}
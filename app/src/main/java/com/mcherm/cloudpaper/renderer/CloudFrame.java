@@ -0,0 +1,100 @@
+package com.mcherm.cloudpaper.renderer;
+
+import android.graphics.Bitmap;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One generated frame of clouds: an alpha-only bitmap with one pixel per block, together
+ * with the settings it was generated with (which say how to color and scale it).
+ *
+ * <p>Frames are created by CloudRenderer.createFrame() and filled by
+ * CloudRenderer.generateClouds(CloudFrame, ...). A frame may be filled on one thread and
+ * drawn on another, as long as the two are not at the same time.
+ */
+public class CloudFrame {
+
+    private final Bitmap bitmap;
+    final int widthBlocks;
+    final int heightBlocks;
+
+    // The alpha array is laid out like the bitmap's memory, whose rows may be padded
+    final int rowBytes;
+    final byte[] alphas;
+    private final ByteBuffer alphaBuffer;
+
+    // Where to draw the bitmap's top left corner, in screen pixels (0 unless scrolling)
+    float offsetX;
+    float offsetY;
+
+    AnimationSettings animationSettings;
+
+    CloudFrame(int widthBlocks, int heightBlocks) {
+        this.widthBlocks = widthBlocks;
+        this.heightBlocks = heightBlocks;
+        bitmap = Bitmap.createBitmap(widthBlocks, heightBlocks, Bitmap.Config.ALPHA_8);
+        rowBytes = bitmap.getRowBytes();
+        alphas = new byte[rowBytes * heightBlocks];
+        alphaBuffer = ByteBuffer.wrap(alphas);
+    }
+
+    /**
+     * Copies the alphas into the bitmap.
+     */
+    void upload() {
+        alphaBuffer.rewind();
+        bitmap.copyPixelsFromBuffer(alphaBuffer);
+    }
+
+    /** The cloud opacity, one pixel per block; to be drawn scaled up by the settings' pixelSize. */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /** Where to draw the bitmap's left edge on the screen: 0, or up to one block to the left. */
+    public float getOffsetX() {
+        return offsetX;
+    }
+
+    /** Where to draw the bitmap's top edge on the screen: 0, or up to one block above. */
+    public float getOffsetY() {
+        return offsetY;
+    }
+
+    /** The settings this frame was last generated with. */
+    public AnimationSettings getAnimationSettings() {
+        return animationSettings;
+    }
+
+    /**
+     * Copies the alphas into the given array, or into a new one if it is null or not the size
+     * of this frame's. Returns the array copied into.
+     */
+    public byte[] copyAlphas(byte[] target) {
+        if (target == null || target.length != alphas.length) {
+            target = new byte[alphas.length];
+        }
+        System.arraycopy(alphas, 0, target, 0, alphas.length);
+        return target;
+    }
+
+    /**
+     * The most any block's alpha differs from the same block in the given alphas (copied from a
+     * frame with copyAlphas()), in levels out of 255, or -1 if they are from a frame of another size.
+     */
+    public int maxDifference(byte[] otherAlphas) {
+        if (otherAlphas.length != alphas.length) {
+            return -1;
+        }
+        int max = 0;
+        for (int i = 0; i < alphas.length; i++) {
+            final int difference = Math.abs((alphas[i] & 0xFF) - (otherAlphas[i] & 0xFF));
+            if (difference > max) {
+                max = difference;
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,216 @@
+package com.mcherm.cloudpaper.renderer;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+/**
+ * Turns raw noise into cloud opacity for one cloud density: the noise is quantized into a
+ * 16-bit field level, and the level's top 12 bits are looked up in a table of opacities.
+ * At 4 KB the table stays in the L1 cache. Sharing an entry between 16 levels keeps opacity
+ * within one step of the exact value at densities of 0.05 and up, and within four at 0.01,
+ * where a whole cloud spans only 1% of the noise.
+ *
+ * <p>A kernel is built once per settings snapshot and never changes afterward, so it can be
+ * shared by every worker generating a frame, and kept by a frame still being generated while
+ * the settings change. Everything that only depends on the settings is worked out up front,
+ * leaving one multiply, one add, a clamp and a lookup per block.
+ */
+class CloudKernel {
+
+    /** Highest level of the quantized noise field; level q stands for normalized noise q / FIELD_MAX */
+    static final int FIELD_MAX = 65535;
+
+    // Field levels share a table entry in runs of 1 << TABLE_SHIFT
+    private static final int TABLE_SHIFT = 4;
+
+    // Level of raw noise n is n * LEVEL_SCALE + LEVEL_OFFSET, rounded to nearest
+    private static final float LEVEL_SCALE = 0.5f * FIELD_MAX;
+    private static final float LEVEL_OFFSET = 0.5f * FIELD_MAX + 0.5f;
+
+    /** Normalized noise (in [0, 1]) below which there is clear sky */
+    final float threshold;
+
+    // Opacity for each run of levels of the field, that of the level in the middle of the run
+    private final byte[] alphaTable = new byte[(FIELD_MAX >> TABLE_SHIFT) + 1];
+
+    private CloudKernel(float threshold) {
+        this.threshold = threshold;
+        for (int entry = 0; entry < alphaTable.length; entry++) {
+            // Normalized noise, in [0, 1]
+            final int level = (entry << TABLE_SHIFT) + (1 << TABLE_SHIFT) / 2;
+            final float noiseValue = level / (float) FIELD_MAX;
+
+            final int alpha;
+            // Apply threshold to create sparse clouds
+            if (noiseValue < threshold) {
+                // No cloud - fully transparent
+                alpha = 0;
+            } else {
+                // Cloud present - map noise to opacity
+                float cloudIntensity = (noiseValue - threshold) / (1.0f - threshold);
+
+                // Cloud opacity (0 to 255)
+                alpha = Math.min(255, (int) (cloudIntensity * 255));
+            }
+            alphaTable[entry] = (byte) alpha;
+        }
+    }
+
+    /**
+     * The kernel for the given settings, which is the previous one (if any) when the settings
+     * did not change how noise maps to opacity.
+     */
+    static CloudKernel forSettings(AnimationSettings animationSettings, CloudKernel previous) {
+        final float threshold = 1.0f - animationSettings.cloudDensityThreshold;
+        if (previous != null && previous.threshold == threshold) {
+            return previous;
+        }
+        return new CloudKernel(threshold);
+    }
+
+    /**
+     * Quantizes the raw noise of block rows firstRow to endRow - 1 into the field, and maps
+     * it to opacity in the frame's alphas, in a single pass.
+     */
+    void apply(float[] noiseValues, char[] field, CloudFrame target, int firstRow, int endRow) {
+        final byte[] table = alphaTable;
+        final byte[] alphas = target.alphas;
+        final int rowBytes = target.rowBytes;
+        final int widthBlocks = target.widthBlocks;
+        if (rowBytes == widthBlocks) {
+            // The alphas have no padding after each row, so the rows are one run of blocks in both
+            final int end = endRow * widthBlocks;
+            for (int index = firstRow * widthBlocks; index < end; index++) {
+                final int level = level(noiseValues[index]);
+                field[index] = (char) level;
+                alphas[index] = table[level >> TABLE_SHIFT];
+            }
+            return;
+        }
+        int sampleIndex = firstRow * widthBlocks;
+        for (int row = firstRow; row < endRow; row++) {
+            final int rowStart = row * rowBytes;
+            for (int col = 0; col < widthBlocks; col++) {
+                final int level = level(noiseValues[sampleIndex]);
+                field[sampleIndex++] = (char) level;
+                alphas[rowStart + col] = table[level >> TABLE_SHIFT];
+            }
+        }
+    }
+
+    /**
+     * Maps an already quantized field of block rows firstRow to endRow - 1 to opacity in
+     * the frame's alphas.
+     */
+    void map(char[] field, CloudFrame target, int firstRow, int endRow) {
+        final byte[] table = alphaTable;
+        final byte[] alphas = target.alphas;
+        final int rowBytes = target.rowBytes;
+        final int widthBlocks = target.widthBlocks;
+        if (rowBytes == widthBlocks) {
+            final int end = endRow * widthBlocks;
+            for (int index = firstRow * widthBlocks; index < end; index++) {
+                alphas[index] = table[field[index] >> TABLE_SHIFT];
+            }
+            return;
+        }
+        int sampleIndex = firstRow * widthBlocks;
+        for (int row = firstRow; row < endRow; row++) {
+            final int rowStart = row * rowBytes;
+            for (int col = 0; col < widthBlocks; col++) {
+                alphas[rowStart + col] = table[field[sampleIndex++] >> TABLE_SHIFT];
+            }
+        }
+    }
+
+    /**
+     * Maps a field that has only been sampled at every step-th block of every step-th row to
+     * opacity in the frame's alphas, each block taking the level of the sampled block at the
+     * top left of its step x step cell.
+     */
+    void mapCoarse(char[] field, CloudFrame target, int step) {
+        if (step == 1) {
+            map(field, target, 0, target.heightBlocks);
+            return;
+        }
+        final byte[] table = alphaTable;
+        final byte[] alphas = target.alphas;
+        final int rowBytes = target.rowBytes;
+        final int widthBlocks = target.widthBlocks;
+        final int heightBlocks = target.heightBlocks;
+        for (int row = 0; row < heightBlocks; row++) {
+            final int rowStart = row * rowBytes;
+            final int sampledStart = (row - row % step) * widthBlocks;
+            for (int col = 0; col < widthBlocks; col += step) {
+                final byte alpha = table[field[sampledStart + col] >> TABLE_SHIFT];
+                final int end = Math.min(col + step, widthBlocks);
+                for (int fill = col; fill < end; fill++) {
+                    alphas[rowStart + fill] = alpha;
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a blend of two keyframes to opacity in the frame's alphas, also storing it in the
+     * field. Frame block (col, row) is noise block (originX + col, originY + row), which both
+     * keyframes must cover. The weight of the second keyframe is in 256ths.
+     */
+    void blend(Keyframe from, Keyframe to, int weight, int originX, int originY, char[] field, CloudFrame target) {
+        final byte[] table = alphaTable;
+        final byte[] alphas = target.alphas;
+        final int rowBytes = target.rowBytes;
+        final int widthBlocks = target.widthBlocks;
+        final int heightBlocks = target.heightBlocks;
+        final char[] fromLevels = from.levels;
+        final char[] toLevels = to.levels;
+        final int fromWeight = 256 - weight;
+        int sampleIndex = 0;
+        for (int row = 0; row < heightBlocks; row++) {
+            final int rowStart = row * rowBytes;
+            final int fromStart = (originY + row - from.originY) * from.widthBlocks + originX - from.originX;
+            final int toStart = (originY + row - to.originY) * to.widthBlocks + originX - to.originX;
+            for (int col = 0; col < widthBlocks; col++) {
+                final int level = (fromLevels[fromStart + col] * fromWeight + toLevels[toStart + col] * weight + 128) >> 8;
+                field[sampleIndex++] = (char) level;
+                alphas[rowStart + col] = table[level >> TABLE_SHIFT];
+            }
+        }
+    }
+
+    /**
+     * Quantizes a rectangle of raw noise, cols x rows values laid out a row after another
+     * from noiseValues[start], into the blocks of the field (widthBlocks wide) starting at
+     * (col0, row0).
+     */
+    static void quantize(float[] noiseValues, int start, int cols, int rows, char[] field, int widthBlocks,
+                         int col0, int row0) {
+        int sampleIndex = start;
+        for (int row = row0; row < row0 + rows; row++) {
+            final int rowStart = row * widthBlocks;
+            for (int col = col0; col < col0 + cols; col++) {
+                field[rowStart + col] = (char) level(noiseValues[sampleIndex++]);
+            }
+        }
+    }
+
+    /**
+     * Quantizes count values of raw noise into every stride-th block of the field, starting
+     * with the block at index start.
+     */
+    static void quantizeEvery(float[] noiseValues, int count, char[] field, int start, int stride) {
+        int fieldIndex = start;
+        for (int i = 0; i < count; i++) {
+            field[fieldIndex] = (char) level(noiseValues[i]);
+            fieldIndex += stride;
+        }
+    }
+
+    /**
+     * The field level of raw noise
+     */
+    private static int level(float noiseValue) {
+        // Noise that stopped early can be far outside [-1, 1], even infinite, so clamp it
+        final int level = (int) (noiseValue * LEVEL_SCALE + LEVEL_OFFSET);
+        return level < 0 ? 0 : level > FIELD_MAX ? FIELD_MAX : level;
+    }
+}
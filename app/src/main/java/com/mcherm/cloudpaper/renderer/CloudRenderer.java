@@ -1,7 +1,5 @@
 package com.mcherm.cloudpaper.renderer;
 
-import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.util.Log;
 
 import com.mcherm.cloudpaper.AnimationSettings;
@@ -12,105 +10,979 @@ import com.mcherm.cloudpaper.noise.FastNoiseLite;
  *
  * <p>Uses FastNoiseLite with OpenSimplex2S and FBm (Fractal Brownian Motion)
  * to create realistic, wispy cloud patterns.
+ *
+ * <p>The texture has one pixel per block of pixelSize x pixelSize screen pixels; it is
+ * meant to be drawn scaled up by pixelSize. It is an alpha-only mask (cloud opacity), so
+ * the color comes from the Paint it is drawn with. The renderer has a frame of its own,
+ * and can also fill frames created with createFrame(), so that one frame can be drawn
+ * while the next is generated.
+ *
+ * <p>On multi-core devices the frame is split into bands of whole block rows that are
+ * generated in parallel. Each worker has its own FastNoiseLite (they keep scratch state),
+ * and every band gives exactly the values a single pass would, so the output is the same
+ * bit for bit. Call release() when done with a renderer to stop its threads.
+ *
+ * <p>Turning noise into opacity is done by a CloudKernel built for the current settings, which
+ * quantizes the noise into a 16-bit field and maps it through a lookup table in the same pass.
+ * The field is kept, so when only the density has changed, remapClouds() can redo the mapping
+ * without sampling the noise.
+ *
+ * <p>With scrollRefreshFrames above 0 the blocks are lined up with the noise instead of the
+ * screen, one extra row and column of them covering the part of a block that drift has moved
+ * on screen (see CloudFrame.getOffsetX()). Then most frames just shift the last field by the
+ * whole blocks the clouds have drifted and sample the noise for the strips uncovered at the
+ * edges, and every scrollRefreshFrames frames the whole field is sampled again.
+ *
+ * <p>With tileZStep above 0 the blocks are lined up the same way, and the field is put together
+ * from tiles of TileCache.TILE_BLOCKS x TILE_BLOCKS blocks, fixed in the noise, that are kept
+ * for the same time step (time moves in steps of tileZStep). Only tiles that are missing are
+ * rendered, in parallel like bands; the least recently used tiles are dropped beyond a budget
+ * of TILE_CACHE_BYTES. Its hits and misses are counted, for tuning the step.
+ *
+ * <p>With keyframeMillis above 0 (and the clouds evolving), the blocks are lined up the same
+ * way, and the noise is only fully sampled for keyframes that far apart in time, each covering
+ * a frame plus the drift over a keyframe interval either side. A frame blends the keyframes
+ * before and after it, each shifted by the drift since, and does some of the work on the
+ * keyframe after those, so that it is ready (by PROGRESSIVE_SHARE of the way through the
+ * interval) without any frame having to do it all.
+ *
+ * <p>With progressiveFrames, the first frame after a resize (or a change of pixelSize or noise
+ * frequency) only samples every COARSE_STEP-th block of every COARSE_STEP-th row, each showing
+ * for its whole cell, so that it is ready almost at once. Each frame after it halves the step,
+ * sampling only the blocks in between those already sampled, until every block is.
+ *
+ * <p>generateLoopFrame() makes frames of a looping animation (see LoopCache): it blends the
+ * noise at two times, sampled without early exit, in parallel bands like any other frame.
  */
 public class CloudRenderer {
 
+    /** Octaves of noise added together, unless setOctaves() asks for fewer */
+    public static final int FULL_OCTAVES = 3;
+
+    /** Most threads (including the caller's) to generate one frame with */
+    static final int MAX_WORKERS = 4;
+
+    /** Bands per worker, so that workers on faster cores can take on more of the frame */
+    private static final int BANDS_PER_WORKER = 4;
+
+    /** Furthest the clouds can drift between frames, in blocks, and still be scrolled */
+    private static final int MAX_SCROLL_BLOCKS = 8;
+
+    /** Memory for cached tiles, unless one frame needs more */
+    private static final int TILE_CACHE_BYTES = 4 * 1024 * 1024;
+
+    /** How far through a keyframe interval the keyframe after next should be done */
+    private static final float PROGRESSIVE_SHARE = 0.75f;
+
+    /** Most blocks that keyframes extend past each side of the frame, to allow for drift */
+    private static final int MAX_KEYFRAME_MARGIN = 64;
+
+    /** Step between the blocks sampled by the first, coarsest frame of progressive refinement */
+    private static final int COARSE_STEP = 8;
+
     private final FastNoiseLite noise;
-    private Bitmap cloudBitmap;
-    private int[] pixels;
+    private final FastNoiseLite[] workerNoises;
+    private final BandWorkers bandWorkers;
+    private final BandWorkers.Job bandJob = this::generateBand;
+    private final BandWorkers.Job tileJob = this::renderTile;
+    private final BandWorkers.Job keyframeJob = this::fillKeyframeBand;
+    private final BandWorkers.Job loopJob = this::generateLoopBand;
+    private final BandWorkers.Job refineJob = this::refineBand;
+    private CloudFrame frame;
+    private float[] noiseValues;
     private int widthPixels;
     private int heightPixels;
-    private final AnimationSettings animationSettings;
+    private int widthBlocks;
+    private int heightBlocks;
+    private AnimationSettings animationSettings;
+    private CloudKernel kernel;
+    private int octaves = FULL_OCTAVES;
+
+    // The noise of the last frame generated, quantized. Only exact for normalized noise at or
+    // above fieldThreshold (lower values may have stopped adding octaves early); NaN if none.
+    private char[] field;
+    private float fieldThreshold = Float.NaN;
+
+    // Whether blocks line up with the noise (for scrolling or tiles) rather than the screen
+    private boolean alignedBlocks;
+
+    // Scrolling: the noise block of the field's top left block, the time it was last fully
+    // sampled at, and how many frames ago; and a scratch strip for the uncovered edges
+    private int fieldOriginX;
+    private int fieldOriginY;
+    private float fieldZOffset;
+    private int framesSinceRefresh;
+    private float[] stripValues;
+
+    // Tiles: the cache, the tiles making up the frame, those of them still to render, and a
+    // scratch tile of noise for each worker
+    private TileCache tileCache;
+    private TileCache.Tile[] frameTiles;
+    private TileCache.Tile[] missingTiles;
+    private float[][] tileValues;
+
+    // Keyframes: two to blend and one in the works, and the noise for filling them; null if off
+    private Keyframe[] keyframes;
+    private float[] keyframeValues;
+
+    // Progressive refinement: the step of the blocks the next frame samples (0 once every block
+    // has been), whether it is the first, the origin and kernel they are sampled for, and a
+    // scratch row of samples for each worker
+    private int refineStep;
+    private boolean refineFirst;
+    private int refineOriginX;
+    private int refineOriginY;
+    private CloudKernel refineKernel;
+    private float[][] refineValues;
+
+    // Looping: the noise at the second of the two times blended; null until needed
+    private float[] loopValues;
+
+    // The frame being generated, and (for bands) how, set before the workers start on it
+    private CloudFrame targetFrame;
+    private CloudKernel frameKernel;
+    private int bandCount;
+    private float frameX0;
+    private float frameY0;
+    private float frameZOffset;
+    private float frameLowerBound;
+    private float frameUpperBound;
+    private float frameTileZ;
+    private Keyframe fillingKeyframe;
+    private int fillFirstRow;
+    private int fillEndRow;
+    private float fillZ;
+    private float loopFromX;
+    private float loopFromY;
+    private float loopFromZ;
+    private float loopToX;
+    private float loopToY;
+    private float loopToZ;
+    private float loopWeight;
 
     public CloudRenderer(AnimationSettings animationSettings) {
+        this(animationSettings, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a renderer that generates frames on the given number of threads (including the
+     * calling thread), whatever the device has.
+     */
+    CloudRenderer(AnimationSettings animationSettings, int workerCount) {
         this.animationSettings = animationSettings;
+        this.kernel = CloudKernel.forSettings(animationSettings, null);
+        this.alignedBlocks = alignsBlocks(animationSettings);
 
-        // Initialize FastNoiseLite with OpenSimplex2S and FBm
-        noise = new FastNoiseLite();
+        workerNoises = new FastNoiseLite[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workerNoises[i] = createNoise(animationSettings);
+        }
+        noise = workerNoises[0];
+        bandWorkers = workerCount > 1 ? new BandWorkers(workerCount) : null;
+    }
+
+    /**
+     * Creates a FastNoiseLite with OpenSimplex2S and FBm
+     */
+    private static FastNoiseLite createNoise(AnimationSettings animationSettings) {
+        FastNoiseLite noise = new FastNoiseLite();
         noise.SetNoiseType(FastNoiseLite.NoiseType.OpenSimplex2S);
         noise.SetFractalType(FastNoiseLite.FractalType.FBm);
-        noise.SetFractalOctaves(3);
+        noise.SetFractalOctaves(FULL_OCTAVES);
         noise.SetFrequency(animationSettings.noiseFrequency);
+        return noise;
     }
 
     /**
-     * Initialize or resize the cloud bitmap
+     * Switches to new settings, keeping the worker threads and, unless pixelSize changed or
+     * scrolling or tiles were turned on or off, the buffers. Frames created before are still
+     * usable if canGenerate(frame) says so.
+     */
+    public void setAnimationSettings(AnimationSettings animationSettings) {
+        final AnimationSettings oldSettings = this.animationSettings;
+        final boolean newAlignedBlocks = alignsBlocks(animationSettings);
+        final boolean blocksChanged = animationSettings.pixelSize != oldSettings.pixelSize
+                || newAlignedBlocks != alignedBlocks;
+        if (animationSettings.noiseFrequency != oldSettings.noiseFrequency) {
+            // The last field is of different noise now
+            fieldThreshold = Float.NaN;
+            startRefinement();
+        } else if (!animationSettings.progressiveFrames) {
+            refineStep = 0;
+        }
+        final boolean keyframesChanged = animationSettings.noiseFrequency != oldSettings.noiseFrequency
+                || animationSettings.keyframeMillis != oldSettings.keyframeMillis
+                || animationSettings.evolutionRate != oldSettings.evolutionRate
+                || animationSettings.driftX != oldSettings.driftX
+                || animationSettings.driftY != oldSettings.driftY;
+        if (tileCache != null && (animationSettings.noiseFrequency != oldSettings.noiseFrequency
+                || animationSettings.pixelSize != oldSettings.pixelSize
+                || animationSettings.tileZStep != oldSettings.tileZStep)) {
+            // The cached tiles are of different noise, blocks or time steps now
+            tileCache.clear();
+        }
+        this.animationSettings = animationSettings;
+        this.alignedBlocks = newAlignedBlocks;
+        this.kernel = CloudKernel.forSettings(animationSettings, kernel);
+        for (FastNoiseLite workerNoise : workerNoises) {
+            workerNoise.SetFrequency(animationSettings.noiseFrequency);
+        }
+        if (blocksChanged && frame != null) {
+            allocateBuffers();
+        } else if (frame != null) {
+            allocateTiles();
+            if (keyframesChanged) {
+                allocateKeyframes();
+            }
+        }
+    }
+
+    /**
+     * Sets how many octaves of noise are added together: FULL_OCTAVES normally, fewer to
+     * save time. Drops the last field, tiles and keyframes if it changes.
+     */
+    public void setOctaves(int octaves) {
+        if (octaves == this.octaves) {
+            return;
+        }
+        this.octaves = octaves;
+        for (FastNoiseLite workerNoise : workerNoises) {
+            workerNoise.SetFractalOctaves(octaves);
+        }
+        // The last field, the tiles and the keyframes are of different noise now
+        fieldThreshold = Float.NaN;
+        startRefinement();
+        if (tileCache != null) {
+            tileCache.clear();
+        }
+        if (frame != null) {
+            allocateKeyframes();
+        }
+    }
+
+    /**
+     * Whether the settings have the blocks line up with the noise instead of the screen
+     */
+    private static boolean alignsBlocks(AnimationSettings animationSettings) {
+        return animationSettings.scrollRefreshFrames > 0 || animationSettings.tileZStep > 0
+                || animationSettings.keyframeMillis > 0;
+    }
+
+    /**
+     * Stops the worker threads. The renderer can't be used afterward.
+     */
+    public void release() {
+        if (bandWorkers != null) {
+            bandWorkers.shutDown();
+        }
+    }
+
+    /**
+     * Initialize or resize the cloud bitmap. Frames created before a resize can no longer be generated.
      */
     public void setSurfaceSize(int width, int height) {
         if (this.widthPixels != width || this.heightPixels != height) {
             this.widthPixels = width;
             this.heightPixels = height;
+            allocateBuffers();
+        }
+    }
+
+    /**
+     * Sizes the blocks and the buffers for the current surface size and pixelSize
+     */
+    private void allocateBuffers() {
+        // One noise sample per block, including the partial blocks at the right and bottom edges,
+        // and when lined up with the noise, one more to cover the screen when blocks are partly off it
+        final int blockSize = animationSettings.pixelSize;
+        final int extraBlocks = alignedBlocks ? 1 : 0;
+        this.widthBlocks = (widthPixels + blockSize - 1) / blockSize + extraBlocks;
+        this.heightBlocks = (heightPixels + blockSize - 1) / blockSize + extraBlocks;
+
+        // Create frame, noise sample array and quantized field, all with one entry per block
+        frame = createFrame();
+        noiseValues = new float[widthBlocks * heightBlocks];
+        field = new char[widthBlocks * heightBlocks];
+        fieldThreshold = Float.NaN;
+
+        stripValues = alignedBlocks ? new float[MAX_SCROLL_BLOCKS * Math.max(widthBlocks, heightBlocks)] : null;
+        refineValues = new float[workerNoises.length][widthBlocks];
+        allocateTiles();
+        allocateKeyframes();
+        startRefinement();
+    }
+
+    /**
+     * Has the next frames sharpen from coarse to fine, if the settings ask for progressive frames.
+     */
+    private void startRefinement() {
+        if (animationSettings.progressiveFrames) {
+            refineStep = COARSE_STEP;
+            refineFirst = true;
+        } else {
+            refineStep = 0;
+        }
+    }
+
+    /**
+     * Whether the frames are still sharpening after a resize or a change of the noise; until
+     * they are done, each frame is quick to generate.
+     */
+    public boolean isRefining() {
+        return refineStep > 0;
+    }
+
+    /**
+     * Creates the tile cache, if the settings use one, with room for at least the tiles of a
+     * frame; or drops it if they don't. Keeps the cache if it is already the right size.
+     */
+    private void allocateTiles() {
+        if (!(animationSettings.tileZStep > 0)) {
+            tileCache = null;
+            frameTiles = null;
+            missingTiles = null;
+            tileValues = null;
+            return;
+        }
+
+        // The most tiles a frame can overlap, however the blocks line up with them
+        final int tilesAcross = (widthBlocks - 1) / TileCache.TILE_BLOCKS + 2;
+        final int tilesDown = (heightBlocks - 1) / TileCache.TILE_BLOCKS + 2;
+        final int frameTileCount = tilesAcross * tilesDown;
+        final int capacity = Math.max(TILE_CACHE_BYTES / TileCache.TILE_BYTES, frameTileCount);
+        if (tileCache == null || tileCache.getCapacity() != capacity) {
+            tileCache = new TileCache(capacity);
+        }
+        if (frameTiles == null || frameTiles.length != frameTileCount) {
+            frameTiles = new TileCache.Tile[frameTileCount];
+            missingTiles = new TileCache.Tile[frameTileCount];
+        }
+        if (tileValues == null) {
+            tileValues = new float[workerNoises.length][TileCache.TILE_BLOCKS * TileCache.TILE_BLOCKS];
+        }
+    }
+
+    /**
+     * Creates the keyframes, if the settings use them, sized for the current blocks and drift;
+     * or drops them if they don't. Any keyframes kept are emptied.
+     */
+    private void allocateKeyframes() {
+        if (animationSettings.keyframeMillis <= 0 || animationSettings.evolutionRate == 0) {
+            keyframes = null;
+            keyframeValues = null;
+            return;
+        }
 
-            // Create bitmap and pixel array
-            cloudBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            pixels = new int[width * height];
+        // Room for the drift over one keyframe interval either side of the keyframe's time
+        final int blockSize = animationSettings.pixelSize;
+        final int marginX = Math.min(MAX_KEYFRAME_MARGIN,
+                (int) Math.ceil(Math.abs(animationSettings.driftX) * animationSettings.keyframeMillis / blockSize) + 1);
+        final int marginY = Math.min(MAX_KEYFRAME_MARGIN,
+                (int) Math.ceil(Math.abs(animationSettings.driftY) * animationSettings.keyframeMillis / blockSize) + 1);
+        final int keyframeWidth = widthBlocks + 2 * marginX;
+        final int keyframeHeight = heightBlocks + 2 * marginY;
+        if (keyframes == null || keyframes[0].widthBlocks != keyframeWidth
+                || keyframes[0].heightBlocks != keyframeHeight) {
+            keyframes = new Keyframe[3];
+            for (int i = 0; i < keyframes.length; i++) {
+                keyframes[i] = new Keyframe(keyframeWidth, keyframeHeight);
+            }
+            keyframeValues = new float[keyframeWidth * keyframeHeight];
+        } else {
+            for (Keyframe keyframe : keyframes) {
+                keyframe.reset(Keyframe.NO_INDEX, 0, 0);
+            }
         }
     }
 
     /**
-     * Generate cloud texture using 3D noise
-     * Returns a bitmap with clouds rendered over transparent background
+     * Creates a frame for the current surface size, for use with generateClouds(CloudFrame, ...)
+     */
+    public CloudFrame createFrame() {
+        return new CloudFrame(widthBlocks, heightBlocks);
+    }
+
+    /**
+     * Whether generateClouds(CloudFrame, ...) can fill the given frame, which it can until
+     * the number of blocks changes
+     */
+    public boolean canGenerate(CloudFrame target) {
+        return target.widthBlocks == widthBlocks && target.heightBlocks == heightBlocks;
+    }
+
+    /**
+     * Generate cloud texture using 3D noise into the renderer's own frame
+     * Returns that frame, or null if the surface size is not known yet
      *
      * @param xOffset X-offset for horizontal drift
      * @param yOffset Y-offset for vertical drift
      * @param zOffset Z-position for evolution over time
      */
-    public Bitmap generateClouds(final float xOffset, final float yOffset, final float zOffset) {
-        if (cloudBitmap == null) {
-            Log.w("CloudPaper", "generateClouds: cloudBitmap is null!");
+    public CloudFrame generateClouds(final float xOffset, final float yOffset, final float zOffset) {
+        if (frame == null) {
+            Log.w("CloudPaper", "generateClouds: frame is null!");
             return null;
         }
+        generateClouds(frame, xOffset, yOffset, zOffset);
+        return frame;
+    }
 
+    /**
+     * Generate cloud texture using 3D noise into the given frame, which must have been created
+     * by this renderer since the last change of surface size
+     *
+     * @param xOffset X-offset for horizontal drift
+     * @param yOffset Y-offset for vertical drift
+     * @param zOffset Z-position for evolution over time
+     */
+    public void generateClouds(CloudFrame target, final float xOffset, final float yOffset, final float zOffset) {
+        if (!canGenerate(target)) {
+            throw new IllegalArgumentException("Frame does not match the surface size");
+        }
+        final CloudKernel kernel = this.kernel;
         final int blockSize = animationSettings.pixelSize;
+        final float threshold = kernel.threshold;
 
-        for (int y = 0; y < heightPixels; y += blockSize) {
-            for (int x = 0; x < widthPixels; x += blockSize) {
-                // Get 3D noise value with drift offsets applied
-                // x,y is screen coordinates (with drift), z is time
-                float noiseValue = noise.GetNoise(x - xOffset, y - yOffset, zOffset);
+        // Block (col, row) gets the noise at (x0 + col * blockSize, y0 + row * blockSize) and
+        // time zOffset; it is drawn at screen coordinates (offsetX + col * blockSize, offsetY +
+        // row * blockSize). Normally the blocks line up with the screen; for scrolling or tiles, they
+        // line up with the noise, and the frame is drawn up to a block up and to the left.
+        final float x0;
+        final float y0;
+        final int originX;
+        final int originY;
+        if (alignedBlocks) {
+            originX = (int) Math.floor(-xOffset / blockSize);
+            originY = (int) Math.floor(-yOffset / blockSize);
+            x0 = originX * (float) blockSize;
+            y0 = originY * (float) blockSize;
+        } else {
+            originX = 0;
+            originY = 0;
+            x0 = -xOffset;
+            y0 = -yOffset;
+        }
+        target.offsetX = x0 + xOffset;
+        target.offsetY = y0 + yOffset;
 
-                // Normalize noise from [-1, 1] to [0, 1]
-                noiseValue = (noiseValue + 1.0f) / 2.0f;
+        // Only raw values between the threshold (clear sky below it) and 1 (full opacity at
+        // or above it) affect the picture.
+        final float lowerBound = 2.0f * threshold - 1.0f;
+        final float upperBound = 1.0f;
+        if (refineStep > 0 && !refineFirst && (kernel != refineKernel
+                || originX != refineOriginX || originY != refineOriginY)) {
+            // The blocks sampled so far are for another density or have moved a whole block on,
+            // so sample every block this time
+            refineStep = 0;
+        }
+        if (refineStep > 0) {
+            // Sample the blocks between those already sampled (or the coarsest ones to begin
+            // with); blocks sampled for earlier frames are kept, being only a frame or so old
+            refine(target, kernel, originX, originY, x0, y0, zOffset, lowerBound, upperBound);
+            if (refineStep > 0) {
+                // The field isn't whole yet, so no later frame can build on it
+                target.upload();
+                target.animationSettings = animationSettings;
+                return;
+            }
+            fieldOriginX = originX;
+            fieldOriginY = originY;
+            fieldZOffset = zOffset;
+            framesSinceRefresh = 0;
+        } else if (tileCache != null) {
+            // Put the field together from tiles, rendering the missing ones
+            final float tileZ = generateFromTiles(originX, originY, zOffset, threshold, lowerBound, upperBound);
+            kernel.map(field, target, 0, heightBlocks);
+            fieldOriginX = originX;
+            fieldOriginY = originY;
+            fieldZOffset = tileZ;
+            framesSinceRefresh = 0;
+        } else if (keyframes != null) {
+            // Blend the keyframes around this time, and work on the next one
+            generateFromKeyframes(target, kernel, originX, originY, xOffset, yOffset, zOffset);
+            fieldOriginX = originX;
+            fieldOriginY = originY;
+            fieldZOffset = zOffset;
+            framesSinceRefresh = 0;
+        } else if (animationSettings.scrollRefreshFrames > 0
+                && scrollField(kernel, originX, originY, x0, y0, zOffset, lowerBound, upperBound)) {
+            // Only the edges needed sampling; the rest of the field was shifted along
+            kernel.map(field, target, 0, heightBlocks);
+            framesSinceRefresh++;
+        } else {
+            if (bandWorkers != null) {
+                // Sample and map bands of rows in parallel, with the same early exit as below
+                targetFrame = target;
+                frameKernel = kernel;
+                frameX0 = x0;
+                frameY0 = y0;
+                frameZOffset = zOffset;
+                frameLowerBound = lowerBound;
+                frameUpperBound = upperBound;
+                bandCount = Math.min(heightBlocks, bandWorkers.getWorkerCount() * BANDS_PER_WORKER);
+                bandWorkers.run(bandJob, bandCount);
+                targetFrame = null;
+            } else {
+                // Sample every block in one call, letting the noise stop adding octaves once a
+                // block's value is certain to fall outside the bounds.
+                noise.GetNoiseGrid(noiseValues, x0, y0, blockSize, blockSize,
+                        widthBlocks, heightBlocks, zOffset, lowerBound, upperBound);
+                kernel.apply(noiseValues, field, target, 0, heightBlocks);
+            }
+            fieldOriginX = originX;
+            fieldOriginY = originY;
+            fieldZOffset = zOffset;
+            framesSinceRefresh = 0;
+        }
+        fieldThreshold = threshold;
 
-                final float threshold = 1.0f - animationSettings.cloudDensityThreshold;
+        // Write alphas to bitmap
+        target.upload();
+        target.animationSettings = animationSettings;
+    }
 
-                final int pixelValue;
-                // Apply threshold to create sparse clouds
-                if (noiseValue < threshold) {
-                    // No cloud - fully transparent
-                    pixelValue = Color.TRANSPARENT;
-                } else {
-                    // Cloud present - map noise to opacity
-                    float cloudIntensity = (noiseValue - threshold) / (1.0f - threshold);
+    /**
+     * Brings the field from the last frame to the given origin by shifting it and sampling the
+     * strips uncovered at the edges, if that is possible and the field isn't due for a full
+     * refresh. Returns whether it did.
+     */
+    private boolean scrollField(CloudKernel kernel, int originX, int originY, float x0, float y0, float zOffset,
+                                float lowerBound, float upperBound) {
+        final int shiftX = originX - fieldOriginX;
+        final int shiftY = originY - fieldOriginY;
+        final boolean refreshDue = framesSinceRefresh + 1 >= animationSettings.scrollRefreshFrames
+                && zOffset != fieldZOffset;
+        if (!(kernel.threshold >= fieldThreshold) || refreshDue
+                || Math.abs(shiftX) > MAX_SCROLL_BLOCKS || Math.abs(shiftY) > MAX_SCROLL_BLOCKS
+                || Math.abs(shiftX) >= widthBlocks || Math.abs(shiftY) >= heightBlocks) {
+            return false;
+        }
 
-                    // Cloud opacity (0 to 255)
-                    int alpha = (int) (cloudIntensity * 255);
+        // Field block (col, row) becomes what was block (col + shiftX, row + shiftY). Rows are
+        // moved in the order that never overwrites a row before it has been moved.
+        final int keptCols = widthBlocks - Math.abs(shiftX);
+        final int keptRows = heightBlocks - Math.abs(shiftY);
+        final int firstKeptRow = Math.max(0, -shiftY);
+        final int firstKeptCol = Math.max(0, -shiftX);
+        for (int n = 0; n < keptRows; n++) {
+            final int row = shiftY >= 0 ? firstKeptRow + n : firstKeptRow + keptRows - 1 - n;
+            System.arraycopy(field, (row + shiftY) * widthBlocks + firstKeptCol + shiftX,
+                    field, row * widthBlocks + firstKeptCol, keptCols);
+        }
 
-                    // White clouds with calculated opacity
-                    pixelValue = Color.argb(alpha, 255, 255, 255);
-                }
+        // Sample the uncovered rows across the whole width, then the uncovered columns of the rest
+        final int newRow0 = shiftY >= 0 ? keptRows : 0;
+        sampleStrip(kernel, 0, newRow0, widthBlocks, heightBlocks - keptRows, x0, y0, zOffset, lowerBound, upperBound);
+        final int newCol0 = shiftX >= 0 ? keptCols : 0;
+        sampleStrip(kernel, newCol0, firstKeptRow, widthBlocks - keptCols, keptRows, x0, y0, zOffset,
+                lowerBound, upperBound);
+
+        fieldOriginX = originX;
+        fieldOriginY = originY;
+        return true;
+    }
+
+    /**
+     * Samples a rectangle of blocks (cols x rows, starting at (col0, row0)) into the field.
+     */
+    private void sampleStrip(CloudKernel kernel, int col0, int row0, int cols, int rows, float x0, float y0,
+                             float zOffset, float lowerBound, float upperBound) {
+        if (cols == 0 || rows == 0) {
+            return;
+        }
+        final int blockSize = animationSettings.pixelSize;
+        noise.GetNoiseGrid(stripValues, x0 + col0 * blockSize, y0 + row0 * blockSize, blockSize, blockSize,
+                cols, rows, zOffset, lowerBound, upperBound);
+        CloudKernel.quantize(stripValues, 0, cols, rows, field, widthBlocks, col0, row0);
+    }
+
+    /**
+     * Fills the field, whose top left block is block (originX, originY) of the noise, from the
+     * tiles for the time step nearest zOffset, rendering those not in the cache. Returns the
+     * time of that step.
+     */
+    private float generateFromTiles(int originX, int originY, float zOffset, float threshold,
+                                    float lowerBound, float upperBound) {
+        final int tileBlocks = TileCache.TILE_BLOCKS;
+        final float zStep = animationSettings.tileZStep;
+        final int zIndex = Math.round(zOffset / zStep);
+        final int firstTileX = Math.floorDiv(originX, tileBlocks);
+        final int firstTileY = Math.floorDiv(originY, tileBlocks);
+        final int lastTileX = Math.floorDiv(originX + widthBlocks - 1, tileBlocks);
+        final int lastTileY = Math.floorDiv(originY + heightBlocks - 1, tileBlocks);
 
-                // We got the pixelValue, now fill it in for the whole (blockSize x blockSize) chunk
-                for (int dY = 0; dY < blockSize; dY++) {
-                    final int yPix = y + dY;
-                    if (yPix < heightPixels) {
-                        for (int dX = 0; dX < blockSize; dX++) {
-                            final int xPix = x + dX;
-                            if (xPix < widthPixels) {
-                                final int index = yPix * widthPixels + xPix;
-                                pixels[index] = pixelValue;
-                            }
-                        }
-                    }
+        // Look up every tile first, so that none of them is evicted to make room for another
+        int tileCount = 0;
+        int missingCount = 0;
+        for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+            for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                TileCache.Tile tile = tileCache.get(tileX, tileY, zIndex, threshold);
+                if (tile == null) {
+                    tile = tileCache.put(tileX, tileY, zIndex, threshold);
+                    missingTiles[missingCount++] = tile;
                 }
+                frameTiles[tileCount++] = tile;
+            }
+        }
+
+        // Render the missing tiles, in parallel if there are workers
+        frameTileZ = zIndex * zStep;
+        frameLowerBound = lowerBound;
+        frameUpperBound = upperBound;
+        if (bandWorkers != null && missingCount > 1) {
+            bandWorkers.run(tileJob, missingCount);
+        } else {
+            for (int i = 0; i < missingCount; i++) {
+                renderTile(0, i);
+            }
+        }
+
+        // Copy the part of each tile that is in the frame
+        for (int i = 0; i < tileCount; i++) {
+            final TileCache.Tile tile = frameTiles[i];
+            final int tileCol0 = tile.tileX * tileBlocks - originX;
+            final int tileRow0 = tile.tileY * tileBlocks - originY;
+            final int firstCol = Math.max(0, tileCol0);
+            final int endCol = Math.min(widthBlocks, tileCol0 + tileBlocks);
+            final int firstRow = Math.max(0, tileRow0);
+            final int endRow = Math.min(heightBlocks, tileRow0 + tileBlocks);
+            for (int row = firstRow; row < endRow; row++) {
+                System.arraycopy(tile.levels, (row - tileRow0) * tileBlocks + firstCol - tileCol0,
+                        field, row * widthBlocks + firstCol, endCol - firstCol);
+            }
+            frameTiles[i] = null;
+        }
+        for (int i = 0; i < missingCount; i++) {
+            missingTiles[i] = null;
+        }
+        return frameTileZ;
+    }
+
+    /**
+     * Renders one of the missing tiles set up by generateFromTiles. Runs on any worker.
+     */
+    private void renderTile(int worker, int index) {
+        final TileCache.Tile tile = missingTiles[index];
+        final int blockSize = animationSettings.pixelSize;
+        final int tileBlocks = TileCache.TILE_BLOCKS;
+        final float[] values = tileValues[worker];
+        workerNoises[worker].GetNoiseGrid(values, (float) tile.tileX * tileBlocks * blockSize,
+                (float) tile.tileY * tileBlocks * blockSize, blockSize, blockSize, tileBlocks, tileBlocks,
+                frameTileZ, frameLowerBound, frameUpperBound);
+        CloudKernel.quantize(values, 0, tileBlocks, tileBlocks, tile.levels, tileBlocks, 0, 0);
+    }
+
+    /**
+     * Fills the field and the target frame, whose top left block is block (originX, originY)
+     * of the noise, by blending the keyframes before and after zOffset. Then fills the part of
+     * the keyframe after those that should be done by now.
+     */
+    private void generateFromKeyframes(CloudFrame target, CloudKernel kernel, int originX, int originY,
+                                       float xOffset, float yOffset, float zOffset) {
+        final float spacing = Math.abs(animationSettings.evolutionRate) * animationSettings.keyframeMillis;
+        final float position = zOffset / spacing;
+        final int index = (int) Math.floor(position);
+        final float fraction = position - index;
+
+        final Keyframe from = readyKeyframe(index, findKeyframe(index + 1, null, null),
+                originX, originY, xOffset, yOffset, zOffset);
+        final Keyframe to = readyKeyframe(index + 1, from, originX, originY, xOffset, yOffset, zOffset);
+        final int weight = Math.min(256, Math.round(fraction * 256));
+        kernel.blend(from, to, weight, originX, originY, field, target);
+
+        // The keyframe after these, in whichever direction time is going
+        final boolean forward = animationSettings.evolutionRate > 0;
+        final int nextIndex = forward ? index + 2 : index - 1;
+        final float progress = forward ? fraction : 1.0f - fraction;
+        Keyframe next = findKeyframe(nextIndex, from, to);
+        if (next == null) {
+            next = unusedKeyframe(index, from, to);
+            startKeyframe(next, nextIndex, xOffset, yOffset, zOffset);
+        }
+        final int rowsDue = (int) Math.ceil(Math.min(1.0f, progress / PROGRESSIVE_SHARE) * next.heightBlocks);
+        fillKeyframe(next, rowsDue);
+    }
 
+    /**
+     * Returns the keyframe with the given index, filled and covering the frame, doing whatever
+     * work is left (or, if it doesn't cover the frame, all of it) now. Leaves the given keyframe alone.
+     */
+    private Keyframe readyKeyframe(int index, Keyframe keep, int originX, int originY,
+                                   float xOffset, float yOffset, float zOffset) {
+        Keyframe keyframe = findKeyframe(index, keep, null);
+        if (keyframe == null) {
+            keyframe = unusedKeyframe(index, keep, null);
+            startKeyframe(keyframe, index, xOffset, yOffset, zOffset);
+        }
+        if (!keyframe.covers(originX, originY, widthBlocks, heightBlocks)) {
+            // The drift hasn't gone as expected; center it on the frame after all
+            keyframe.reset(index, originX - (keyframe.widthBlocks - widthBlocks) / 2,
+                    originY - (keyframe.heightBlocks - heightBlocks) / 2);
+        }
+        fillKeyframe(keyframe, keyframe.heightBlocks);
+        return keyframe;
+    }
+
+    /**
+     * The keyframe with the given index, other than the ones given, or null if there is none.
+     */
+    private Keyframe findKeyframe(int index, Keyframe other1, Keyframe other2) {
+        for (Keyframe keyframe : keyframes) {
+            if (keyframe.index == index && keyframe != other1 && keyframe != other2) {
+                return keyframe;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A keyframe other than the ones given to reuse, preferring one that is not around the
+     * keyframes index and index + 1.
+     */
+    private Keyframe unusedKeyframe(int index, Keyframe other1, Keyframe other2) {
+        Keyframe candidate = null;
+        for (Keyframe keyframe : keyframes) {
+            if (keyframe == other1 || keyframe == other2) {
+                continue;
             }
+            if (keyframe.index < index - 1 || keyframe.index > index + 2) {
+                return keyframe;
+            }
+            if (candidate == null) {
+                candidate = keyframe;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Starts a keyframe over for the given index, centered on where the frame will be by then
+     * if the clouds drift at the current rates.
+     */
+    private void startKeyframe(Keyframe keyframe, int index, float xOffset, float yOffset, float zOffset) {
+        final int blockSize = animationSettings.pixelSize;
+        final float spacing = Math.abs(animationSettings.evolutionRate) * animationSettings.keyframeMillis;
+        final float millisUntil = (index * spacing - zOffset) / animationSettings.evolutionRate;
+        final int originX = (int) Math.floor(-(xOffset + millisUntil * animationSettings.driftX) / blockSize);
+        final int originY = (int) Math.floor(-(yOffset + millisUntil * animationSettings.driftY) / blockSize);
+        keyframe.reset(index, originX - (keyframe.widthBlocks - widthBlocks) / 2,
+                originY - (keyframe.heightBlocks - heightBlocks) / 2);
+    }
+
+    /**
+     * Fills the rows of a keyframe up to endRow - 1 that are not filled yet, in parallel bands
+     * if there are workers.
+     */
+    private void fillKeyframe(Keyframe keyframe, int endRow) {
+        if (endRow <= keyframe.rowsDone) {
+            return;
+        }
+        fillingKeyframe = keyframe;
+        fillFirstRow = keyframe.rowsDone;
+        fillEndRow = endRow;
+        fillZ = keyframe.index * Math.abs(animationSettings.evolutionRate) * animationSettings.keyframeMillis;
+        final int rows = endRow - fillFirstRow;
+        if (bandWorkers != null && rows > 1) {
+            bandCount = Math.min(rows, bandWorkers.getWorkerCount() * BANDS_PER_WORKER);
+            bandWorkers.run(keyframeJob, bandCount);
+        } else {
+            bandCount = 1;
+            fillKeyframeBand(0, 0);
+        }
+        keyframe.rowsDone = endRow;
+        fillingKeyframe = null;
+    }
+
+    /**
+     * Fills one band of the rows set up by fillKeyframe, without early exit. Runs on any worker.
+     */
+    private void fillKeyframeBand(int worker, int band) {
+        final Keyframe keyframe = fillingKeyframe;
+        final int blockSize = animationSettings.pixelSize;
+        final int rows = fillEndRow - fillFirstRow;
+        final int firstRow = fillFirstRow + band * rows / bandCount;
+        final int endRow = fillFirstRow + (band + 1) * rows / bandCount;
+        final int width = keyframe.widthBlocks;
+        workerNoises[worker].GetNoiseGridRows(keyframeValues, keyframe.originX * (float) blockSize,
+                keyframe.originY * (float) blockSize, blockSize, blockSize, width, firstRow, endRow - firstRow,
+                fillZ, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        CloudKernel.quantize(keyframeValues, firstRow * width, width, endRow - firstRow, keyframe.levels, width,
+                0, firstRow);
+    }
+
+    /** Tile lookups that found the tile already rendered, since tiles were turned on. */
+    public long getTileHits() {
+        return tileCache != null ? tileCache.getHits() : 0;
+    }
+
+    /** Tile lookups that had to render the tile, since tiles were turned on. */
+    public long getTileMisses() {
+        return tileCache != null ? tileCache.getMisses() : 0;
+    }
+
+    /** Tiles dropped from the cache to make room for others, since tiles were turned on. */
+    public long getTileEvictions() {
+        return tileCache != null ? tileCache.getEvictions() : 0;
+    }
+
+    /**
+     * Generates a frame of a looping animation into the given frame, which must have been
+     * created by this renderer since the last change of surface size: a blend of the clouds at
+     * the offsets (fromX, fromY, fromZ) and those at (toX, toY, toZ), with the given weight
+     * (0 to 1) on the second. The blend is scaled to keep the clouds' contrast, so it is the
+     * clouds at either time exactly when the weight is 0 or 1. The blocks line up with the
+     * screen, whatever the other settings.
+     */
+    public void generateLoopFrame(CloudFrame target, float fromX, float fromY, float fromZ,
+                                  float toX, float toY, float toZ, float weight) {
+        if (!canGenerate(target)) {
+            throw new IllegalArgumentException("Frame does not match the surface size");
+        }
+        if (loopValues == null || loopValues.length != noiseValues.length) {
+            loopValues = new float[noiseValues.length];
+        }
+        targetFrame = target;
+        frameKernel = kernel;
+        loopFromX = fromX;
+        loopFromY = fromY;
+        loopFromZ = fromZ;
+        loopToX = toX;
+        loopToY = toY;
+        loopToZ = toZ;
+        loopWeight = weight;
+        if (bandWorkers != null) {
+            bandCount = Math.min(heightBlocks, bandWorkers.getWorkerCount() * BANDS_PER_WORKER);
+            bandWorkers.run(loopJob, bandCount);
+        } else {
+            bandCount = 1;
+            generateLoopBand(0, 0);
+        }
+        targetFrame = null;
+
+        // The field is a blend, not the noise at any one time, so later frames can't build on it
+        fieldThreshold = Float.NaN;
+        target.offsetX = 0;
+        target.offsetY = 0;
+        target.upload();
+        target.animationSettings = animationSettings;
+    }
+
+    /**
+     * Samples, blends and maps one band of the loop frame set up by generateLoopFrame. Runs on any worker.
+     */
+    private void generateLoopBand(int worker, int band) {
+        final int blockSize = animationSettings.pixelSize;
+        final int firstRow = band * heightBlocks / bandCount;
+        final int endRow = (band + 1) * heightBlocks / bandCount;
+        final FastNoiseLite workerNoise = workerNoises[worker];
+        workerNoise.GetNoiseGridRows(noiseValues, -loopFromX, -loopFromY, blockSize, blockSize,
+                widthBlocks, firstRow, endRow - firstRow, loopFromZ, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        workerNoise.GetNoiseGridRows(loopValues, -loopToX, -loopToY, blockSize, blockSize,
+                widthBlocks, firstRow, endRow - firstRow, loopToZ, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+        // Blending two independent values shrinks their spread by this much; scale it back up
+        final float fromWeight = 1.0f - loopWeight;
+        final float toWeight = loopWeight;
+        final float scale = 1.0f / (float) Math.sqrt(fromWeight * fromWeight + toWeight * toWeight);
+        final int end = endRow * widthBlocks;
+        for (int i = firstRow * widthBlocks; i < end; i++) {
+            noiseValues[i] = (noiseValues[i] * fromWeight + loopValues[i] * toWeight) * scale;
         }
+        frameKernel.apply(noiseValues, field, targetFrame, firstRow, endRow);
+    }
 
-        // Write pixels to bitmap
-        cloudBitmap.setPixels(pixels, 0, widthPixels, 0, 0, widthPixels, heightPixels);
+    /**
+     * The renderer's own frame, which generateClouds(xOffset, yOffset, zOffset) fills; null
+     * until the surface size is set.
+     */
+    public CloudFrame getFrame() {
+        return frame;
+    }
 
-        return cloudBitmap;
+    /**
+     * Maps the noise of the last frame generated to opacity again, using the current cloud
+     * density, into the renderer's own frame. This skips sampling the noise, but is only
+     * possible if the density has not gone up since: the noise was only sampled exactly where
+     * there were clouds at that density. Returns the frame, or null if it wasn't possible.
+     */
+    public CloudFrame remapClouds() {
+        if (frame == null || !(kernel.threshold >= fieldThreshold)) {
+            return null;
+        }
+        kernel.map(field, frame, 0, heightBlocks);
+        frame.upload();
+        frame.animationSettings = animationSettings;
+        return frame;
+    }
+
+    /**
+     * Samples and maps one band of the frame set up by generateClouds. Runs on any worker.
+     */
+    private void generateBand(int worker, int band) {
+        final int blockSize = animationSettings.pixelSize;
+        final int firstRow = band * heightBlocks / bandCount;
+        final int endRow = (band + 1) * heightBlocks / bandCount;
+        workerNoises[worker].GetNoiseGridRows(noiseValues, frameX0, frameY0, blockSize, blockSize,
+                widthBlocks, firstRow, endRow - firstRow, frameZOffset, frameLowerBound, frameUpperBound);
+        frameKernel.apply(noiseValues, field, targetFrame, firstRow, endRow);
+    }
+
+    /**
+     * Samples the blocks for the current step of progressive refinement and maps the field to
+     * the frame, each block showing the nearest sampled block up and to the left of it; then
+     * moves on to the next step.
+     */
+    private void refine(CloudFrame target, CloudKernel kernel, int originX, int originY, float x0, float y0,
+                        float zOffset, float lowerBound, float upperBound) {
+        targetFrame = target;
+        frameKernel = kernel;
+        frameX0 = x0;
+        frameY0 = y0;
+        frameZOffset = zOffset;
+        frameLowerBound = lowerBound;
+        frameUpperBound = upperBound;
+        if (bandWorkers != null) {
+            bandCount = Math.min(heightBlocks, bandWorkers.getWorkerCount() * BANDS_PER_WORKER);
+            bandWorkers.run(refineJob, bandCount);
+        } else {
+            bandCount = 1;
+            refineBand(0, 0);
+        }
+        targetFrame = null;
+        kernel.mapCoarse(field, target, refineStep);
+
+        refineKernel = kernel;
+        refineOriginX = originX;
+        refineOriginY = originY;
+        refineFirst = false;
+        refineStep /= 2;
+    }
+
+    /**
+     * Samples the blocks of one band for the current step of progressive refinement: on the
+     * first step, every refineStep-th block of every refineStep-th row; after that, those of
+     * them that the step before (twice as coarse) did not. Runs on any worker.
+     */
+    private void refineBand(int worker, int band) {
+        final int blockSize = animationSettings.pixelSize;
+        final int step = refineStep;
+        final int firstRow = band * heightBlocks / bandCount;
+        final int endRow = (band + 1) * heightBlocks / bandCount;
+        final float[] values = refineValues[worker];
+        final FastNoiseLite workerNoise = workerNoises[worker];
+        for (int row = (firstRow + step - 1) / step * step; row < endRow; row += step) {
+            // Rows the coarser step sampled only need the blocks halfway between its blocks
+            final boolean sampledBefore = !refineFirst && row % (2 * step) == 0;
+            final int firstCol = sampledBefore ? step : 0;
+            final int colStep = sampledBefore ? 2 * step : step;
+            if (firstCol >= widthBlocks) {
+                continue;
+            }
+            final int cols = (widthBlocks - 1 - firstCol) / colStep + 1;
+            workerNoise.GetNoiseGrid(values, frameX0 + firstCol * blockSize, frameY0 + row * blockSize,
+                    colStep * blockSize, blockSize, cols, 1, frameZOffset, frameLowerBound, frameUpperBound);
+            CloudKernel.quantizeEvery(values, cols, field, row * widthBlocks + firstCol, colStep);
+        }
     }
 
 }
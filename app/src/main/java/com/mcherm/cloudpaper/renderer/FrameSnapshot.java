@@ -0,0 +1,200 @@
+package com.mcherm.cloudpaper.renderer;
+
+import android.util.Log;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A frame saved to a file, so that the clouds can be shown the moment the wallpaper starts,
+ * before the renderer has generated anything.
+ *
+ * <p>The frame is saved at block resolution (one pixel per block, so already far smaller than
+ * the screen), compressed, along with a hash of what it was generated for (the surface size and
+ * the user's settings that change the opacities), when it was saved, and the animation offsets
+ * of its time, so that the animation can carry on from it. The frame may have been generated
+ * with larger blocks than the user's settings ask for, to save time or power, so the size of
+ * its blocks is saved too.
+ */
+public class FrameSnapshot {
+
+    private static final int MAGIC = 0x436C536E;
+    private static final int VERSION = 2;
+
+    private final int settingsHash;
+    private final long savedMillis;
+    private final int pixelSize;
+    private final int widthBlocks;
+    private final int heightBlocks;
+    private final float offsetX;
+    private final float offsetY;
+    private final float xOffset;
+    private final float yOffset;
+    private final float zOffset;
+    private final byte[] alphas;
+
+    private FrameSnapshot(int settingsHash, long savedMillis, int pixelSize, int widthBlocks, int heightBlocks,
+                          float offsetX, float offsetY, float xOffset, float yOffset, float zOffset, byte[] alphas) {
+        this.settingsHash = settingsHash;
+        this.savedMillis = savedMillis;
+        this.pixelSize = pixelSize;
+        this.widthBlocks = widthBlocks;
+        this.heightBlocks = heightBlocks;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.xOffset = xOffset;
+        this.yOffset = yOffset;
+        this.zOffset = zOffset;
+        this.alphas = alphas;
+    }
+
+    /**
+     * Saves the given frame, generated for the given surface size and the given settings (the
+     * user's, whatever detail the frame was generated with) at the given animation offsets,
+     * to the given file. The file is replaced all at once, so a save that fails part way
+     * leaves the previous snapshot.
+     */
+    public static void save(File path, CloudFrame frame, AnimationSettings animationSettings,
+                            int surfaceWidth, int surfaceHeight, float xOffset, float yOffset, float zOffset) {
+        final File partial = new File(path.getPath() + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(settingsHash(animationSettings, surfaceWidth, surfaceHeight));
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(frame.animationSettings.pixelSize);
+            out.writeInt(frame.widthBlocks);
+            out.writeInt(frame.heightBlocks);
+            out.writeInt(frame.alphas.length);
+            out.writeFloat(frame.offsetX);
+            out.writeFloat(frame.offsetY);
+            out.writeFloat(xOffset);
+            out.writeFloat(yOffset);
+            out.writeFloat(zOffset);
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                final DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater);
+                compressed.write(frame.alphas);
+                compressed.finish();
+            } finally {
+                deflater.end();
+            }
+        } catch (IOException e) {
+            Log.w("CloudPaper", "Cannot save the snapshot " + path, e);
+            partial.delete();
+            return;
+        }
+        if (!partial.renameTo(path)) {
+            Log.w("CloudPaper", "Cannot replace the snapshot " + path);
+            partial.delete();
+        }
+    }
+
+    /**
+     * Loads the snapshot in the given file, or returns null if there is none or it can't be read.
+     */
+    public static FrameSnapshot load(File path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final int settingsHash = in.readInt();
+            final long savedMillis = in.readLong();
+            final int pixelSize = in.readInt();
+            final int widthBlocks = in.readInt();
+            final int heightBlocks = in.readInt();
+            final int length = in.readInt();
+            final float offsetX = in.readFloat();
+            final float offsetY = in.readFloat();
+            final float xOffset = in.readFloat();
+            final float yOffset = in.readFloat();
+            final float zOffset = in.readFloat();
+            if (pixelSize <= 0 || widthBlocks <= 0 || heightBlocks <= 0 || length < widthBlocks * heightBlocks
+                    || length > 4 * widthBlocks * heightBlocks) {
+                return null;
+            }
+            final byte[] alphas = new byte[length];
+            try (DataInputStream inflated = new DataInputStream(new InflaterInputStream(in))) {
+                inflated.readFully(alphas);
+            }
+            return new FrameSnapshot(settingsHash, savedMillis, pixelSize, widthBlocks, heightBlocks,
+                    offsetX, offsetY, xOffset, yOffset, zOffset, alphas);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w("CloudPaper", "Cannot load the snapshot " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether the snapshot was generated for the given surface size and for settings that give
+     * the same opacities as the given ones.
+     */
+    public boolean matches(AnimationSettings animationSettings, int surfaceWidth, int surfaceHeight) {
+        return settingsHash == settingsHash(animationSettings, surfaceWidth, surfaceHeight);
+    }
+
+    /**
+     * A new frame showing the snapshot, marked as generated with the given settings (with the
+     * snapshot's block size, if that was different), or null if the snapshot's layout doesn't
+     * fit a frame of its size on this device.
+     */
+    public CloudFrame toFrame(AnimationSettings animationSettings) {
+        final CloudFrame frame = new CloudFrame(widthBlocks, heightBlocks);
+        if (frame.alphas.length != alphas.length) {
+            return null;
+        }
+        System.arraycopy(alphas, 0, frame.alphas, 0, alphas.length);
+        frame.offsetX = offsetX;
+        frame.offsetY = offsetY;
+        frame.upload();
+        frame.animationSettings = pixelSize == animationSettings.pixelSize
+                ? animationSettings : animationSettings.withPixelSize(pixelSize);
+        return frame;
+    }
+
+    /** When the snapshot was saved, in milliseconds since the epoch. */
+    public long getSavedMillis() {
+        return savedMillis;
+    }
+
+    /** The horizontal drift of the animation at the snapshot's time. */
+    public float getXOffset() {
+        return xOffset;
+    }
+
+    /** The vertical drift of the animation at the snapshot's time. */
+    public float getYOffset() {
+        return yOffset;
+    }
+
+    /** The evolution of the animation at the snapshot's time. */
+    public float getZOffset() {
+        return zOffset;
+    }
+
+    /**
+     * A hash of the surface size and the settings that change the opacities of a frame.
+     */
+    private static int settingsHash(AnimationSettings animationSettings, int surfaceWidth, int surfaceHeight) {
+        int hash = surfaceWidth;
+        hash = 31 * hash + surfaceHeight;
+        hash = 31 * hash + animationSettings.pixelSize;
+        hash = 31 * hash + Float.floatToIntBits(animationSettings.noiseFrequency);
+        hash = 31 * hash + Float.floatToIntBits(animationSettings.cloudDensityThreshold);
+        return hash;
+    }
+}
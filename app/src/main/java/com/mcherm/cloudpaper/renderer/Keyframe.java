@@ -0,0 +1,55 @@
+package com.mcherm.cloudpaper.renderer;
+
+/**
+ * The quantized noise field over a region of blocks at one time, for frames in between
+ * keyframes to blend. The region is fixed in the noise and somewhat larger than a frame, so
+ * that it still covers the frame as the clouds drift.
+ *
+ * <p>Keyframes are filled a number of rows at a time; one is usable once all its rows are done.
+ * Unlike a frame's field, its levels are exact everywhere (sampled without early exit), since
+ * blending two of them can bring a value from far out of range back to the threshold.
+ */
+class Keyframe {
+
+    /** The index of a keyframe that is not in use */
+    static final int NO_INDEX = Integer.MIN_VALUE;
+
+    /** Number of this keyframe: it is at time index * the keyframe spacing; NO_INDEX if unused */
+    int index = NO_INDEX;
+
+    /** The noise block of the top left block */
+    int originX;
+    int originY;
+
+    final int widthBlocks;
+    final int heightBlocks;
+    final char[] levels;
+
+    /** Rows filled so far, from the top */
+    int rowsDone;
+
+    Keyframe(int widthBlocks, int heightBlocks) {
+        this.widthBlocks = widthBlocks;
+        this.heightBlocks = heightBlocks;
+        this.levels = new char[widthBlocks * heightBlocks];
+    }
+
+    /** Starts the keyframe over for the given index and region. */
+    void reset(int index, int originX, int originY) {
+        this.index = index;
+        this.originX = originX;
+        this.originY = originY;
+        this.rowsDone = 0;
+    }
+
+    /** Whether every row has been filled. */
+    boolean isComplete() {
+        return rowsDone == heightBlocks;
+    }
+
+    /** Whether the region includes the given rectangle of noise blocks. */
+    boolean covers(int x, int y, int width, int height) {
+        return x >= originX && y >= originY
+                && x + width <= originX + widthBlocks && y + height <= originY + heightBlocks;
+    }
+}
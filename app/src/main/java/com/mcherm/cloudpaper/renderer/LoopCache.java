@@ -0,0 +1,327 @@
+package com.mcherm.cloudpaper.renderer;
+
+import android.util.Log;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The frames of one cycle of a looping animation (see AnimationSettings.loopMillis), kept
+ * compressed in a file so that playing the loop back only decodes them, and so that the
+ * work survives the wallpaper being restarted.
+ *
+ * <p>The file starts with a header saying what the frames were generated for (the frame size
+ * and every setting that changes the opacities), and an index of where each frame is. Frames
+ * are appended as they are first generated; once every frame is there, the file is mapped
+ * into memory and read from there. A file made for anything else is started over. Any error
+ * reading or writing the file just turns the cache off, leaving the frames to be generated.
+ * So does a loop that might not fit in MAX_FILE_BYTES, even compressed.
+ *
+ * <p>Not thread safe: use it from the thread generating frames.
+ */
+public class LoopCache {
+
+    private static final int MAGIC = 0x436C4C70;
+    private static final int VERSION = 1;
+
+    // Header: magic, version, KEY_INTS ints of key, the frame count and whether it is complete
+    private static final int KEY_INTS = 11;
+    private static final int HEADER_BYTES = 4 * (KEY_INTS + 4);
+    private static final int COMPLETE_POSITION = HEADER_BYTES - 4;
+
+    // Then for each frame, where it starts in the file (a long) and its length (an int; 0 if not there yet)
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    /** The largest file a loop may need, even if none of its frames compress; well within what can be mapped */
+    static final long MAX_FILE_BYTES = 256L * 1024 * 1024;
+
+    private final int[] key;
+    private final int frameCount;
+    private final int rawLength;
+    private final long[] frameOffsets;
+    private final int[] frameLengths;
+    private int framesStored;
+    private long end;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    // Reused for every frame, so that playing back allocates nothing
+    private final byte[] compressed;
+    private final ByteBuffer compressedBuffer;
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    private LoopCache(int[] key, int frameCount, int rawLength) {
+        this.key = key;
+        this.frameCount = frameCount;
+        this.rawLength = rawLength;
+        frameOffsets = new long[frameCount];
+        frameLengths = new int[frameCount];
+        compressed = new byte[maxCompressedLength(rawLength)];
+        compressedBuffer = ByteBuffer.wrap(compressed);
+    }
+
+    /**
+     * Opens the loop cache in the given file for frames like the given one (created by the
+     * renderer) and the given settings, which must have a loopMillis above 0. Frames already
+     * saved there for the same size and settings are kept. Returns null if the file can't be
+     * used, or if the loop could need more than MAX_FILE_BYTES.
+     */
+    public static LoopCache open(File path, CloudFrame frame, AnimationSettings animationSettings) {
+        final int frameCount = frameCount(animationSettings);
+        final int rawLength = frame.alphas.length;
+        final long maxBytes = HEADER_BYTES + frameCount * (long) (INDEX_ENTRY_BYTES + maxCompressedLength(rawLength));
+        if (maxBytes > MAX_FILE_BYTES) {
+            Log.w("CloudPaper", "Not caching a loop of " + frameCount + " frames of " + rawLength
+                    + " bytes, which could take " + maxBytes + " bytes");
+            // Whatever loop is saved there is for other settings, so only takes up space
+            path.delete();
+            return null;
+        }
+        final LoopCache loopCache = new LoopCache(keyFor(frame, animationSettings), frameCount, rawLength);
+        try {
+            loopCache.openFile(path);
+            return loopCache;
+        } catch (IOException e) {
+            Log.w("CloudPaper", "Cannot use the loop cache " + path, e);
+            loopCache.close();
+            return null;
+        }
+    }
+
+    /**
+     * The number of frames in a loop with the given settings: one per frame time, at least one.
+     */
+    public static int frameCount(AnimationSettings animationSettings) {
+        final long frames = Math.round((long) animationSettings.loopMillis * animationSettings.framesPerSecond / 1000.0);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, frames));
+    }
+
+    /**
+     * The most a frame of the given length can take compressed: deflate adds at most a few
+     * bytes per 16 KB block to data it cannot compress.
+     */
+    private static int maxCompressedLength(int rawLength) {
+        return rawLength + rawLength / 8 + 64;
+    }
+
+    /**
+     * Whether this cache holds frames like the given one for the given settings.
+     */
+    public boolean matches(CloudFrame frame, AnimationSettings animationSettings) {
+        final int[] otherKey = keyFor(frame, animationSettings);
+        for (int i = 0; i < KEY_INTS; i++) {
+            if (key[i] != otherKey[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The number of frames in the loop. */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Decodes the given frame of the loop into the target frame, marking it as generated with
+     * the given settings. Returns false, leaving the target unchanged, if the frame hasn't been saved.
+     */
+    public boolean read(int index, CloudFrame target, AnimationSettings animationSettings) {
+        final int length = frameLengths[index];
+        if (channel == null || length == 0) {
+            return false;
+        }
+        try {
+            if (mapped != null) {
+                mapped.position((int) frameOffsets[index]);
+                mapped.get(compressed, 0, length);
+            } else {
+                compressedBuffer.clear();
+                compressedBuffer.limit(length);
+                while (compressedBuffer.hasRemaining()) {
+                    if (channel.read(compressedBuffer, frameOffsets[index] + compressedBuffer.position()) < 0) {
+                        throw new IOException("Loop cache ends early");
+                    }
+                }
+            }
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            if (inflater.inflate(target.alphas, 0, rawLength) != rawLength) {
+                throw new DataFormatException("Loop cache frame is short");
+            }
+        } catch (IOException | DataFormatException e) {
+            Log.w("CloudPaper", "Cannot read the loop cache", e);
+            close();
+            return false;
+        }
+        target.offsetX = 0;
+        target.offsetY = 0;
+        target.upload();
+        target.animationSettings = animationSettings;
+        return true;
+    }
+
+    /**
+     * Saves the given frame (just generated) as the given frame of the loop, unless it has
+     * been saved already.
+     */
+    public void write(int index, CloudFrame frame) {
+        if (channel == null || frameLengths[index] != 0) {
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(frame.alphas, 0, rawLength);
+        deflater.finish();
+        final int length = deflater.deflate(compressed, 0, compressed.length);
+        if (!deflater.finished()) {
+            return;
+        }
+        try {
+            compressedBuffer.clear();
+            compressedBuffer.limit(length);
+            while (compressedBuffer.hasRemaining()) {
+                channel.write(compressedBuffer, end + compressedBuffer.position());
+            }
+            entryBuffer.clear();
+            entryBuffer.putLong(end).putInt(length).flip();
+            channel.write(entryBuffer, HEADER_BYTES + (long) index * INDEX_ENTRY_BYTES);
+            frameOffsets[index] = end;
+            frameLengths[index] = length;
+            end += length;
+            framesStored++;
+            if (framesStored == frameCount) {
+                writeInt(COMPLETE_POSITION, 1);
+                channel.force(false);
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+        } catch (IOException e) {
+            Log.w("CloudPaper", "Cannot write the loop cache", e);
+            close();
+        }
+    }
+
+    /**
+     * Closes the file; the cache does nothing afterward.
+     */
+    public void close() {
+        mapped = null;
+        channel = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w("CloudPaper", "Cannot close the loop cache", e);
+            }
+            file = null;
+        }
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Opens the file, keeping what it holds if it was made for the same key and starting it
+     * over otherwise.
+     */
+    private void openFile(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        final long indexEnd = HEADER_BYTES + (long) frameCount * INDEX_ENTRY_BYTES;
+        final long size = channel.size();
+        if (size >= indexEnd && size <= MAX_FILE_BYTES && readIndex(size)) {
+            if (framesStored == frameCount) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+            return;
+        }
+
+        // Start over with an empty index
+        channel.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate((int) indexEnd);
+        header.putInt(MAGIC).putInt(VERSION);
+        for (int value : key) {
+            header.putInt(value);
+        }
+        header.putInt(frameCount).putInt(0);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        end = indexEnd;
+    }
+
+    /**
+     * Reads the header and index, returning false if they are not for this key. Frames the
+     * index doesn't place within the file (from a write that was cut off) count as not saved.
+     */
+    private boolean readIndex(long size) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + frameCount * INDEX_ENTRY_BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            return false;
+        }
+        for (int value : key) {
+            if (header.getInt() != value) {
+                return false;
+            }
+        }
+        if (header.getInt() != frameCount) {
+            return false;
+        }
+        header.getInt();
+        end = header.capacity();
+        for (int i = 0; i < frameCount; i++) {
+            final long offset = header.getLong();
+            final int length = header.getInt();
+            if (length > 0 && length <= compressed.length && offset >= header.capacity() && offset + length <= size) {
+                frameOffsets[i] = offset;
+                frameLengths[i] = length;
+                framesStored++;
+                end = Math.max(end, offset + length);
+            }
+        }
+        return true;
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        entryBuffer.clear();
+        entryBuffer.putInt(value).flip();
+        channel.write(entryBuffer, position);
+    }
+
+    /**
+     * What a loop's frames depend on: their size, and every setting that changes what they show.
+     */
+    private static int[] keyFor(CloudFrame frame, AnimationSettings animationSettings) {
+        return new int[] {
+                frame.widthBlocks,
+                frame.heightBlocks,
+                frame.alphas.length,
+                animationSettings.pixelSize,
+                animationSettings.framesPerSecond,
+                animationSettings.loopMillis,
+                Float.floatToIntBits(animationSettings.noiseFrequency),
+                Float.floatToIntBits(animationSettings.cloudDensityThreshold),
+                Float.floatToIntBits(animationSettings.evolutionRate),
+                Float.floatToIntBits(animationSettings.driftX),
+                Float.floatToIntBits(animationSettings.driftY),
+        };
+    }
+}
@@ -0,0 +1,194 @@
+package com.mcherm.cloudpaper.renderer;
+
+/**
+ * Rendered tiles of the quantized noise field, keyed by where they are in the noise (in tiles
+ * of TILE_BLOCKS x TILE_BLOCKS blocks) and by a time step, holding at most a given number of
+ * tiles and dropping the least recently used one to make room.
+ *
+ * <p>A tile's levels are only exact where the normalized noise is at or above the threshold
+ * it was rendered for (see CloudRenderer), so a lookup also says which threshold it needs.
+ * Tiles are recycled when evicted, so once the cache is full nothing is allocated. Not
+ * thread safe: lookups and insertions happen on the thread generating the frame, although
+ * the tiles themselves may be filled on other threads.
+ */
+class TileCache {
+
+    /** Blocks across (and down) a tile */
+    static final int TILE_BLOCKS = 32;
+
+    /** Bytes used by one tile's levels */
+    static final int TILE_BYTES = TILE_BLOCKS * TILE_BLOCKS * 2;
+
+    /** A tile of field levels, TILE_BLOCKS rows of TILE_BLOCKS, and its place in the cache. */
+    static final class Tile {
+        int tileX;
+        int tileY;
+        int zIndex;
+        float threshold;
+        final char[] levels = new char[TILE_BLOCKS * TILE_BLOCKS];
+
+        // The next tile in the same bucket, and the neighbors in order of use
+        private Tile nextInBucket;
+        private Tile newer;
+        private Tile older;
+    }
+
+    private final int capacity;
+    private final Tile[] buckets;
+    private int size;
+
+    // Most and least recently used tiles
+    private Tile newest;
+    private Tile oldest;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache of up to capacity tiles.
+     */
+    TileCache(int capacity) {
+        this.capacity = capacity;
+        buckets = new Tile[Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) * 2];
+    }
+
+    /** The most tiles the cache holds. */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the tile for the given place and time step, marking it as just used, or null
+     * (counting a miss) if there is none that is exact at the given threshold.
+     */
+    Tile get(int tileX, int tileY, int zIndex, float threshold) {
+        for (Tile tile = buckets[bucket(tileX, tileY, zIndex)]; tile != null; tile = tile.nextInBucket) {
+            if (tile.tileX == tileX && tile.tileY == tileY && tile.zIndex == zIndex) {
+                if (!(threshold >= tile.threshold)) {
+                    break;
+                }
+                unlink(tile);
+                linkNewest(tile);
+                hits++;
+                return tile;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Returns a tile for the given place and time step, to be filled in by the caller, taking
+     * the place of any tile there already. If the cache is full, the least recently used tile
+     * is evicted and reused. The tiles got or put since then are safe from eviction as long as
+     * there are no more of them than the capacity.
+     */
+    Tile put(int tileX, int tileY, int zIndex, float threshold) {
+        final Tile tile;
+        final Tile existing = find(tileX, tileY, zIndex);
+        if (existing != null) {
+            tile = existing;
+            removeFromBucket(tile);
+            unlink(tile);
+        } else if (size < capacity) {
+            tile = new Tile();
+            size++;
+        } else {
+            tile = oldest;
+            removeFromBucket(tile);
+            unlink(tile);
+            evictions++;
+        }
+        tile.tileX = tileX;
+        tile.tileY = tileY;
+        tile.zIndex = zIndex;
+        tile.threshold = threshold;
+        final int bucket = bucket(tileX, tileY, zIndex);
+        tile.nextInBucket = buckets[bucket];
+        buckets[bucket] = tile;
+        linkNewest(tile);
+        return tile;
+    }
+
+    /**
+     * Drops every tile, keeping the statistics.
+     */
+    void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = null;
+        }
+        newest = null;
+        oldest = null;
+        size = 0;
+    }
+
+    /** Lookups that found a usable tile. */
+    long getHits() {
+        return hits;
+    }
+
+    /** Lookups that did not, so the tile had to be rendered. */
+    long getMisses() {
+        return misses;
+    }
+
+    /** Tiles dropped to make room for others. */
+    long getEvictions() {
+        return evictions;
+    }
+
+    private Tile find(int tileX, int tileY, int zIndex) {
+        for (Tile tile = buckets[bucket(tileX, tileY, zIndex)]; tile != null; tile = tile.nextInBucket) {
+            if (tile.tileX == tileX && tile.tileY == tileY && tile.zIndex == zIndex) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    private int bucket(int tileX, int tileY, int zIndex) {
+        int hash = tileX * 0x9E3779B1 + tileY * 0x85EBCA77 + zIndex * 0xC2B2AE3D;
+        hash ^= hash >>> 15;
+        return hash & (buckets.length - 1);
+    }
+
+    private void removeFromBucket(Tile tile) {
+        final int bucket = bucket(tile.tileX, tile.tileY, tile.zIndex);
+        if (buckets[bucket] == tile) {
+            buckets[bucket] = tile.nextInBucket;
+        } else {
+            Tile previous = buckets[bucket];
+            while (previous.nextInBucket != tile) {
+                previous = previous.nextInBucket;
+            }
+            previous.nextInBucket = tile.nextInBucket;
+        }
+        tile.nextInBucket = null;
+    }
+
+    private void unlink(Tile tile) {
+        if (tile.newer != null) {
+            tile.newer.older = tile.older;
+        } else {
+            newest = tile.older;
+        }
+        if (tile.older != null) {
+            tile.older.newer = tile.newer;
+        } else {
+            oldest = tile.newer;
+        }
+        tile.newer = null;
+        tile.older = null;
+    }
+
+    private void linkNewest(Tile tile) {
+        tile.older = newest;
+        if (newest != null) {
+            newest.newer = tile;
+        } else {
+            oldest = tile;
+        }
+        newest = tile;
+    }
+}
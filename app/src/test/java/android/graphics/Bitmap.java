@@ -0,0 +1,71 @@
+package android.graphics;
+
+import java.nio.Buffer;
+
+/**
+ * Stands in for android.graphics.Bitmap in local unit tests, where the android.jar one only
+ * throws (or returns null). Enough of it for CloudFrame: an ALPHA_8 bitmap that takes its
+ * pixels from a buffer. It keeps no pixels of its own, and allocates nothing after creation.
+ */
+public class Bitmap {
+
+    /** What the rows of bitmaps created from now on are padded to a multiple of, in bytes; 1 for none. */
+    public static int rowAlignment = 1;
+
+    public enum Config {
+        ALPHA_8,
+        RGB_565,
+        ARGB_8888
+    }
+
+    private final int width;
+    private final int height;
+    private final Config config;
+    private final int alignment;
+
+    private Bitmap(int width, int height, Config config) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.alignment = rowAlignment;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        return new Bitmap(width, height, config);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRowBytes() {
+        final int bytes;
+        switch (config) {
+            case ALPHA_8:
+                bytes = width;
+                break;
+            case RGB_565:
+                bytes = 2 * width;
+                break;
+            default:
+                bytes = 4 * width;
+                break;
+        }
+        return (bytes + alignment - 1) / alignment * alignment;
+    }
+
+    public void copyPixelsFromBuffer(Buffer src) {
+        final int bytes = getRowBytes() * height;
+        if (src.remaining() < bytes) {
+            throw new RuntimeException("Buffer not large enough for pixels");
+        }
+        src.position(src.position() + bytes);
+    }
+}
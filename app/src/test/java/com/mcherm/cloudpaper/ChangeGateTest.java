@@ -0,0 +1,157 @@
+package com.mcherm.cloudpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mcherm.cloudpaper.renderer.CloudFrame;
+import com.mcherm.cloudpaper.renderer.CloudRenderer;
+import com.mcherm.cloudpaper.renderer.TestFrames;
+
+import org.junit.Test;
+
+public class ChangeGateTest {
+
+    private static final long SPACING_MILLIS = 250;
+
+    private final ChangeGate gate = new ChangeGate();
+
+    private static AnimationSettings rates(float driftX, float driftY, float evolutionRate) {
+        return new AnimationSettings.Builder()
+                .setDriftX(driftX).setDriftY(driftY).setEvolutionRate(evolutionRate).build();
+    }
+
+    // A frame like the given one, with its first block at the given alpha
+    private static CloudFrame withFirstBlock(CloudFrame frame, int alpha) {
+        final CloudFrame changed = TestFrames.copy(frame);
+        TestFrames.setAlpha(changed, 0, 0, alpha);
+        return changed;
+    }
+
+    @Test
+    public void drawsTheFirstFrameAndTheNextAfterAReset() {
+        final CloudFrame frame = TestFrames.frame(8, 6, 100);
+        assertTrue(gate.check(frame, 0, 0, 0));
+        assertFalse(gate.check(frame, 0, 0, 0));
+        gate.reset();
+        assertTrue(gate.check(frame, 0, 0, 0));
+    }
+
+    @Test
+    public void skipsFramesWithinTwoLevelsOfTheOneOnTheScreen() {
+        final CloudFrame shown = TestFrames.frame(8, 6, 100);
+        assertTrue(gate.check(shown, 0, 0, 0));
+        assertFalse(gate.check(withFirstBlock(shown, 102), 0, 0, 1));
+        assertFalse(gate.check(withFirstBlock(shown, 98), 0, 0, 2));
+        assertTrue(gate.check(withFirstBlock(shown, 103), 0, 0, 3));
+        // Now measured from the frame drawn last
+        assertFalse(gate.check(withFirstBlock(shown, 105), 0, 0, 4));
+        assertTrue(gate.check(shown, 0, 0, 5));
+    }
+
+    @Test
+    public void drawsFramesMovedHalfAPixelOnTheScreen() {
+        final CloudFrame shown = TestFrames.frame(8, 6, 100);
+        assertTrue(gate.check(shown, 0, 0, 0));
+        final CloudFrame moved = TestFrames.copy(shown);
+        TestFrames.setOffset(moved, -0.4f, 0);
+        assertFalse(gate.check(moved, 0.4f, 0, 0));
+        TestFrames.setOffset(moved, 0, -0.5f);
+        assertTrue(gate.check(moved, 0, 0.5f, 0));
+    }
+
+    @Test
+    public void stopsWhileNothingAnimates() {
+        final AnimationSettings still = rates(0, 0, 0);
+        assertEquals(1, gate.spacingFrames(still, SPACING_MILLIS));
+        gate.check(TestFrames.frame(8, 6, 100), 0, 0, 0);
+        assertEquals(0, gate.spacingFrames(still, SPACING_MILLIS));
+        // Until something else changes the frames
+        gate.reset();
+        assertEquals(1, gate.spacingFrames(still, SPACING_MILLIS));
+    }
+
+    @Test
+    public void spacesFramesByHowFastTheyHaveBeenChanging() {
+        final CloudFrame shown = TestFrames.frame(8, 6, 100);
+        final AnimationSettings settings = rates(0, 0, 0.001f);
+        assertTrue(gate.check(shown, 0, 0, 0));
+        // Nothing learned yet
+        assertEquals(1, gate.spacingFrames(settings, SPACING_MILLIS));
+
+        // Unchanged one unit of noise along, so changing less than a level a unit: still at least
+        // one more unit to go before a change could show, 4 frame times at a quarter unit each
+        assertFalse(gate.check(shown, 0, 0, 1));
+        assertEquals(4, gate.spacingFrames(settings, SPACING_MILLIS));
+
+        // However slowly the clouds change, frames are never further apart than 8 frame times
+        assertEquals(8, gate.spacingFrames(rates(0, 0, 0.00001f), SPACING_MILLIS));
+        // A loop's frames fade between two times as well
+        assertEquals(1, gate.spacingFrames(new AnimationSettings.Builder(settings).setLoopMillis(10000).build(),
+                SPACING_MILLIS));
+
+        // A level changed in that unit may really be nearly two, so the next frame could show it
+        assertFalse(gate.check(withFirstBlock(shown, 101), 0, 0, 1));
+        assertEquals(1, gate.spacingFrames(settings, SPACING_MILLIS));
+    }
+
+    @Test
+    public void framesDrawnSomewhereElseAreSpacedByTheirMoveOnTheScreen() {
+        final CloudFrame shown = TestFrames.frame(8, 6, 100);
+        final AnimationSettings settings = rates(0.0002f, 0, 0.001f);
+        assertTrue(gate.check(shown, 0, 0, 0));
+        // Drawn 0.05 blocks along, where the noise alone allows 4 frame times
+        final CloudFrame moved = TestFrames.copy(shown);
+        TestFrames.setOffset(moved, -0.05f, 0);
+        assertFalse(gate.check(moved, 0.05f, 0, 1));
+        // 0.45 blocks to go, at 0.05 blocks a frame, is further off than that
+        assertEquals(4, gate.spacingFrames(settings, SPACING_MILLIS));
+        // But at 0.25 blocks a frame it is only 2 frame times
+        assertEquals(2, gate.spacingFrames(rates(0.001f, 0, 0.001f), SPACING_MILLIS));
+    }
+
+    @Test
+    public void neverHoldsBackAVisibleChange() {
+        // Real frames, for slowly evolving and drifting clouds, every frame time of which is
+        // checked against what the gate left on the screen
+        for (AnimationSettings settings : new AnimationSettings[] {
+                rates(0, 0, 0.0002f), rates(0.0005f, 0.0001f, 0.0001f)}) {
+            final ChangeGate gate = new ChangeGate();
+            final CloudRenderer renderer = new CloudRenderer(settings);
+            try {
+                renderer.setSurfaceSize(240, 400);
+                final CloudFrame frame = renderer.createFrame();
+                byte[] shownAlphas = null;
+                int nextFrame = 0;
+                int generated = 0;
+                int drawn = 0;
+                for (int i = 0; i < 200; i++) {
+                    final long millis = i * SPACING_MILLIS;
+                    final float x = millis * settings.driftX;
+                    final float y = millis * settings.driftY;
+                    final float z = millis * settings.evolutionRate;
+                    renderer.generateClouds(frame, x, y, z);
+                    if (i < nextFrame) {
+                        // A frame time the gate skipped generating
+                        assertTrue("frame " + i + " differs by " + frame.maxDifference(shownAlphas),
+                                frame.maxDifference(shownAlphas) <= 2);
+                        continue;
+                    }
+                    generated++;
+                    if (gate.check(frame, x, y, z)) {
+                        shownAlphas = frame.copyAlphas(shownAlphas);
+                        drawn++;
+                    } else {
+                        assertTrue(frame.maxDifference(shownAlphas) <= 2);
+                    }
+                    nextFrame = i + gate.spacingFrames(settings, SPACING_MILLIS);
+                }
+                // And it did skip some, drawing fewer still
+                assertTrue(generated + " frames generated", generated < 200);
+                assertTrue(drawn + " frames drawn", drawn < generated);
+            } finally {
+                renderer.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.mcherm.cloudpaper;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * SharedPreferences in memory. As on Android, an edit is applied whole before listeners hear
+ * of it, and then they hear of each key whose value changed, once, in no particular order
+ * (here a random one).
+ */
+class FakeSharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> values = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return values.containsKey(key) ? (String) values.get(key) : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return values.containsKey(key) ? (Long) values.get(key) : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return values.containsKey(key) ? (Float) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private class FakeEditor implements Editor {
+
+        private final Map<String, Object> changes = new HashMap<>();
+        private final Set<String> removals = new HashSet<>();
+        private boolean clear;
+
+        private Editor put(String key, Object value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            removals.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            final Set<String> changed = new HashSet<>();
+            if (clear) {
+                changed.addAll(values.keySet());
+                values.clear();
+            }
+            for (String key : removals) {
+                if (values.remove(key) != null) {
+                    changed.add(key);
+                }
+            }
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (!Objects.equals(values.put(change.getKey(), change.getValue()), change.getValue())) {
+                    changed.add(change.getKey());
+                }
+            }
+            final List<String> changedKeys = new ArrayList<>(changed);
+            Collections.shuffle(changedKeys, random);
+            for (String key : changedKeys) {
+                for (OnSharedPreferenceChangeListener listener : new ArrayList<>(listeners)) {
+                    listener.onSharedPreferenceChanged(FakeSharedPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.mcherm.cloudpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs the frame pacer against a virtual clock and display, the way the wallpaper engine
+ * drives it when frames aren't pipelined: on a vsync far enough ahead of a frame's time the
+ * frame is generated, on the vsync nearest its time it is shown, and then the pacer moves on,
+ * dropping any frames that can no longer be ready in time.
+ */
+public class FramePacerTest {
+
+    private static final long MILLIS = 1_000_000L;
+    private static final float[] REFRESH_RATES = {60f, 90f, 120f};
+
+    /** A display's vsyncs: each period apart, give or take some jitter, some of which the render thread misses. */
+    private static class VirtualDisplay {
+        final long periodNanos;
+        final long[] jitterNanos;
+        final boolean[] missed;
+
+        VirtualDisplay(float refreshRate, long maxJitterNanos, int missEvery, long seed, int vsyncs) {
+            periodNanos = (long) (1_000_000_000L / refreshRate);
+            jitterNanos = new long[vsyncs];
+            missed = new boolean[vsyncs];
+            final Random random = new Random(seed);
+            for (int i = 0; i < vsyncs; i++) {
+                jitterNanos[i] = maxJitterNanos == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * maxJitterNanos);
+                missed[i] = missEvery > 0 && i % missEvery == missEvery - 1;
+            }
+        }
+
+        long vsyncNanos(int index) {
+            return index * periodNanos + jitterNanos[index];
+        }
+
+        /** The first vsync the render thread sees at or after the given time. */
+        int nextVsync(long nanos) {
+            int index = (int) Math.max(0, nanos / periodNanos - 1);
+            while (vsyncNanos(index) < nanos || missed[index]) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /** A frame as it was shown: the time it was due, the vsync it was shown on, and whether that was late. */
+    private static class ShownFrame {
+        final long dueNanos;
+        final int vsync;
+        final boolean late;
+
+        ShownFrame(long dueNanos, int vsync, boolean late) {
+            this.dueNanos = dueNanos;
+            this.vsync = vsync;
+            this.late = late;
+        }
+    }
+
+    private final List<ShownFrame> shown = new ArrayList<>();
+    private int dropped;
+
+    /**
+     * Shows the given number of frames, each taking generateMillis[frame % length] to generate
+     * (which the engine would allow for from then on) and a millisecond to present.
+     */
+    private void run(FramePacer pacer, VirtualDisplay display, long firstFrameNanos, long spacingMillis,
+                     float refreshRate, int frames, long... generateMillis) {
+        pacer.start(firstFrameNanos, spacingMillis, refreshRate);
+        long now = 0;
+        long leadNanos = generateMillis[0] * MILLIS;
+        for (int frame = 0; frame < frames; frame++) {
+            // The draw callback, asked for again until it runs on a vsync due to start the frame
+            int vsync = display.nextVsync(now + pacer.startDelayMillis(now, leadNanos) * MILLIS);
+            while (!pacer.isDueToStart(display.vsyncNanos(vsync), leadNanos)) {
+                final long vsyncNanos = display.vsyncNanos(vsync);
+                vsync = display.nextVsync(Math.max(vsyncNanos + 1,
+                        vsyncNanos + pacer.startDelayMillis(vsyncNanos, leadNanos) * MILLIS));
+            }
+            final long dueNanos = pacer.getNextFrameNanos();
+            now = display.vsyncNanos(vsync) + generateMillis[frame % generateMillis.length] * MILLIS;
+
+            // The present callback, asked for again until it runs on a vsync due to show the frame
+            vsync = display.nextVsync(now + pacer.showDelayMillis(now) * MILLIS);
+            while (!pacer.isDueToShow(display.vsyncNanos(vsync))) {
+                vsync = display.nextVsync(display.vsyncNanos(vsync) + 1);
+            }
+            final long vsyncNanos = display.vsyncNanos(vsync);
+            shown.add(new ShownFrame(dueNanos, vsync, vsyncNanos >= pacer.lateNanos()));
+            now = vsyncNanos + MILLIS;
+
+            pacer.advance(1);
+            dropped += pacer.dropMissed(now + leadNanos);
+        }
+    }
+
+    // The vsync nearest the given time
+    private static int nearestVsync(VirtualDisplay display, long nanos) {
+        int index = (int) (nanos / display.periodNanos);
+        while (display.vsyncNanos(index + 1) - nanos < nanos - display.vsyncNanos(index)) {
+            index++;
+        }
+        return index;
+    }
+
+    private void assertOnTheGrid(long firstFrameNanos, long spacingMillis) {
+        for (ShownFrame frame : shown) {
+            assertEquals(0, (frame.dueNanos - firstFrameNanos) % (spacingMillis * MILLIS));
+        }
+    }
+
+    @Test
+    public void showsEveryFrameOnTheVsyncNearestItsTime() {
+        for (float refreshRate : REFRESH_RATES) {
+            // Generating isn't pipelined here, so a frame can't start on the vsync that showed
+            // the one before: spacings of two vsyncs or less can't always be kept to
+            for (long spacingMillis : new long[] {250, 100, 50}) {
+                shown.clear();
+                dropped = 0;
+                final VirtualDisplay display = new VirtualDisplay(refreshRate, 0, 0, 1, 20000);
+                final long first = 50 * MILLIS;
+                run(new FramePacer(), display, first, spacingMillis, refreshRate, 200, 5);
+
+                final String where = refreshRate + " Hz, " + spacingMillis + " ms";
+                assertEquals(where, 0, dropped);
+                for (int i = 0; i < shown.size(); i++) {
+                    final ShownFrame frame = shown.get(i);
+                    assertEquals(where + " frame " + i, first + i * spacingMillis * MILLIS, frame.dueNanos);
+                    assertFalse(where + " frame " + i, frame.late);
+                    assertTrue(where + " frame " + i,
+                            Math.abs(display.vsyncNanos(frame.vsync) - frame.dueNanos) <= display.periodNanos / 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void intervalsAreWholeVsyncsAveragingTheSpacing() {
+        // At 4 frames per second on a 90 Hz display, alternately 22 and 23 vsyncs
+        final VirtualDisplay display = new VirtualDisplay(90f, 0, 0, 1, 20000);
+        run(new FramePacer(), display, 500 * MILLIS, 250, 90f, 100, 5);
+        int vsyncs22 = 0;
+        int vsyncs23 = 0;
+        for (int i = 1; i < shown.size(); i++) {
+            final int interval = shown.get(i).vsync - shown.get(i - 1).vsync;
+            assertTrue("interval " + interval, interval == 22 || interval == 23);
+            if (interval == 22) {
+                vsyncs22++;
+            } else {
+                vsyncs23++;
+            }
+        }
+        assertEquals(50, vsyncs22, 2);
+        assertEquals(49, vsyncs23, 2);
+    }
+
+    @Test
+    public void jitterMovesFramesOnlyBetweenTheNearestVsyncs() {
+        for (float refreshRate : REFRESH_RATES) {
+            shown.clear();
+            dropped = 0;
+            // Vsync timestamps up to a tenth of a period early or late
+            final long period = (long) (1_000_000_000L / refreshRate);
+            final VirtualDisplay display = new VirtualDisplay(refreshRate, period / 10, 0, 7, 20000);
+            run(new FramePacer(), display, 20 * MILLIS, 100, refreshRate, 200, 4);
+            assertEquals(0, dropped);
+            for (ShownFrame frame : shown) {
+                assertFalse(frame.late);
+                final int nearest = nearestVsync(display, frame.dueNanos);
+                assertTrue(refreshRate + " Hz", frame.vsync == nearest || frame.vsync == nearest + 1);
+            }
+            assertOnTheGrid(20 * MILLIS, 100);
+        }
+    }
+
+    @Test
+    public void missedVsyncsMakeFramesLateWithoutMovingTheGrid() {
+        for (float refreshRate : REFRESH_RATES) {
+            shown.clear();
+            dropped = 0;
+            final VirtualDisplay display = new VirtualDisplay(refreshRate, 0, 5, 3, 20000);
+            final long first = 30 * MILLIS;
+            run(new FramePacer(), display, first, 100, refreshRate, 200, 3);
+
+            assertEquals(0, dropped);
+            int late = 0;
+            for (int i = 0; i < shown.size(); i++) {
+                final ShownFrame frame = shown.get(i);
+                assertEquals(first + i * 100 * MILLIS, frame.dueNanos);
+                // Shown on the nearest vsync, or if the thread missed it (or the one to start on), the next
+                final int nearest = nearestVsync(display, frame.dueNanos);
+                if (frame.late) {
+                    late++;
+                    assertEquals(nearest + 1, frame.vsync);
+                    assertTrue(display.missed[nearest] || display.missed[nearest - 1]);
+                } else {
+                    assertEquals(nearest, frame.vsync);
+                }
+            }
+            assertTrue(refreshRate + " Hz: " + late + " late", late > 0);
+        }
+    }
+
+    @Test
+    public void dropsTheFramesASlowOneRanInto() {
+        for (float refreshRate : REFRESH_RATES) {
+            shown.clear();
+            dropped = 0;
+            final VirtualDisplay display = new VirtualDisplay(refreshRate, 0, 0, 1, 20000);
+            // Every tenth frame takes 600 ms, at 250 ms apart
+            run(new FramePacer(), display, 500 * MILLIS, 250, refreshRate, 30,
+                    5, 5, 5, 5, 600, 5, 5, 5, 5, 5);
+
+            // Each slow frame is shown late, and the two frames due while it was generated are dropped
+            assertEquals(6, dropped);
+            assertOnTheGrid(500 * MILLIS, 250);
+            int late = 0;
+            for (int i = 1; i < shown.size(); i++) {
+                final long skipped = (shown.get(i).dueNanos - shown.get(i - 1).dueNanos) / (250 * MILLIS) - 1;
+                if (shown.get(i - 1).late) {
+                    late++;
+                    assertEquals(2, skipped);
+                    assertFalse(shown.get(i).late);
+                } else {
+                    assertEquals(0, skipped);
+                }
+            }
+            assertEquals(3, late);
+        }
+    }
+
+    @Test
+    public void dropMissedDropsNothingWhileThereIsTime() {
+        final FramePacer pacer = new FramePacer();
+        pacer.start(1000 * MILLIS, 250, 60f);
+        assertEquals(0, pacer.dropMissed(1000 * MILLIS));
+        assertEquals(0, pacer.dropMissed(pacer.lateNanos()));
+        assertEquals(1000 * MILLIS, pacer.getNextFrameNanos());
+        assertEquals(1, pacer.dropMissed(pacer.lateNanos() + 1));
+        assertEquals(1250 * MILLIS, pacer.getNextFrameNanos());
+    }
+
+    @Test
+    public void anUnknownRefreshRateIsTakenAs60Hz() {
+        final FramePacer pacer = new FramePacer();
+        pacer.start(1000 * MILLIS, 250, 0f);
+        assertEquals(1000 * MILLIS - 16_666_667L / 2 + 16_666_667L, pacer.lateNanos());
+    }
+}
@@ -0,0 +1,135 @@
+package com.mcherm.cloudpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FrameTimingsTest {
+
+    private final FrameTimings timings = new FrameTimings();
+    private final FrameTimings.Summary summary = new FrameTimings.Summary();
+
+    @Test
+    public void summarizesNothingBeforeAnyTimes() {
+        timings.summarize(FrameTimings.STAGE_GENERATE, summary);
+        assertEquals(0, summary.count);
+        assertEquals(0, summary.p50);
+        assertEquals(0, summary.max);
+    }
+
+    @Test
+    public void picksNearestRankPercentiles() {
+        // 1 to 100, recorded out of order
+        final Random random = new Random(1);
+        final long[] times = new long[100];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i + 1;
+        }
+        for (int i = times.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final long swap = times[i];
+            times[i] = times[j];
+            times[j] = swap;
+        }
+        for (long time : times) {
+            timings.record(FrameTimings.STAGE_DRAW, time);
+        }
+        timings.summarize(FrameTimings.STAGE_DRAW, summary);
+        assertEquals(100, summary.count);
+        assertEquals(50, summary.p50);
+        assertEquals(95, summary.p95);
+        assertEquals(99, summary.p99);
+        assertEquals(100, summary.max);
+    }
+
+    @Test
+    public void percentilesOfOneTime() {
+        timings.record(FrameTimings.STAGE_POST, 7);
+        timings.summarize(FrameTimings.STAGE_POST, summary);
+        assertEquals(1, summary.count);
+        assertEquals(7, summary.p50);
+        assertEquals(7, summary.p99);
+        assertEquals(7, summary.max);
+    }
+
+    @Test
+    public void keepsTheLatestTimesOnceTheRingWrapsAround() {
+        final int recorded = 3 * FrameTimings.CAPACITY + 17;
+        for (int i = 1; i <= recorded; i++) {
+            timings.record(FrameTimings.STAGE_LOCK_CANVAS, i);
+        }
+        assertEquals(recorded, timings.getCount(FrameTimings.STAGE_LOCK_CANVAS));
+        timings.summarize(FrameTimings.STAGE_LOCK_CANVAS, summary);
+        // A full ring gives all but its oldest slot, which the writer would fill next
+        assertEquals(FrameTimings.CAPACITY - 1, summary.count);
+        assertEquals(recorded - FrameTimings.CAPACITY + 2, summary.samples[0]);
+        for (int i = 1; i < summary.count; i++) {
+            assertEquals(summary.samples[i - 1] + 1, summary.samples[i]);
+        }
+        assertEquals(recorded, summary.max);
+    }
+
+    @Test
+    public void keepsEveryTimeUntilTheRingIsFull() {
+        for (int i = 1; i < FrameTimings.CAPACITY; i++) {
+            timings.record(FrameTimings.STAGE_PREPARE, i);
+        }
+        timings.summarize(FrameTimings.STAGE_PREPARE, summary);
+        assertEquals(FrameTimings.CAPACITY - 1, summary.count);
+        assertEquals(1, summary.samples[0]);
+
+        // The ring's last slot is filled, so the oldest time is dropped
+        timings.record(FrameTimings.STAGE_PREPARE, FrameTimings.CAPACITY);
+        timings.summarize(FrameTimings.STAGE_PREPARE, summary);
+        assertEquals(FrameTimings.CAPACITY - 1, summary.count);
+        assertEquals(2, summary.samples[0]);
+        assertEquals(FrameTimings.CAPACITY, summary.max);
+    }
+
+    @Test
+    public void keepsTheStagesApart() {
+        timings.record(FrameTimings.STAGE_GENERATE, 1000);
+        timings.record(FrameTimings.STAGE_DRAW, 5);
+        timings.summarize(FrameTimings.STAGE_GENERATE, summary);
+        assertEquals(1, summary.count);
+        assertEquals(1000, summary.max);
+        timings.summarize(FrameTimings.STAGE_POST, summary);
+        assertEquals(0, summary.count);
+    }
+
+    @Test
+    public void countsDroppedAndLateFrames() {
+        timings.recordDropped(3);
+        timings.recordDropped(0);
+        timings.recordDropped(-1);
+        timings.recordLate();
+        timings.recordLate();
+        assertEquals(3, timings.getDroppedFrames());
+        assertEquals(2, timings.getLateFrames());
+    }
+
+    @Test(timeout = 20000)
+    public void summariesWhileRecordingHoldOnlyWholeConsecutiveTimes() throws InterruptedException {
+        // The writer records 1, 2, 3, ... as fast as it can, so the ring is written over while it is read
+        final FrameTimings shared = new FrameTimings();
+        final Thread writer = new Thread(() -> {
+            for (long time = 1; time <= 20_000_000; time++) {
+                shared.record(FrameTimings.STAGE_GENERATE, time);
+            }
+        });
+        writer.start();
+        int summaries = 0;
+        while (writer.isAlive() || summaries == 0) {
+            shared.summarize(FrameTimings.STAGE_GENERATE, summary);
+            summaries++;
+            for (int i = 1; i < summary.count; i++) {
+                assertEquals(summary.samples[i - 1] + 1, summary.samples[i]);
+            }
+            assertTrue(summary.count < FrameTimings.CAPACITY);
+        }
+        writer.join();
+    }
+}
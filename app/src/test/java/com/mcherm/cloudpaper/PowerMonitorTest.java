@@ -0,0 +1,52 @@
+package com.mcherm.cloudpaper;
+
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_FULL;
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_REDUCED;
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_STATIC;
+import static org.junit.Assert.assertEquals;
+
+import android.os.PowerManager;
+
+import org.junit.Test;
+
+public class PowerMonitorTest {
+
+    private static AnimationSettings tiers(int batterySaverTier, int unpluggedTier, int thermalTier) {
+        return new AnimationSettings.Builder()
+                .setBatterySaverTier(batterySaverTier)
+                .setUnpluggedTier(unpluggedTier)
+                .setThermalTier(thermalTier)
+                .build();
+    }
+
+    @Test
+    public void fullWhilePluggedInAndCool() {
+        final AnimationSettings settings = tiers(TIER_STATIC, TIER_STATIC, TIER_STATIC);
+        assertEquals(TIER_FULL, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_NONE));
+        assertEquals(TIER_FULL, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_LIGHT));
+    }
+
+    @Test
+    public void eachStateAsksForItsOwnTier() {
+        final AnimationSettings settings = tiers(TIER_REDUCED, TIER_STATIC, TIER_REDUCED);
+        assertEquals(TIER_REDUCED, PowerMonitor.tierFor(settings, true, true, PowerManager.THERMAL_STATUS_NONE));
+        assertEquals(TIER_STATIC, PowerMonitor.tierFor(settings, false, false, PowerManager.THERMAL_STATUS_NONE));
+        assertEquals(TIER_REDUCED, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_MODERATE));
+    }
+
+    @Test
+    public void theHighestTierAskedForWins() {
+        final AnimationSettings settings = tiers(TIER_STATIC, TIER_REDUCED, TIER_FULL);
+        assertEquals(TIER_STATIC, PowerMonitor.tierFor(settings, true, false, PowerManager.THERMAL_STATUS_MODERATE));
+        assertEquals(TIER_REDUCED, PowerMonitor.tierFor(settings, false, false, PowerManager.THERMAL_STATUS_MODERATE));
+        assertEquals(TIER_FULL, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_MODERATE));
+    }
+
+    @Test
+    public void severeThermalStatusIsAlwaysStatic() {
+        final AnimationSettings settings = tiers(TIER_FULL, TIER_FULL, TIER_FULL);
+        assertEquals(TIER_FULL, PowerMonitor.tierFor(settings, true, false, PowerManager.THERMAL_STATUS_MODERATE));
+        assertEquals(TIER_STATIC, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_SEVERE));
+        assertEquals(TIER_STATIC, PowerMonitor.tierFor(settings, false, true, PowerManager.THERMAL_STATUS_SHUTDOWN));
+    }
+}
@@ -0,0 +1,157 @@
+package com.mcherm.cloudpaper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mcherm.cloudpaper.renderer.CloudRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QualityGovernorTest {
+
+    private static final long BUDGET_MILLIS = 33;
+    private static final int WINDOW_FRAMES = 60;
+
+    private final QualityGovernor governor = new QualityGovernor();
+
+    // The governor's level, from the octaves and block scale it gives
+    private int level() {
+        final int octaves = governor.getOctaves();
+        final int blockScale = governor.getBlockScale();
+        if (blockScale == 1) {
+            return octaves == CloudRenderer.FULL_OCTAVES ? 0 : 1;
+        }
+        return octaves == CloudRenderer.FULL_OCTAVES ? 2 : octaves == CloudRenderer.FULL_OCTAVES - 1 ? 3 : 4;
+    }
+
+    // Records frames that each take the given time at each level, returning how many levels changed
+    private int run(int frames, long... levelMillis) {
+        int changes = 0;
+        for (int i = 0; i < frames; i++) {
+            if (governor.recordFrame(levelMillis[level()], BUDGET_MILLIS)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void keepsFullDetailWhileFramesFit() {
+        assertEquals(0, run(10000, 20, 15, 7, 5, 2));
+        assertEquals(0, level());
+    }
+
+    @Test
+    public void stepsDownAfterAWindowOfSlowFrames() {
+        for (int i = 1; i < WINDOW_FRAMES; i++) {
+            assertFalse(governor.recordFrame(50, BUDGET_MILLIS));
+        }
+        assertTrue(governor.recordFrame(50, BUDGET_MILLIS));
+        assertEquals(1, level());
+        // And waits for a whole window at the new level before judging it
+        for (int i = 1; i < WINDOW_FRAMES; i++) {
+            assertFalse(governor.recordFrame(50, BUDGET_MILLIS));
+        }
+        assertTrue(governor.recordFrame(50, BUDGET_MILLIS));
+        assertEquals(2, level());
+    }
+
+    @Test
+    public void ignoresAFewSlowFrames() {
+        // The 90th percentile of each window is still in budget with 5 slow frames in 60
+        for (int i = 0; i < 100 * WINDOW_FRAMES; i++) {
+            assertFalse(governor.recordFrame(i % 12 == 0 ? 200 : 20, BUDGET_MILLIS));
+        }
+        assertEquals(0, level());
+    }
+
+    @Test
+    public void settlesWithoutGoingBackAndForth() {
+        // Level 0 is over budget, and level 1 is in it but without the headroom to step back up
+        assertEquals(1, run(100 * WINDOW_FRAMES, 40, 30, 14, 9, 4));
+        assertEquals(1, level());
+    }
+
+    @Test
+    public void stepsBackUpWithHeadroom() {
+        run(WINDOW_FRAMES, 50, 38, 17, 11, 6);
+        assertEquals(1, level());
+        // The frames at level 1 got faster, enough that level 0 should fit with room to spare
+        for (int i = 1; i < 3 * WINDOW_FRAMES; i++) {
+            assertFalse(governor.recordFrame(15, BUDGET_MILLIS));
+        }
+        assertTrue(governor.recordFrame(15, BUDGET_MILLIS));
+        assertEquals(0, level());
+    }
+
+    @Test
+    public void waitsLongerEachTimeAStepUpIsTakenBack() {
+        // Level 0 costs far more than level 1 suggests, so every step up to it is taken back
+        final long[] levelMillis = {50, 15, 7, 5, 2};
+        final List<Integer> framesBeforeStepUp = new ArrayList<>();
+        run(WINDOW_FRAMES, levelMillis);
+        int framesAtLevel = 0;
+        for (int i = 0; i < 20000; i++) {
+            final int before = level();
+            framesAtLevel++;
+            if (governor.recordFrame(levelMillis[before], BUDGET_MILLIS)) {
+                if (level() < before) {
+                    framesBeforeStepUp.add(framesAtLevel);
+                }
+                framesAtLevel = 0;
+            }
+        }
+        assertArrayEquals(new Object[] {180, 360, 720, 1440, 2880, 2880},
+                framesBeforeStepUp.subList(0, 6).toArray());
+    }
+
+    @Test
+    public void minLevelKeepsFramesCoarse() {
+        assertTrue(governor.setMinLevel(QualityGovernor.COARSE_BLOCKS_LEVEL));
+        assertEquals(QualityGovernor.COARSE_BLOCKS_LEVEL, level());
+        assertEquals(2, governor.getBlockScale());
+        // However fast the frames are
+        assertEquals(0, run(100 * WINDOW_FRAMES, 1, 1, 1, 1, 1));
+        assertEquals(QualityGovernor.COARSE_BLOCKS_LEVEL, level());
+        // But less detail is still allowed, down to the lowest level
+        assertEquals(2, run(100 * WINDOW_FRAMES, 100, 100, 100, 100, 100));
+        assertEquals(4, level());
+    }
+
+    @Test
+    public void liftingTheMinLevelReturnsToFullDetailOnlyFromTheMinLevel() {
+        governor.setMinLevel(QualityGovernor.COARSE_BLOCKS_LEVEL);
+        assertTrue(governor.setMinLevel(0));
+        assertEquals(0, level());
+
+        // Slower than the old lowest level allowed for
+        governor.setMinLevel(QualityGovernor.COARSE_BLOCKS_LEVEL);
+        run(2 * WINDOW_FRAMES, 100, 100, 100, 100, 100);
+        assertEquals(4, level());
+        assertFalse(governor.setMinLevel(0));
+        assertEquals(4, level());
+    }
+
+    @Test
+    public void minLevelIsClampedToTheLowestLevel() {
+        assertTrue(governor.setMinLevel(99));
+        assertEquals(4, level());
+        assertFalse(governor.setMinLevel(99));
+    }
+
+    @Test
+    public void limitScalesTheBlocksForTheLevel() {
+        final AnimationSettings settings = new AnimationSettings();
+        assertSame(settings, governor.limit(settings));
+        governor.setMinLevel(QualityGovernor.COARSE_BLOCKS_LEVEL);
+        final AnimationSettings limited = governor.limit(settings);
+        assertEquals(2 * settings.pixelSize, limited.pixelSize);
+        assertEquals(settings.cloudDensityThreshold, limited.cloudDensityThreshold, 0f);
+    }
+}
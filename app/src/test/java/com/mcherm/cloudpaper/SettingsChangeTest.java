@@ -0,0 +1,100 @@
+package com.mcherm.cloudpaper;
+
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_FULL;
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_REDUCED;
+import static com.mcherm.cloudpaper.PowerMonitor.TIER_STATIC;
+import static com.mcherm.cloudpaper.SettingsChange.CARRY_ON;
+import static com.mcherm.cloudpaper.SettingsChange.DRAW_NOW;
+import static com.mcherm.cloudpaper.SettingsChange.RESCHEDULE;
+import static com.mcherm.cloudpaper.SettingsChange.RESTART;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SettingsChangeTest {
+
+    private static final AnimationSettings PLAIN = new AnimationSettings();
+    private static final AnimationSettings PIPELINED = new AnimationSettings.Builder().setPipelinedFrames(true).build();
+
+    private static SettingsChange change(AnimationSettings oldSettings, AnimationSettings newSettings) {
+        return new SettingsChange(oldSettings, TIER_FULL, newSettings, TIER_FULL);
+    }
+
+    // How the frames start over, with the pipelined frames fitting, no new noise, and frames still coming
+    private static int restart(AnimationSettings oldSettings, AnimationSettings newSettings) {
+        return change(oldSettings, newSettings).restart(false, false, false);
+    }
+
+    @Test
+    public void colorsCarryOn() {
+        for (AnimationSettings settings : new AnimationSettings[] {PLAIN, PIPELINED}) {
+            assertEquals(CARRY_ON, restart(settings, new AnimationSettings.Builder(settings).setSkyColor("#102030").build()));
+            assertEquals(CARRY_ON, restart(settings, new AnimationSettings.Builder(settings).setSmoothClouds(true).build()));
+        }
+    }
+
+    @Test
+    public void densityCarriesOnAndCanBeRemapped() {
+        for (AnimationSettings settings : new AnimationSettings[] {PLAIN, PIPELINED}) {
+            final AnimationSettings denser = new AnimationSettings.Builder(settings)
+                    .setCloudDensityThreshold(settings.cloudDensityThreshold + 0.1f).build();
+            assertEquals(CARRY_ON, restart(settings, denser));
+            assertTrue(change(settings, denser).densityOnlyChanged);
+        }
+        // But not when the noise changes as well
+        final AnimationSettings newNoise = new AnimationSettings.Builder(PLAIN)
+                .setCloudDensityThreshold(PLAIN.cloudDensityThreshold + 0.1f)
+                .setNoiseFrequency(PLAIN.noiseFrequency * 2).build();
+        assertFalse(change(PLAIN, newNoise).densityOnlyChanged);
+    }
+
+    @Test
+    public void ratesCarryOnFromWhereTheCloudsAre() {
+        final SettingsChange change = change(PLAIN, new AnimationSettings.Builder(PLAIN).setDriftX(PLAIN.driftX * 2).build());
+        assertTrue(change.ratesChanged);
+        assertEquals(CARRY_ON, change.restart(false, false, false));
+    }
+
+    @Test
+    public void frameRateRestarts() {
+        assertEquals(RESCHEDULE, restart(PLAIN, new AnimationSettings.Builder(PLAIN)
+                .setFramesPerSecond(PLAIN.framesPerSecond * 2).build()));
+        assertEquals(RESTART, restart(PIPELINED, new AnimationSettings.Builder(PIPELINED)
+                .setFramesPerSecond(PIPELINED.framesPerSecond * 2).build()));
+    }
+
+    @Test
+    public void powerTierRestartsUnlessTheSpacingStaysTheSame() {
+        assertEquals(RESCHEDULE, new SettingsChange(PLAIN, TIER_FULL, PLAIN, TIER_REDUCED).restart(false, false, false));
+        // Static frames are a fixed time apart, whatever the frame rate
+        final AnimationSettings faster = new AnimationSettings.Builder(PLAIN)
+                .setFramesPerSecond(PLAIN.framesPerSecond * 2).build();
+        assertEquals(CARRY_ON, new SettingsChange(PLAIN, TIER_STATIC, faster, TIER_STATIC).restart(false, false, false));
+    }
+
+    @Test
+    public void switchingFrameLoopsRestarts() {
+        assertEquals(RESTART, restart(PLAIN, PIPELINED));
+        assertEquals(RESTART, restart(PIPELINED, PLAIN));
+        // As do pipelined frames of the wrong size
+        assertEquals(RESTART, change(PIPELINED, PIPELINED).restart(true, false, false));
+        assertEquals(CARRY_ON, change(PLAIN, PLAIN).restart(true, false, false));
+    }
+
+    @Test
+    public void newNoiseIsDrawnNow() {
+        assertEquals(DRAW_NOW, change(PLAIN, PLAIN).restart(false, true, false));
+        // Pipelined frames show it as soon as they can anyway
+        assertEquals(CARRY_ON, change(PIPELINED, PIPELINED).restart(false, true, false));
+    }
+
+    @Test
+    public void framesThatMayNotComeSoonAreRescheduled() {
+        assertEquals(RESCHEDULE, change(PLAIN, PLAIN).restart(false, false, true));
+        assertEquals(RESTART, change(PIPELINED, PIPELINED).restart(false, false, true));
+        final AnimationSettings skipping = new AnimationSettings.Builder(PLAIN).setSkipUnchangedFrames(true).build();
+        assertEquals(RESCHEDULE, restart(skipping, new AnimationSettings.Builder(skipping).setSkyColor("#102030").build()));
+    }
+}
@@ -0,0 +1,133 @@
+package com.mcherm.cloudpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.mcherm.cloudpaper.renderer.CloudFrame;
+import com.mcherm.cloudpaper.renderer.CloudRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SettingsManagerTest {
+
+    private SettingsManager settingsManager;
+    private final List<AnimationSettings> received = new ArrayList<>();
+    private final SettingsManager.SettingsListener listener = received::add;
+
+    // A renderer that takes every snapshot, as the wallpaper's does, and the frames it has had
+    private CloudRenderer cloudRenderer;
+    private final List<CloudFrame> frames = new ArrayList<>();
+    private final SettingsManager.SettingsListener rendererListener = new SettingsManager.SettingsListener() {
+        @Override
+        public void onSettingsChanged(AnimationSettings newSettings) {
+            received.add(newSettings);
+            cloudRenderer.setAnimationSettings(newSettings);
+            if (cloudRenderer.getFrame() != frames.get(frames.size() - 1)) {
+                frames.add(cloudRenderer.getFrame());
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        settingsManager = new SettingsManager(new FakeSharedPreferences());
+        cloudRenderer = new CloudRenderer(settingsManager.loadSettings());
+        cloudRenderer.setSurfaceSize(360, 780);
+        frames.add(cloudRenderer.getFrame());
+    }
+
+    @After
+    public void tearDown() {
+        cloudRenderer.release();
+    }
+
+    private static AnimationSettings everyFieldChanged() {
+        return new AnimationSettings.Builder()
+                .setPixelSize(6)
+                .setFramesPerSecond(10)
+                .setSkyColor("#102030")
+                .setEvolutionRate(0.01f)
+                .setNoiseFrequency(0.008f)
+                .setCloudDensityThreshold(0.6f)
+                .setDriftX(-0.002f)
+                .setDriftY(0.001f)
+                .setSmoothClouds(true)
+                .setPipelinedFrames(true)
+                .setScrollRefreshFrames(16)
+                .setTileZStep(0.25f)
+                .setKeyframeMillis(2000)
+                .setLoopMillis(30000)
+                .setProgressiveFrames(true)
+                .setBatterySaverTier(2)
+                .setUnpluggedTier(1)
+                .setThermalTier(2)
+                .setSkipUnchangedFrames(true)
+                .build();
+    }
+
+    @Test
+    public void oneCallbackForASaveChangingEveryField() {
+        settingsManager.registerListener(listener);
+        final AnimationSettings saved = everyFieldChanged();
+        settingsManager.saveSettings(saved);
+
+        assertEquals(1, received.size());
+        final AnimationSettings snapshot = received.get(0);
+        assertEquals(saved.pixelSize, snapshot.pixelSize);
+        assertEquals(saved.framesPerSecond, snapshot.framesPerSecond);
+        assertEquals(saved.skyColor, snapshot.skyColor);
+        assertEquals(saved.noiseFrequency, snapshot.noiseFrequency, 0f);
+        assertEquals(saved.cloudDensityThreshold, snapshot.cloudDensityThreshold, 0f);
+        assertEquals(saved.smoothClouds, snapshot.smoothClouds);
+        assertEquals(saved.loopMillis, snapshot.loopMillis);
+        assertEquals(saved.thermalTier, snapshot.thermalTier);
+        assertEquals(saved.skipUnchangedFrames, snapshot.skipUnchangedFrames);
+    }
+
+    @Test
+    public void oneCallbackForEachSave() {
+        settingsManager.registerListener(listener);
+        settingsManager.saveSettings(new AnimationSettings());
+        settingsManager.saveSettings(new AnimationSettings.Builder().setCloudDensityThreshold(0.4f).build());
+        // Saving unchanged settings still counts as a save
+        settingsManager.saveSettings(new AnimationSettings.Builder().setCloudDensityThreshold(0.4f).build());
+        assertEquals(3, received.size());
+        assertEquals(0.4f, received.get(2).cloudDensityThreshold, 0f);
+    }
+
+    @Test
+    public void noCallbackAfterUnregistering() {
+        settingsManager.registerListener(listener);
+        settingsManager.unregisterListener(listener);
+        settingsManager.saveSettings(everyFieldChanged());
+        assertEquals(0, received.size());
+    }
+
+    @Test
+    public void oneRendererRebuildForASaveChangingTheBlocks() {
+        settingsManager.registerListener(rendererListener);
+        settingsManager.saveSettings(everyFieldChanged());
+        assertEquals(1, received.size());
+        assertEquals(2, frames.size());
+        assertNotSame(frames.get(0), frames.get(1));
+    }
+
+    @Test
+    public void noRendererRebuildForASaveKeepingTheBlocks() {
+        settingsManager.registerListener(rendererListener);
+        settingsManager.saveSettings(new AnimationSettings.Builder()
+                .setCloudDensityThreshold(0.3f)
+                .setNoiseFrequency(0.004f)
+                .setSkyColor("#000000")
+                .build());
+        assertEquals(1, received.size());
+        assertEquals(1, frames.size());
+        assertSame(frames.get(0), cloudRenderer.getFrame());
+    }
+}
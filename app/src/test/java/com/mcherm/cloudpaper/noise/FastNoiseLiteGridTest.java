@@ -0,0 +1,121 @@
+package com.mcherm.cloudpaper.noise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the grid evaluators of FastNoiseLite against scalar GetNoise. The grid builds its
+ * positions from a transformed origin and steps, so samples differ from scalar ones by float
+ * rounding, which Ridged doubles and PingPong doubles again. (OpenSimplex2's 3D noise also has
+ * small steps at some cell boundaries, which a sample landing exactly on one can fall either
+ * side of; the origin here is off the lattice, as it is in use.)
+ */
+public class FastNoiseLiteGridTest {
+
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 32;
+    private static final float X = -12345.6f;
+    private static final float Y = -2000.3f;
+    private static final float STEP = 4f;
+    private static final float Z = 5000f;
+    private static final float TOLERANCE = 1e-4f;
+
+    // How much each fractal type scales differences in the noise it adds up
+    private static float tolerance(FastNoiseLite.FractalType fractalType) {
+        switch (fractalType) {
+            case Ridged:
+                return 2 * TOLERANCE;
+            case PingPong:
+                return 4 * TOLERANCE;
+            default:
+                return TOLERANCE;
+        }
+    }
+
+    private static FastNoiseLite noise(FastNoiseLite.NoiseType noiseType, FastNoiseLite.FractalType fractalType) {
+        final FastNoiseLite noise = new FastNoiseLite(1337);
+        noise.SetNoiseType(noiseType);
+        noise.SetFractalType(fractalType);
+        noise.SetFractalOctaves(3);
+        noise.SetFrequency(0.005f);
+        return noise;
+    }
+
+    @Test
+    public void gridMatchesScalarForEveryNoiseAndFractalType() {
+        final float[] grid = new float[WIDTH * HEIGHT];
+        for (FastNoiseLite.NoiseType noiseType : FastNoiseLite.NoiseType.values()) {
+            for (FastNoiseLite.FractalType fractalType : FastNoiseLite.FractalType.values()) {
+                final FastNoiseLite noise = noise(noiseType, fractalType);
+                noise.GetNoiseGrid(grid, X, Y, STEP, STEP, WIDTH, HEIGHT, Z);
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        final float scalar = noise.GetNoise(X + col * STEP, Y + row * STEP, Z);
+                        assertEquals(noiseType + "/" + fractalType + " at (" + col + ", " + row + ")",
+                                scalar, grid[row * WIDTH + col], tolerance(fractalType));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void gridMatchesScalarForEveryRotationType() {
+        final float[] grid = new float[WIDTH * HEIGHT];
+        for (FastNoiseLite.RotationType3D rotationType : FastNoiseLite.RotationType3D.values()) {
+            final FastNoiseLite noise = noise(FastNoiseLite.NoiseType.OpenSimplex2S, FastNoiseLite.FractalType.FBm);
+            noise.SetRotationType3D(rotationType);
+            noise.GetNoiseGrid(grid, X, Y, STEP, STEP, WIDTH, HEIGHT, Z);
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    final float scalar = noise.GetNoise(X + col * STEP, Y + row * STEP, Z);
+                    assertEquals(rotationType + " at (" + col + ", " + row + ")",
+                            scalar, grid[row * WIDTH + col], TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boundedGridKeepsEverySampleOnTheSameSideOfTheBounds() {
+        final float[] grid = new float[WIDTH * HEIGHT];
+        for (FastNoiseLite.NoiseType noiseType : FastNoiseLite.NoiseType.values()) {
+            final FastNoiseLite noise = noise(noiseType, FastNoiseLite.FractalType.FBm);
+            for (float lowerBound = -0.6f; lowerBound <= 0.6f; lowerBound += 0.3f) {
+                final float upperBound = lowerBound + 0.4f;
+                noise.GetNoiseGrid(grid, X, Y, STEP, STEP, WIDTH, HEIGHT, Z, lowerBound, upperBound);
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        final float scalar = noise.GetNoise(X + col * STEP, Y + row * STEP, Z);
+                        final float bounded = grid[row * WIDTH + col];
+                        final String where = noiseType + " bounds " + lowerBound + " at (" + col + ", " + row + ")";
+                        if (scalar < lowerBound) {
+                            assertTrue(where, bounded < lowerBound);
+                        } else if (scalar >= upperBound) {
+                            assertTrue(where, bounded >= upperBound);
+                        } else {
+                            assertEquals(where, scalar, bounded, TOLERANCE);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowsMatchTheWholeGridExactly() {
+        final FastNoiseLite noise = noise(FastNoiseLite.NoiseType.OpenSimplex2S, FastNoiseLite.FractalType.FBm);
+        final float[] whole = new float[WIDTH * HEIGHT];
+        final float[] rows = new float[WIDTH * HEIGHT];
+        noise.GetNoiseGrid(whole, X, Y, STEP, STEP, WIDTH, HEIGHT, Z, -0.2f, 0.5f);
+        for (int firstRow = 0; firstRow < HEIGHT; firstRow += 5) {
+            noise.GetNoiseGridRows(rows, X, Y, STEP, STEP, WIDTH, firstRow, Math.min(5, HEIGHT - firstRow),
+                    Z, -0.2f, 0.5f);
+        }
+        for (int i = 0; i < whole.length; i++) {
+            assertEquals("sample " + i, Float.floatToIntBits(whole[i]), Float.floatToIntBits(rows[i]));
+        }
+    }
+}
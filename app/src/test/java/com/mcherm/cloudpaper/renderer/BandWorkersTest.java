@@ -0,0 +1,102 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BandWorkersTest {
+
+    private BandWorkers workers;
+
+    @After
+    public void shutDown() {
+        if (workers != null) {
+            workers.shutDown();
+        }
+    }
+
+    // Runs a job on the workers and checks that every band ran exactly once
+    private void runAndCheckEveryBand(int bandCount) {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(bandCount);
+        workers.run((worker, band) -> runs.incrementAndGet(band), bandCount);
+        for (int band = 0; band < bandCount; band++) {
+            assertEquals("band " + band, 1, runs.get(band));
+        }
+    }
+
+    @Test
+    public void runsEveryBandExactlyOnce() {
+        workers = new BandWorkers(4);
+        for (int job = 0; job < 100; job++) {
+            runAndCheckEveryBand(1 + job % 17);
+        }
+    }
+
+    @Test
+    public void rethrowsTheExceptionOfABand() {
+        workers = new BandWorkers(3);
+        final RuntimeException thrown = new RuntimeException("band 5");
+        try {
+            workers.run((worker, band) -> {
+                if (band == 5) {
+                    throw thrown;
+                }
+            }, 12);
+            fail("run() should have thrown");
+        } catch (RuntimeException e) {
+            assertSame(thrown, e);
+        }
+        // The workers are still usable afterward
+        runAndCheckEveryBand(12);
+    }
+
+    @Test(timeout = 10000)
+    public void finishesJobsAfterAWorkerIsInterrupted() throws InterruptedException {
+        workers = new BandWorkers(3);
+        runAndCheckEveryBand(8);
+        final Thread worker = findThread("CloudPaperBand-1");
+        worker.interrupt();
+        worker.join();
+        for (int job = 0; job < 20; job++) {
+            runAndCheckEveryBand(8);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void finishesAJobRacingAnInterruptedWorker() {
+        // The interrupted worker may or may not have been counted in the job when it stops
+        for (int attempt = 0; attempt < 50; attempt++) {
+            workers = new BandWorkers(2);
+            findThread("CloudPaperBand-1").interrupt();
+            runAndCheckEveryBand(6);
+            workers.shutDown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesJobsAfterShutDown() {
+        workers = new BandWorkers(2);
+        workers.shutDown();
+        workers.run((worker, band) -> { }, 4);
+    }
+
+    // The live thread of the latest workers with the given name
+    private static Thread findThread(String name) {
+        Thread found = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()
+                    && (found == null || thread.getId() > found.getId())) {
+                found = thread;
+            }
+        }
+        if (found == null) {
+            fail("No thread named " + name);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,74 @@
+package com.mcherm.cloudpaper.renderer;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+import com.mcherm.cloudpaper.noise.FastNoiseLite;
+
+/**
+ * Times turning a frame of raw noise into opacity: with the float formula per block that the
+ * renderer first used, in the two passes (quantize, then look up) that replaced it, and with
+ * the kernel's single pass. The formula keeps no quantized field, which remapping and tiles
+ * need. Not a test: run its main(), e.g. from the IDE.
+ */
+public class CloudKernelBenchmark {
+
+    private static final int WIDTH = 270;
+    private static final int HEIGHT = 585;
+    private static final int REPEATS = 200;
+    private static final int ROUNDS = 25;
+
+    public static void main(String[] args) {
+        final AnimationSettings settings = new AnimationSettings();
+        final FastNoiseLite noise = new FastNoiseLite();
+        noise.SetNoiseType(FastNoiseLite.NoiseType.OpenSimplex2S);
+        noise.SetFractalType(FastNoiseLite.FractalType.FBm);
+        noise.SetFractalOctaves(3);
+        noise.SetFrequency(settings.noiseFrequency);
+        final float[] noiseValues = new float[WIDTH * HEIGHT];
+        noise.GetNoiseGrid(noiseValues, 0, 0, settings.pixelSize, settings.pixelSize, WIDTH, HEIGHT, 0);
+
+        final CloudKernel kernel = CloudKernel.forSettings(settings, null);
+        final char[] field = new char[noiseValues.length];
+        final CloudFrame frame = new CloudFrame(WIDTH, HEIGHT);
+        final byte[] formulaAlphas = new byte[noiseValues.length];
+        final double blocks = (double) WIDTH * HEIGHT * REPEATS;
+
+        // The fastest round of each, as other work on the machine only ever slows a round down
+        double formulaBest = Double.MAX_VALUE;
+        double twoPassBest = Double.MAX_VALUE;
+        double kernelBest = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                formula(noiseValues, settings, formulaAlphas);
+            }
+            final long formulaDone = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                CloudKernel.quantize(noiseValues, 0, WIDTH, HEIGHT, field, WIDTH, 0, 0);
+                kernel.map(field, frame, 0, HEIGHT);
+            }
+            final long twoPassDone = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                kernel.apply(noiseValues, field, frame, 0, HEIGHT);
+            }
+            final long kernelDone = System.nanoTime();
+            formulaBest = Math.min(formulaBest, (formulaDone - start) / blocks);
+            twoPassBest = Math.min(twoPassBest, (twoPassDone - formulaDone) / blocks);
+            kernelBest = Math.min(kernelBest, (kernelDone - twoPassDone) / blocks);
+        }
+        System.out.printf("ns/block, fastest of %d rounds: float formula %.2f, two passes %.2f, kernel %.2f%n",
+                ROUNDS, formulaBest, twoPassBest, kernelBest);
+    }
+
+    // The opacity of each block worked out in floats, as the renderer first did
+    private static void formula(float[] noiseValues, AnimationSettings settings, byte[] alphas) {
+        for (int i = 0; i < noiseValues.length; i++) {
+            final float noiseValue = (noiseValues[i] + 1.0f) / 2.0f;
+            final float threshold = 1.0f - settings.cloudDensityThreshold;
+            int alpha = 0;
+            if (noiseValue >= threshold) {
+                alpha = Math.min(255, (int) ((noiseValue - threshold) / (1.0f - threshold) * 255));
+            }
+            alphas[i] = (byte) alpha;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.Bitmap;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the kernel's opacity table against working out each block's opacity in floats, as
+ * the renderer used to.
+ */
+public class CloudKernelTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final float[] DENSITIES = {0.0f, 0.1f, 0.3f, 0.5f, 0.73f, 0.9f, 1.0f};
+
+    /**
+     * The opacity of a block of raw noise, worked out the way the renderer did before the
+     * table. Noise then was always in [-1, 1]; noise outside it now (from sampling stopped
+     * early) is clamped, as the kernel does.
+     */
+    static int referenceAlpha(float noise, float cloudDensityThreshold) {
+        final float noiseValue = (Math.max(-1.0f, Math.min(1.0f, noise)) + 1.0f) / 2.0f;
+        final float threshold = 1.0f - cloudDensityThreshold;
+        if (noiseValue < threshold) {
+            return 0;
+        }
+        final float cloudIntensity = (noiseValue - threshold) / (1.0f - threshold);
+        return Math.min(255, Math.max(0, (int) (cloudIntensity * 255)));
+    }
+
+    private static CloudKernel kernel(float density) {
+        return CloudKernel.forSettings(new AnimationSettings.Builder().setCloudDensityThreshold(density).build(), null);
+    }
+
+    // Raw noise, mostly in [-1, 1] but some of it outside, as noise that stopped early can be
+    private static float[] noise(Random random) {
+        final float[] noise = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt(20) == 0 ? (random.nextFloat() - 0.5f) * 6 : random.nextFloat() * 2 - 1;
+        }
+        noise[0] = -1;
+        noise[1] = 1;
+        noise[2] = 0;
+        noise[3] = Float.NEGATIVE_INFINITY;
+        noise[4] = Float.POSITIVE_INFINITY;
+        return noise;
+    }
+
+    private static void assertNearReference(String what, float[] noise, float density, CloudFrame frame) {
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                final float value = noise[row * WIDTH + col];
+                final int alpha = frame.alphas[row * frame.rowBytes + col] & 0xFF;
+                assertEquals(what + " density " + density + ", noise " + value,
+                        referenceAlpha(value, density), alpha, 1);
+            }
+        }
+    }
+
+    @Test
+    public void applyIsWithinOneLevelOfTheFloatFormula() {
+        final Random random = new Random(7);
+        for (float density : DENSITIES) {
+            final float[] noise = noise(random);
+            final char[] field = new char[noise.length];
+            final CloudFrame frame = new CloudFrame(WIDTH, HEIGHT);
+            final CloudKernel kernel = kernel(density);
+            // In bands, as the workers do
+            for (int firstRow = 0; firstRow < HEIGHT; firstRow += 10) {
+                kernel.apply(noise, field, frame, firstRow, Math.min(firstRow + 10, HEIGHT));
+            }
+            assertNearReference("apply", noise, density, frame);
+        }
+    }
+
+    @Test
+    public void paddedRowsGetTheSameOpacitiesAsUnpaddedOnes() {
+        final Random random = new Random(19);
+        final int width = WIDTH - 3;
+        final CloudFrame unpadded = new CloudFrame(width, HEIGHT);
+        final CloudFrame padded;
+        Bitmap.rowAlignment = 8;
+        try {
+            padded = new CloudFrame(width, HEIGHT);
+        } finally {
+            Bitmap.rowAlignment = 1;
+        }
+        assertNotEquals(padded.widthBlocks, padded.rowBytes);
+        for (float density : DENSITIES) {
+            final float[] noise = noise(random);
+            final char[] field = new char[noise.length];
+            final char[] paddedField = new char[noise.length];
+            final CloudKernel kernel = kernel(density);
+            kernel.apply(noise, field, unpadded, 0, HEIGHT);
+            kernel.apply(noise, paddedField, padded, 0, HEIGHT);
+            assertArrayEquals(field, paddedField);
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < width; col++) {
+                    assertEquals(unpadded.alphas[row * unpadded.rowBytes + col], padded.alphas[row * padded.rowBytes + col]);
+                }
+            }
+            // And map() from the field, in bands
+            Arrays.fill(padded.alphas, (byte) 0);
+            kernel.map(paddedField, padded, 0, HEIGHT / 2);
+            kernel.map(paddedField, padded, HEIGHT / 2, HEIGHT);
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < width; col++) {
+                    assertEquals(unpadded.alphas[row * unpadded.rowBytes + col], padded.alphas[row * padded.rowBytes + col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void everyNoiseLevelIsWithinOneLevelOfTheFloatFormula() {
+        // Every 16-bit level of the field, by way of the noise nearest it
+        final float[] noise = new float[CloudKernel.FIELD_MAX + 1];
+        for (int level = 0; level < noise.length; level++) {
+            noise[level] = level * 2.0f / CloudKernel.FIELD_MAX - 1.0f;
+        }
+        final char[] field = new char[noise.length];
+        final CloudFrame frame = new CloudFrame(256, noise.length / 256);
+        for (float density : DENSITIES) {
+            kernel(density).apply(noise, field, frame, 0, frame.heightBlocks);
+            for (int i = 0; i < noise.length; i++) {
+                final int alpha = frame.alphas[(i / 256) * frame.rowBytes + i % 256] & 0xFF;
+                assertEquals("density " + density + ", noise " + noise[i], referenceAlpha(noise[i], density), alpha, 1);
+            }
+        }
+    }
+
+    @Test
+    public void lowDensitiesStayWithinAFewLevelsOfTheFloatFormula() {
+        // 16 levels share a table entry, which spans more opacity the sparser the clouds
+        final float[] noise = new float[CloudKernel.FIELD_MAX + 1];
+        for (int level = 0; level < noise.length; level++) {
+            noise[level] = level * 2.0f / CloudKernel.FIELD_MAX - 1.0f;
+        }
+        final char[] field = new char[noise.length];
+        final CloudFrame frame = new CloudFrame(256, noise.length / 256);
+        final float[] densities = {0.01f, 0.02f, 0.05f};
+        final int[] tolerances = {4, 2, 1};
+        for (int d = 0; d < densities.length; d++) {
+            kernel(densities[d]).apply(noise, field, frame, 0, frame.heightBlocks);
+            for (int i = 0; i < noise.length; i++) {
+                final int alpha = frame.alphas[(i / 256) * frame.rowBytes + i % 256] & 0xFF;
+                assertEquals("density " + densities[d] + ", noise " + noise[i],
+                        referenceAlpha(noise[i], densities[d]), alpha, tolerances[d]);
+            }
+        }
+    }
+
+    @Test
+    public void mapGivesWhatApplyDid() {
+        final Random random = new Random(11);
+        for (float density : DENSITIES) {
+            final float[] noise = noise(random);
+            final char[] field = new char[noise.length];
+            final CloudFrame applied = new CloudFrame(WIDTH, HEIGHT);
+            final CloudFrame mapped = new CloudFrame(WIDTH, HEIGHT);
+            final CloudKernel kernel = kernel(density);
+            kernel.apply(noise, field, applied, 0, HEIGHT);
+            kernel.map(field, mapped, 0, HEIGHT);
+            assertEquals(0, applied.maxDifference(mapped.copyAlphas(null)));
+        }
+    }
+
+    @Test
+    public void remappingAtALowerDensityIsWithinOneLevelOfTheFloatFormula() {
+        // Mapping a field quantized for one density with the table of another
+        final Random random = new Random(13);
+        final float[] noise = noise(random);
+        final char[] field = new char[noise.length];
+        final CloudFrame frame = new CloudFrame(WIDTH, HEIGHT);
+        kernel(0.9f).apply(noise, field, frame, 0, HEIGHT);
+        kernel(0.4f).map(field, frame, 0, HEIGHT);
+        assertNearReference("map", noise, 0.4f, frame);
+    }
+
+    @Test
+    public void mapCoarseFillsEachCellFromItsTopLeftBlock() {
+        final float[] noise = noise(new Random(17));
+        final char[] field = new char[noise.length];
+        final CloudFrame fine = new CloudFrame(WIDTH, HEIGHT);
+        final CloudFrame coarse = new CloudFrame(WIDTH, HEIGHT);
+        final CloudKernel kernel = kernel(0.5f);
+        kernel.apply(noise, field, fine, 0, HEIGHT);
+        kernel.mapCoarse(field, coarse, 5);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                assertEquals("block (" + col + ", " + row + ")",
+                        fine.alphas[(row - row % 5) * fine.rowBytes + col - col % 5],
+                        coarse.alphas[row * coarse.rowBytes + col]);
+            }
+        }
+    }
+
+    @Test
+    public void kernelIsKeptWhileTheDensityIsUnchanged() {
+        final CloudKernel kernel = kernel(0.5f);
+        final AnimationSettings otherSettings = new AnimationSettings.Builder()
+                .setCloudDensityThreshold(0.5f).setPixelSize(8).setSkyColor("#000000").build();
+        assertSame(kernel, CloudKernel.forSettings(otherSettings, kernel));
+        assertNotSame(kernel, CloudKernel.forSettings(
+                new AnimationSettings.Builder().setCloudDensityThreshold(0.6f).build(), kernel));
+    }
+}
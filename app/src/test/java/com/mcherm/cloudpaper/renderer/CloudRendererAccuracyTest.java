@@ -0,0 +1,198 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that the ways of generating frames that save work (scrolling, tiles, keyframes and
+ * progressive refinement) give frames close to generating every block afresh, as plain
+ * generateClouds() does, and exactly the same where they should.
+ */
+public class CloudRendererAccuracyTest {
+
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 260;
+    private static final int FRAMES = 24;
+    private static final long FRAME_MILLIS = 250;
+
+    // Differences of a level come from noise positions that are worked out differently in floats
+    private static final int ROUNDING_LEVELS = 1;
+
+    private CloudRenderer renderer;
+    private CloudRenderer fresh;
+    private CloudFrame frame;
+    private CloudFrame freshFrame;
+
+    @After
+    public void releaseRenderers() {
+        if (renderer != null) {
+            renderer.release();
+            renderer = null;
+        }
+        if (fresh != null) {
+            fresh.release();
+            fresh = null;
+        }
+    }
+
+    // Sets up the renderer for the given settings, and one generating every block afresh to compare it with
+    private void setUp(AnimationSettings settings) {
+        renderer = new CloudRenderer(settings, 1);
+        renderer.setSurfaceSize(WIDTH, HEIGHT);
+        frame = renderer.createFrame();
+        final AnimationSettings plain = new AnimationSettings.Builder(settings)
+                .setScrollRefreshFrames(0).setTileZStep(0).setKeyframeMillis(0).setProgressiveFrames(false)
+                .build();
+        fresh = new CloudRenderer(plain, 1);
+        // Blocks lined up with the noise take one more each way, to cover the screen
+        final boolean alignedBlocks = frame.widthBlocks > (WIDTH + settings.pixelSize - 1) / settings.pixelSize;
+        final int extra = alignedBlocks ? settings.pixelSize : 0;
+        fresh.setSurfaceSize(WIDTH + extra, HEIGHT + extra);
+        freshFrame = fresh.createFrame();
+    }
+
+    // Generates frame i of an animation at the settings' rates, returning its time
+    private float generate(AnimationSettings settings, int i) {
+        final long millis = i * FRAME_MILLIS;
+        renderer.generateClouds(frame, millis * settings.driftX, millis * settings.driftY, millis * settings.evolutionRate);
+        return millis * settings.evolutionRate;
+    }
+
+    // The alphas of the blocks of the frame just generated (for frame i), generated afresh at time z
+    private byte[] freshAlphas(AnimationSettings settings, int i, float z) {
+        final long millis = i * FRAME_MILLIS;
+        // The fresh frame has no offset, so start its blocks where the frame's are
+        fresh.generateClouds(freshFrame, millis * settings.driftX - frame.getOffsetX(),
+                millis * settings.driftY - frame.getOffsetY(), z);
+        return freshFrame.copyAlphas(null);
+    }
+
+    // The most the frame just generated (for frame i) differs from its blocks generated afresh at time z
+    private int differenceFromFresh(AnimationSettings settings, int i, float z) {
+        return frame.maxDifference(freshAlphas(settings, i, z));
+    }
+
+    @Test
+    public void scrollingOnlyDriftIsExact() {
+        final AnimationSettings settings = new AnimationSettings.Builder()
+                .setScrollRefreshFrames(4).setEvolutionRate(0).setDriftX(0.05f).setDriftY(-0.02f).build();
+        setUp(settings);
+        for (int i = 0; i < FRAMES; i++) {
+            final float z = generate(settings, i);
+            final int difference = differenceFromFresh(settings, i, z);
+            assertTrue("frame " + i + " differs by " + difference, difference <= ROUNDING_LEVELS);
+        }
+    }
+
+    @Test
+    public void scrollingIsNoStalerThanTheLastRefresh() {
+        for (int refreshFrames : new int[] {4, 8}) {
+            final AnimationSettings settings = new AnimationSettings.Builder()
+                    .setScrollRefreshFrames(refreshFrames).setDriftX(0.05f).setDriftY(-0.02f).build();
+            setUp(settings);
+            float refreshZ = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                final float z = generate(settings, i);
+                final byte[] alphas = freshAlphas(settings, i, z);
+                final int difference = frame.maxDifference(alphas);
+                if (i % refreshFrames == 0) {
+                    // Every block sampled afresh
+                    assertTrue("refreshed frame " + i + " differs by " + difference, difference <= ROUNDING_LEVELS);
+                    refreshZ = z;
+                } else {
+                    // Blocks kept from earlier frames are at most as old as the refresh
+                    freshAlphas(settings, i, refreshZ);
+                    final int evolved = freshFrame.maxDifference(alphas);
+                    assertTrue("frame " + i + " differs by " + difference + ", evolving by " + evolved,
+                            difference <= evolved + ROUNDING_LEVELS);
+                }
+            }
+            releaseRenderers();
+        }
+    }
+
+    @Test
+    public void tilesAreExactAtTheirTimeStep() {
+        final AnimationSettings settings = new AnimationSettings.Builder()
+                .setTileZStep(0.5f).setEvolutionRate(0.0005f).setDriftX(0.05f).setDriftY(-0.02f).build();
+        setUp(settings);
+        for (int i = 0; i < FRAMES; i++) {
+            final float z = generate(settings, i);
+            // The time step nearest the frame's time
+            final float stepZ = Math.round(z / settings.tileZStep) * settings.tileZStep;
+            final int difference = differenceFromFresh(settings, i, stepZ);
+            assertTrue("frame " + i + " differs by " + difference, difference <= ROUNDING_LEVELS);
+        }
+        // Including those put together from tiles already rendered, four frames to a time step
+        assertTrue(renderer.getTileHits() > 0);
+    }
+
+    @Test
+    public void keyframesAreExactOnTheirTimesAndBlendedBetween() {
+        final AnimationSettings settings = new AnimationSettings.Builder()
+                .setKeyframeMillis(1000).setDriftX(0.05f).setDriftY(-0.02f).build();
+        setUp(settings);
+        final float spacing = settings.evolutionRate * settings.keyframeMillis;
+        final byte[] alphas = new byte[frame.widthBlocks * frame.heightBlocks];
+        int keyframeTimes = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            final float z = generate(settings, i);
+            final float fromZ = (float) Math.floor(z / spacing) * spacing;
+            final int difference = differenceFromFresh(settings, i, fromZ);
+            if (z == fromZ) {
+                assertTrue("keyframe " + i + " differs by " + difference, difference <= ROUNDING_LEVELS);
+                keyframeTimes++;
+                continue;
+            }
+            // Each block is between its alphas at the keyframes either side
+            frame.copyAlphas(alphas);
+            final byte[] fromAlphas = freshAlphas(settings, i, fromZ);
+            final byte[] toAlphas = freshAlphas(settings, i, fromZ + spacing);
+            for (int block = 0; block < alphas.length; block++) {
+                final int alpha = alphas[block] & 0xFF;
+                final int from = fromAlphas[block] & 0xFF;
+                final int to = toAlphas[block] & 0xFF;
+                assertTrue("block " + block + " of frame " + i + " is " + alpha + ", between " + from + " and " + to,
+                        alpha >= Math.min(from, to) - ROUNDING_LEVELS && alpha <= Math.max(from, to) + ROUNDING_LEVELS);
+            }
+            // Which, with keyframes this close, is within a few levels of the clouds at the frame's own time
+            final int freshDifference = differenceFromFresh(settings, i, z);
+            assertTrue("frame " + i + " differs by " + freshDifference, freshDifference <= 3);
+        }
+        // A frame time in every four is a keyframe's
+        assertEquals(FRAMES / 4, keyframeTimes);
+    }
+
+    @Test
+    public void progressiveFramesEndUpExact() {
+        // Still clouds: the last of the refining frames has every block, all sampled at the same time
+        final AnimationSettings still = new AnimationSettings.Builder()
+                .setProgressiveFrames(true).setEvolutionRate(0).setDriftX(0).setDriftY(0).build();
+        setUp(still);
+        int refiningFrames = 0;
+        while (renderer.isRefining()) {
+            generate(still, refiningFrames++);
+        }
+        assertEquals(4, refiningFrames);
+        final int stillDifference = differenceFromFresh(still, refiningFrames - 1, 0);
+        assertTrue("refined frame differs by " + stillDifference, stillDifference <= ROUNDING_LEVELS);
+        releaseRenderers();
+
+        // Moving clouds: every frame after refining samples every block again
+        final AnimationSettings moving = new AnimationSettings.Builder().setProgressiveFrames(true).build();
+        setUp(moving);
+        for (int i = 0; i < FRAMES; i++) {
+            final boolean refining = renderer.isRefining();
+            final float z = generate(moving, i);
+            if (!refining) {
+                final int difference = differenceFromFresh(moving, i, z);
+                assertTrue("frame " + i + " differs by " + difference, difference <= ROUNDING_LEVELS);
+            }
+        }
+    }
+}
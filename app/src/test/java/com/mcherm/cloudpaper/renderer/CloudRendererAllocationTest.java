@@ -0,0 +1,164 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that, once warmed up, generating frames allocates nothing on the calling thread or
+ * the band workers, whichever way the frames are generated. With tiles, warming up includes
+ * filling the tile cache, which allocates tiles until it is full.
+ *
+ * <p>The JIT compiler can allocate a few bytes on a thread once in a while (when it throws away
+ * compiled code, say), so frames are counted in windows, and one window that allocates nothing
+ * passes. Anything a frame itself allocates shows up in every window.
+ */
+public class CloudRendererAllocationTest {
+
+    private static final int WIDTH = 540;
+    private static final int HEIGHT = 1170;
+    private static final int WARM_UP_FRAMES = 30;
+    private static final int FRAMES = 100;
+    private static final int MAX_WARM_UP_FRAMES = 1000;
+    private static final int MAX_WINDOWS = 3;
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("Allocation counting isn't available",
+                bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue("Allocation counting isn't available",
+                threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        return threadBean;
+    }
+
+    // The ids of the band worker threads running now
+    private static long[] bandThreadIds() {
+        final List<Thread> bandThreads = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("CloudPaperBand-") && thread.isAlive()) {
+                bandThreads.add(thread);
+            }
+        }
+        final long[] ids = new long[bandThreads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = bandThreads.get(i).getId();
+        }
+        return ids;
+    }
+
+    private static void generate(CloudRenderer renderer, CloudFrame frame, AnimationSettings settings, int i) {
+        final long millis = i * 1000L / settings.framesPerSecond;
+        final float x = millis * settings.driftX;
+        final float y = millis * settings.driftY;
+        final float z = millis * settings.evolutionRate;
+        if (settings.loopMillis > 0) {
+            final float weight = (float) (millis % settings.loopMillis) / settings.loopMillis;
+            renderer.generateLoopFrame(frame, x, y, z, x + 50, y + 10, z + 20, weight);
+        } else {
+            renderer.generateClouds(frame, x, y, z);
+        }
+    }
+
+    // Generates FRAMES frames from the given one, returning which thread allocated something, or null if none
+    private static String allocationIn(com.sun.management.ThreadMXBean threadBean, long[] bandIds,
+                                       CloudRenderer renderer, CloudFrame frame, AnimationSettings settings, int start) {
+        final long[] bandBefore = new long[bandIds.length];
+        final long[] bandAfter = new long[bandIds.length];
+        final long currentId = Thread.currentThread().getId();
+        // Reading a count may allocate on this thread, so this thread's count is read last
+        for (int i = 0; i < bandIds.length; i++) {
+            bandBefore[i] = threadBean.getThreadAllocatedBytes(bandIds[i]);
+        }
+        final long before = threadBean.getThreadAllocatedBytes(currentId);
+        for (int i = start; i < start + FRAMES; i++) {
+            generate(renderer, frame, settings, i);
+        }
+        final long after = threadBean.getThreadAllocatedBytes(currentId);
+        for (int i = 0; i < bandIds.length; i++) {
+            bandAfter[i] = threadBean.getThreadAllocatedBytes(bandIds[i]);
+        }
+
+        if (after != before) {
+            return (after - before) + " bytes allocated by the calling thread";
+        }
+        for (int i = 0; i < bandIds.length; i++) {
+            if (bandAfter[i] != bandBefore[i]) {
+                return (bandAfter[i] - bandBefore[i]) + " bytes allocated by band worker " + i;
+            }
+        }
+        return null;
+    }
+
+    // Generates frames after warming up, and checks that no thread involved allocated anything
+    private static void assertNoAllocation(AnimationSettings settings, int workerCount) {
+        final com.sun.management.ThreadMXBean threadBean = threadBean();
+        final CloudRenderer renderer = new CloudRenderer(settings, workerCount);
+        try {
+            renderer.setSurfaceSize(WIDTH, HEIGHT);
+            final CloudFrame frame = renderer.createFrame();
+            int start = 0;
+            while (start < WARM_UP_FRAMES
+                    || settings.tileZStep > 0 && renderer.getTileEvictions() == 0 && start < MAX_WARM_UP_FRAMES) {
+                generate(renderer, frame, settings, start++);
+            }
+
+            final long[] bandIds = bandThreadIds();
+            assertEquals(workerCount - 1, bandIds.length);
+            String allocated = null;
+            for (int window = 0; window < MAX_WINDOWS; window++) {
+                allocated = allocationIn(threadBean, bandIds, renderer, frame, settings, start);
+                if (allocated == null) {
+                    break;
+                }
+                start += FRAMES;
+            }
+            assertNull(allocated);
+        } finally {
+            renderer.release();
+        }
+    }
+
+    private static void assertNoAllocation(AnimationSettings settings) {
+        assertNoAllocation(settings, 1);
+        assertNoAllocation(settings, 4);
+    }
+
+    @Test
+    public void defaultSettings() {
+        assertNoAllocation(new AnimationSettings());
+    }
+
+    @Test
+    public void smoothClouds() {
+        assertNoAllocation(new AnimationSettings.Builder().setSmoothClouds(true).build());
+    }
+
+    @Test
+    public void scrollingBlocks() {
+        assertNoAllocation(new AnimationSettings.Builder().setScrollRefreshFrames(8).build());
+    }
+
+    @Test
+    public void tiles() {
+        assertNoAllocation(new AnimationSettings.Builder().setTileZStep(0.5f).build());
+    }
+
+    @Test
+    public void keyframes() {
+        assertNoAllocation(new AnimationSettings.Builder().setKeyframeMillis(1000).build());
+    }
+
+    @Test
+    public void loopFrames() {
+        assertNoAllocation(new AnimationSettings.Builder().setLoopMillis(3000).build());
+    }
+}
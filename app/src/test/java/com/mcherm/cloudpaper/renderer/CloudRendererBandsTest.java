@@ -0,0 +1,93 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import org.junit.Test;
+
+/**
+ * Checks that splitting a frame into bands over several workers gives exactly the frame that
+ * one worker does, with each of the ways of generating frames.
+ */
+public class CloudRendererBandsTest {
+
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 260;
+    private static final int FRAMES = 12;
+    private static final long FRAME_MILLIS = 250;
+
+    private static AnimationSettings.Builder settings() {
+        return new AnimationSettings.Builder();
+    }
+
+    // Generates the same frames with one worker and with several, and checks they match
+    private static void assertSameFrames(AnimationSettings settings) {
+        final CloudRenderer single = new CloudRenderer(settings, 1);
+        final CloudRenderer banded = new CloudRenderer(settings, 4);
+        try {
+            single.setSurfaceSize(WIDTH, HEIGHT);
+            banded.setSurfaceSize(WIDTH, HEIGHT);
+            final CloudFrame singleFrame = single.createFrame();
+            final CloudFrame bandedFrame = banded.createFrame();
+            final byte[] expected = new byte[singleFrame.widthBlocks * singleFrame.heightBlocks];
+            final byte[] actual = new byte[expected.length];
+            for (int i = 0; i < FRAMES; i++) {
+                final long millis = i * FRAME_MILLIS;
+                final float x = millis * settings.driftX;
+                final float y = millis * settings.driftY;
+                final float z = millis * settings.evolutionRate;
+                if (settings.loopMillis > 0) {
+                    final float weight = (float) i / FRAMES;
+                    single.generateLoopFrame(singleFrame, x, y, z, x + 50, y + 10, z + 20, weight);
+                    banded.generateLoopFrame(bandedFrame, x, y, z, x + 50, y + 10, z + 20, weight);
+                } else {
+                    single.generateClouds(singleFrame, x, y, z);
+                    banded.generateClouds(bandedFrame, x, y, z);
+                }
+                assertEquals("offset x of frame " + i, singleFrame.getOffsetX(), bandedFrame.getOffsetX(), 0f);
+                assertEquals("offset y of frame " + i, singleFrame.getOffsetY(), bandedFrame.getOffsetY(), 0f);
+                assertArrayEquals("frame " + i, singleFrame.copyAlphas(expected), bandedFrame.copyAlphas(actual));
+            }
+        } finally {
+            single.release();
+            banded.release();
+        }
+    }
+
+    @Test
+    public void defaultSettings() {
+        assertSameFrames(settings().build());
+    }
+
+    @Test
+    public void smoothClouds() {
+        assertSameFrames(settings().setSmoothClouds(true).build());
+    }
+
+    @Test
+    public void scrollingBlocks() {
+        assertSameFrames(settings().setScrollRefreshFrames(4).setDriftX(0.05f).setDriftY(-0.02f).build());
+    }
+
+    @Test
+    public void tiles() {
+        assertSameFrames(settings().setTileZStep(0.5f).build());
+    }
+
+    @Test
+    public void keyframes() {
+        assertSameFrames(settings().setKeyframeMillis(1000).build());
+    }
+
+    @Test
+    public void loopFrames() {
+        assertSameFrames(settings().setLoopMillis(3000).build());
+    }
+
+    @Test
+    public void progressiveFrames() {
+        assertSameFrames(settings().setProgressiveFrames(true).setPixelSize(2).build());
+    }
+}
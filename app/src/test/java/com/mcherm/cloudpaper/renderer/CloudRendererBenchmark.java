@@ -0,0 +1,69 @@
+package com.mcherm.cloudpaper.renderer;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Times generating frames with 1, 2, 4 and 8 workers, to see how the banding scales with
+ * cores. Not a test: run its main() on a machine with several cores, e.g. from the IDE.
+ * Arguments, all optional: width, height and frames per worker count.
+ *
+ * <p>Besides the wall time and speed-up, it reports the CPU time of every thread taking part
+ * per frame. Over the single worker's, that is what handing out the bands costs, which shows
+ * even on one core; the speed-up only means something with at least as many cores as workers.
+ */
+public class CloudRendererBenchmark {
+
+    private static final int[] WORKER_COUNTS = {1, 2, 4, 8};
+
+    public static void main(String[] args) {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : 1080;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 2340;
+        final int frames = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final AnimationSettings settings = new AnimationSettings();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final int processors = Runtime.getRuntime().availableProcessors();
+        System.out.println(processors + " processors, " + width + "x" + height + ", " + frames + " frames");
+
+        double singleMillis = 0;
+        for (int workers : WORKER_COUNTS) {
+            final CloudRenderer renderer = new CloudRenderer(settings, workers);
+            try {
+                renderer.setSurfaceSize(width, height);
+                final CloudFrame frame = renderer.createFrame();
+                // Warm up, then time
+                for (int i = 0; i < frames / 4; i++) {
+                    renderer.generateClouds(frame, i * 0.75f, i * 0.125f, i * 1.25f);
+                }
+                final long cpuStart = cpuNanos(threadBean);
+                final long start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    renderer.generateClouds(frame, i * 0.75f, i * 0.125f, i * 1.25f);
+                }
+                final double millis = (System.nanoTime() - start) / 1e6 / frames;
+                final double cpuMillis = (cpuNanos(threadBean) - cpuStart) / 1e6 / frames;
+                if (workers == 1) {
+                    singleMillis = millis;
+                }
+                System.out.printf("%d workers: %.2f ms/frame, %.2fx, %.2f ms CPU/frame%s%n",
+                        workers, millis, singleMillis / millis, cpuMillis,
+                        workers > processors ? " (more workers than processors)" : "");
+            } finally {
+                renderer.release();
+            }
+        }
+    }
+
+    // CPU time so far of this thread and the band workers
+    private static long cpuNanos(ThreadMXBean threadBean) {
+        long nanos = threadBean.getCurrentThreadCpuTime();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("CloudPaperBand-") && thread.isAlive()) {
+                nanos += Math.max(0, threadBean.getThreadCpuTime(thread.getId()));
+            }
+        }
+        return nanos;
+    }
+}
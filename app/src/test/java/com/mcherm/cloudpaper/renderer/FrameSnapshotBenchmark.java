@@ -0,0 +1,41 @@
+package com.mcherm.cloudpaper.renderer;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.io.File;
+
+/**
+ * Times how long a cold start takes to have its first frame ready to draw: by creating,
+ * sizing and running the renderer ("generate"), or by loading a snapshot saved beforehand
+ * ("snapshot"). Not a test: run main() in a new JVM for each measurement, with "save" first
+ * to make the snapshot. Arguments: save, generate or snapshot; then the file to use.
+ */
+public class FrameSnapshotBenchmark {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2340;
+
+    public static void main(String[] args) {
+        final String mode = args[0];
+        final File path = new File(args[1]);
+        final AnimationSettings settings = new AnimationSettings();
+
+        final long start = System.nanoTime();
+        if (mode.equals("snapshot")) {
+            final FrameSnapshot snapshot = FrameSnapshot.load(path);
+            if (snapshot == null || !snapshot.matches(settings, WIDTH, HEIGHT) || snapshot.toFrame(settings) == null) {
+                throw new IllegalStateException("No snapshot for " + WIDTH + "x" + HEIGHT + " in " + path);
+            }
+        } else {
+            final CloudRenderer renderer = new CloudRenderer(settings);
+            renderer.setSurfaceSize(WIDTH, HEIGHT);
+            final CloudFrame frame = renderer.generateClouds(123f, 45f, 6f);
+            if (mode.equals("save")) {
+                FrameSnapshot.save(path, frame, settings, WIDTH, HEIGHT, 123f, 45f, 6f);
+                System.out.println("Saved " + path.length() + " bytes, for " + frame.alphas.length + " bytes of frame");
+            }
+            renderer.release();
+        }
+        System.out.printf("%s: first frame ready %.1f ms after starting%n", mode, (System.nanoTime() - start) / 1e6);
+    }
+}
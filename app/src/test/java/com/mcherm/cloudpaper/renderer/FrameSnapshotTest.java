@@ -0,0 +1,108 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameSnapshotTest {
+
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 780;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AnimationSettings settings = new AnimationSettings();
+    private CloudRenderer renderer;
+
+    @Before
+    public void setUp() {
+        renderer = new CloudRenderer(settings, 1);
+        renderer.setSurfaceSize(WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        renderer.release();
+    }
+
+    @Test
+    public void roundTripsTheFrameAndItsOffsets() throws IOException {
+        final File path = folder.newFile();
+        final CloudFrame frame = renderer.generateClouds(123f, 45f, 6f);
+        FrameSnapshot.save(path, frame, settings, WIDTH, HEIGHT, 123f, 45f, 6f);
+
+        final FrameSnapshot snapshot = FrameSnapshot.load(path);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.matches(settings, WIDTH, HEIGHT));
+        assertEquals(123f, snapshot.getXOffset(), 0f);
+        assertEquals(45f, snapshot.getYOffset(), 0f);
+        assertEquals(6f, snapshot.getZOffset(), 0f);
+        final CloudFrame shown = snapshot.toFrame(settings);
+        assertArrayEquals(frame.alphas, shown.alphas);
+        assertSame(settings, shown.getAnimationSettings());
+    }
+
+    @Test
+    public void doesNotMatchOtherSurfacesOrSettings() throws IOException {
+        final File path = folder.newFile();
+        FrameSnapshot.save(path, renderer.generateClouds(0f, 0f, 0f), settings, WIDTH, HEIGHT, 0f, 0f, 0f);
+        final FrameSnapshot snapshot = FrameSnapshot.load(path);
+        assertFalse(snapshot.matches(settings, WIDTH, HEIGHT + 60));
+        assertFalse(snapshot.matches(new AnimationSettings.Builder().setCloudDensityThreshold(0.6f).build(),
+                WIDTH, HEIGHT));
+        assertFalse(snapshot.matches(settings.withPixelSize(8), WIDTH, HEIGHT));
+        // Settings that don't change the opacities still match
+        assertTrue(snapshot.matches(new AnimationSettings.Builder().setSkyColor("#000000").build(), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void aFrameWithCoarserBlocksMatchesTheUsersSettingsAndKeepsItsBlocks() throws IOException {
+        // As when the quality governor or the power tier has the renderer use larger blocks
+        final File path = folder.newFile();
+        renderer.setAnimationSettings(settings.withPixelSize(2 * settings.pixelSize));
+        final CloudFrame frame = renderer.generateClouds(10f, 20f, 30f);
+        FrameSnapshot.save(path, frame, settings, WIDTH, HEIGHT, 10f, 20f, 30f);
+
+        final FrameSnapshot snapshot = FrameSnapshot.load(path);
+        assertTrue(snapshot.matches(settings, WIDTH, HEIGHT));
+        final CloudFrame shown = snapshot.toFrame(settings);
+        assertArrayEquals(frame.alphas, shown.alphas);
+        assertEquals(2 * settings.pixelSize, shown.getAnimationSettings().pixelSize);
+        assertEquals(settings.cloudDensityThreshold, shown.getAnimationSettings().cloudDensityThreshold, 0f);
+    }
+
+    @Test
+    public void missingOrDamagedFilesLoadAsNothing() throws IOException {
+        assertNull(FrameSnapshot.load(new File(folder.getRoot(), "missing.frame")));
+
+        final File path = folder.newFile();
+        FrameSnapshot.save(path, renderer.generateClouds(0f, 0f, 0f), settings, WIDTH, HEIGHT, 0f, 0f, 0f);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        assertNull(FrameSnapshot.load(path));
+
+        try (FileOutputStream out = new FileOutputStream(path)) {
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        assertNull(FrameSnapshot.load(path));
+    }
+}
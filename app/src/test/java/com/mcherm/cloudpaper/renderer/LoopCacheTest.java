@@ -0,0 +1,104 @@
+package com.mcherm.cloudpaper.renderer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mcherm.cloudpaper.AnimationSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LoopCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static AnimationSettings loop(int loopMillis, int framesPerSecond) {
+        return new AnimationSettings.Builder().setLoopMillis(loopMillis).setFramesPerSecond(framesPerSecond).build();
+    }
+
+    // A frame of random clouds: clear sky with patches of every opacity
+    private static CloudFrame frame(Random random) {
+        final CloudFrame frame = new CloudFrame(90, 60);
+        for (int i = 0; i < frame.alphas.length; i++) {
+            frame.alphas[i] = (byte) (random.nextInt(3) == 0 ? random.nextInt(256) : 0);
+        }
+        return frame;
+    }
+
+    @Test
+    public void frameCountDoesNotOverflow() {
+        assertEquals(8, LoopCache.frameCount(loop(2000, 4)));
+        assertEquals(1, LoopCache.frameCount(loop(10, 4)));
+        assertEquals(18000, LoopCache.frameCount(loop(600000, 30)));
+        // loopMillis * framesPerSecond is past the int range here
+        assertEquals(64424509, LoopCache.frameCount(loop(Integer.MAX_VALUE, 30)));
+    }
+
+    @Test
+    public void framesAreKeptAcrossReopening() throws IOException {
+        final File path = folder.newFile();
+        final AnimationSettings settings = loop(2000, 4);
+        final Random random = new Random(3);
+        final CloudFrame[] frames = new CloudFrame[LoopCache.frameCount(settings)];
+        LoopCache loopCache = LoopCache.open(path, frame(random), settings);
+        assertNotNull(loopCache);
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(random);
+            loopCache.write(i, frames[i]);
+        }
+        loopCache.close();
+
+        loopCache = LoopCache.open(path, frames[0], settings);
+        assertNotNull(loopCache);
+        final CloudFrame target = new CloudFrame(90, 60);
+        for (int i = 0; i < frames.length; i++) {
+            assertTrue("frame " + i, loopCache.read(i, target, settings));
+            assertArrayEquals("frame " + i, frames[i].alphas, target.alphas);
+        }
+        loopCache.close();
+    }
+
+    @Test
+    public void loopsThatCouldOutgrowTheBudgetAreNotCached() throws IOException {
+        final File path = folder.newFile();
+        final CloudFrame frame = new CloudFrame(540, 1170);
+        // Ten minutes at 30 frames per second of 630 KB frames
+        final AnimationSettings settings = loop(600000, 30);
+        final long rawBytes = (long) LoopCache.frameCount(settings) * frame.alphas.length;
+        assertTrue(rawBytes > LoopCache.MAX_FILE_BYTES);
+        assertNull(LoopCache.open(path, frame, settings));
+        assertFalse(path.exists());
+
+        // A small frame, for longer than the settings screen allows, and for as long as it does
+        assertNull(LoopCache.open(path, frame(new Random(5)), loop(Integer.MAX_VALUE, 30)));
+        final LoopCache loopCache = LoopCache.open(path, frame(new Random(5)), loop(600000, 30));
+        assertNotNull(loopCache);
+        loopCache.close();
+    }
+
+    @Test
+    public void aFileForOtherSettingsIsStartedOver() throws IOException {
+        final File path = folder.newFile();
+        final Random random = new Random(9);
+        final CloudFrame frame = frame(random);
+        LoopCache loopCache = LoopCache.open(path, frame, loop(2000, 4));
+        loopCache.write(0, frame);
+        loopCache.close();
+
+        final AnimationSettings other = loop(3000, 4);
+        loopCache = LoopCache.open(path, frame, other);
+        assertNotNull(loopCache);
+        assertFalse(loopCache.read(0, new CloudFrame(90, 60), other));
+        loopCache.close();
+    }
+}
@@ -0,0 +1,38 @@
+package com.mcherm.cloudpaper.renderer;
+
+import java.util.Arrays;
+
+/**
+ * Makes and alters frames for tests outside the renderer package, which can't reach a
+ * frame's alphas or offsets.
+ */
+public class TestFrames {
+
+    private TestFrames() {
+    }
+
+    /** A frame with every block at the given alpha. */
+    public static CloudFrame frame(int widthBlocks, int heightBlocks, int alpha) {
+        final CloudFrame frame = new CloudFrame(widthBlocks, heightBlocks);
+        Arrays.fill(frame.alphas, (byte) alpha);
+        return frame;
+    }
+
+    /** A copy of the given frame, with its offsets. */
+    public static CloudFrame copy(CloudFrame frame) {
+        final CloudFrame copy = new CloudFrame(frame.widthBlocks, frame.heightBlocks);
+        frame.copyAlphas(copy.alphas);
+        copy.offsetX = frame.offsetX;
+        copy.offsetY = frame.offsetY;
+        return copy;
+    }
+
+    public static void setAlpha(CloudFrame frame, int col, int row, int alpha) {
+        frame.alphas[row * frame.rowBytes + col] = (byte) alpha;
+    }
+
+    public static void setOffset(CloudFrame frame, float offsetX, float offsetY) {
+        frame.offsetX = offsetX;
+        frame.offsetY = offsetY;
+    }
+}